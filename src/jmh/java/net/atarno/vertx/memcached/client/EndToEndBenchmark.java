@@ -0,0 +1,166 @@
+package net.atarno.vertx.memcached.client;
+
+import net.atarno.vertx.memcached.server.MemServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.eventbus.EventBus;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.platform.PlatformLocator;
+import org.vertx.java.platform.PlatformManager;
+
+import java.net.ServerSocket;
+import java.net.URL;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * End-to-end benchmarks: requests are sent over the event bus to a deployed {@link MemClient}, which talks to
+ * a {@link MemServer} deployed in the same JVM. Every invocation waits for its reply, so the sample time is the
+ * request latency and the throughput grows with the number of benchmark threads.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( { Mode.Throughput, Mode.SampleTime } )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 5, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Threads( 8 )
+@Fork( 1 )
+public class EndToEndBenchmark {
+
+    private static final String ADDRESS = "bench.memcached";
+    private static final int BULK_KEYS = 20;
+
+    @Param( { "1", "4" } )
+    public int connections;
+
+    @Param( { "serializing", "json" } )
+    public String transcoder;
+
+    @Param( { "1000" } )
+    public long timeOutMillis;
+
+    @Param( { "256" } )
+    public int valueSize;
+
+    private PlatformManager platform;
+    private EventBus eb;
+    private JsonObject get;
+    private JsonObject set;
+    private JsonObject getBulk;
+
+    @Setup( Level.Trial )
+    public void setup() throws Exception {
+
+        int port;
+        try ( ServerSocket probe = new ServerSocket( 0 ) ) {
+            port = probe.getLocalPort();
+        }
+        platform = PlatformLocator.factory.createPlatformManager();
+        eb = platform.vertx().eventBus();
+        deploy( MemServer.class.getName(), new JsonObject().putString( "host", "127.0.0.1" ).putNumber( "port", port ) );
+        deploy( MemClient.class.getName(), new JsonObject()
+                .putString( "address", ADDRESS )
+                .putString( "memcached.servers", "127.0.0.1:" + port )
+                .putNumber( "memcached.connections", connections )
+                .putNumber( "memcached.timeout.ms", timeOutMillis )
+                .putString( "memcached.transcoder", transcoder ) );
+
+        StringBuilder value = new StringBuilder( valueSize );
+        while ( value.length() < valueSize ) {
+            value.append( 'v' );
+        }
+        JsonArray keys = new JsonArray();
+        for ( int i = 0; i < BULK_KEYS; i++ ) {
+            String key = "bench:" + i;
+            keys.addString( key );
+            call( new JsonObject().putString( "command", "set" ).putString( "key", key ).putString( "value", value.toString() ) );
+        }
+        get = new JsonObject().putString( "command", "get" ).putString( "key", "bench:0" );
+        set = new JsonObject().putString( "command", "set" ).putString( "key", "bench:set" ).putString( "value", value.toString() );
+        getBulk = new JsonObject().putString( "command", "getbulk" ).putArray( "keys", keys );
+    }
+
+    @TearDown( Level.Trial )
+    public void tearDown() {
+
+        platform.stop();
+    }
+
+    @Benchmark
+    public JsonObject get() throws Exception {
+
+        return call( get );
+    }
+
+    @Benchmark
+    public JsonObject set() throws Exception {
+
+        return call( set );
+    }
+
+    @Benchmark
+    public JsonObject getBulk() throws Exception {
+
+        return call( getBulk );
+    }
+
+    private void deploy( String main, JsonObject config ) throws Exception {
+
+        final CountDownLatch deployed = new CountDownLatch( 1 );
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        URL classpath = MemClient.class.getProtectionDomain().getCodeSource().getLocation();
+        platform.deployVerticle( main, config, new URL[]{ classpath }, 1, null, new Handler<AsyncResult<String>>() {
+            @Override
+            public void handle( AsyncResult<String> result ) {
+
+                if ( result.failed() ) {
+                    failure.set( result.cause() );
+                }
+                deployed.countDown();
+            }
+        } );
+        if ( !deployed.await( 30, TimeUnit.SECONDS ) ) {
+            throw new IllegalStateException( main + " was not deployed in time" );
+        }
+        if ( failure.get() != null ) {
+            throw new IllegalStateException( main + " deployment failed", failure.get() );
+        }
+    }
+
+    private JsonObject call( JsonObject request ) throws Exception {
+
+        final CountDownLatch replied = new CountDownLatch( 1 );
+        final AtomicReference<JsonObject> reply = new AtomicReference<>();
+        eb.sendWithTimeout( ADDRESS, request, timeOutMillis * 2, new Handler<AsyncResult<Message<JsonObject>>>() {
+            @Override
+            public void handle( AsyncResult<Message<JsonObject>> result ) {
+
+                reply.set( result.succeeded() ? result.result().body() : new JsonObject().putString( "status", "error" ).putString( "message", String.valueOf( result.cause() ) ) );
+                replied.countDown();
+            }
+        } );
+        replied.await();
+        JsonObject body = reply.get();
+        if ( !"ok".equals( body.getString( "status" ) ) ) {
+            throw new IllegalStateException( "request failed: " + body.encode() );
+        }
+        return body;
+    }
+}
@@ -0,0 +1,191 @@
+package net.atarno.vertx.memcached.client;
+
+import net.spy.memcached.internal.OperationFuture;
+import net.spy.memcached.ops.OperationStatus;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.vertx.java.core.Context;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Micro benchmarks of the CPU-bound parts of the request path: command lookup, request rejection,
+ * value conversion and reply construction. Nothing here talks to memcached.<p>
+ * Run with <code>-prof gc</code> to see the allocation per operation, the dispatch and completion paths are
+ * expected to allocate little beyond the reply itself.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class MemCommandBenchmark {
+
+    @Param( { "get", "GETBULK", "touchBulk" } )
+    public String command;
+
+    private MemClient verticle;
+    private Object lastReply;
+    private LocalMessage unknownCommand;
+    private LocalMessage missingCommand;
+    private LocalMessage getRequest;
+    private LocalMessage deleteRequest;
+    private OperationFuture<Boolean> deleted;
+    private OperationFuture<Boolean> notFound;
+    private Context context;
+    private String stringValue;
+    private JsonObject jsonValue;
+    private byte[] binaryValue;
+    private Map<String, Object> bulk;
+
+    @Setup
+    public void setup() {
+
+        verticle = new MemClient();
+        unknownCommand = sink( new JsonObject().putString( "command", "nosuchcommand" ) );
+        missingCommand = sink( new JsonObject() );
+        getRequest = sink( new JsonObject().putString( "command", "get" ).putString( "key", "bench:key" ) );
+        deleteRequest = sink( new JsonObject().putString( "command", "delete" ).putString( "key", "bench:key" ) );
+        deleted = done( true, new OperationStatus( true, "OK" ) );
+        notFound = done( false, new OperationStatus( false, "Not found" ) );
+        context = new Context() {
+            @Override
+            public void runOnContext( Handler<Void> action ) {
+
+                action.handle( null );
+            }
+        };
+        stringValue = "a value of a typical size for a session attribute, not too long";
+        jsonValue = new JsonObject().putString( "user", "bench" ).putNumber( "visits", 42 ).putArray( "roles", new JsonArray().addString( "a" ).addString( "b" ) );
+        binaryValue = new byte[ 512 ];
+        bulk = new HashMap<>();
+        for ( int i = 0; i < 10; i++ ) {
+            bulk.put( "bench:key:" + i, stringValue );
+        }
+    }
+
+    private LocalMessage sink( JsonObject body ) {
+
+        return new LocalMessage( body ) {
+            @Override
+            protected void handleReply( Object reply ) {
+
+                lastReply = reply;
+            }
+        };
+    }
+
+    private static OperationFuture<Boolean> done( boolean value, OperationStatus status ) {
+
+        OperationFuture<Boolean> f = new OperationFuture<>( "bench:key", new CountDownLatch( 0 ), 1000, null );
+        f.set( value, status );
+        return f;
+    }
+
+    @Benchmark
+    public MemCommand getByName() {
+
+        return MemClient.getByName( command );
+    }
+
+    @Benchmark
+    public MemCommand getByNameUnknown() {
+
+        return MemClient.getByName( "nosuchcommand" );
+    }
+
+    @Benchmark
+    public Object dispatchUnknownCommand() {
+
+        verticle.memHandler.handle( unknownCommand );
+        return lastReply;
+    }
+
+    @Benchmark
+    public Object dispatchMissingCommand() {
+
+        verticle.memHandler.handle( missingCommand );
+        return lastReply;
+    }
+
+    @Benchmark
+    public JsonObject parseString() throws Exception {
+
+        return MemCommand.parseForJson( new JsonObject(), "value", stringValue );
+    }
+
+    @Benchmark
+    public JsonObject parseJson() throws Exception {
+
+        return MemCommand.parseForJson( new JsonObject(), "value", jsonValue );
+    }
+
+    @Benchmark
+    public JsonObject parseBinary() throws Exception {
+
+        return MemCommand.parseForJson( new JsonObject(), "value", binaryValue );
+    }
+
+    @Benchmark
+    public Object replyGet() throws Exception {
+
+        JsonObject response = MemCommand.parseForJson( new JsonObject(), "key", "bench:key" );
+        MemCommand.sendOk( getRequest, MemCommand.parseForJson( response, "value", stringValue ) );
+        return lastReply;
+    }
+
+    @Benchmark
+    public Object replyBulk() throws Exception {
+
+        JsonObject response = new JsonObject();
+        for ( Map.Entry<String, Object> e : bulk.entrySet() ) {
+            MemCommand.parseForJson( response, e.getKey(), e.getValue() );
+        }
+        MemCommand.sendOk( getRequest, response );
+        return lastReply;
+    }
+
+    @Benchmark
+    public Object replyError() {
+
+        MemCommand.sendError( getRequest, "Not found" );
+        return lastReply;
+    }
+
+    @Benchmark
+    public Object replyOk() {
+
+        MemCommand.DELETE.reply( deleteRequest, deleted, deleted.getStatus() );
+        return lastReply;
+    }
+
+    @Benchmark
+    public Object replyNotFound() {
+
+        MemCommand.DELETE.reply( deleteRequest, notFound, notFound.getStatus() );
+        return lastReply;
+    }
+
+    @Benchmark
+    public Object completeDelete() throws Exception {
+
+        new Completion.OfOperation( MemCommand.DELETE, verticle, deleteRequest, context, "bench:key" ).onComplete( deleted );
+        return lastReply;
+    }
+}
@@ -0,0 +1,261 @@
+package net.atarno.vertx.memcached.client;
+
+import net.spy.memcached.MemcachedClient;
+import org.vertx.java.core.Context;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Bounds the memcached operations a verticle has in flight.<p>
+ * A request is admitted when the verticle has fewer operations in flight than its limit, and one of the clients of
+ * the pool has fewer than the per-client limit. Otherwise the overflow policy applies: <code>reject</code> replies
+ * "overloaded" at once, <code>queue</code> keeps the request in a bounded FIFO queue until operations complete,
+ * <code>shed</code> keeps it in a bounded queue ordered by the <code>priority</code> of the requests, where a full
+ * queue drops its lowest priority request in favour of a more important one. Queued requests are submitted as
+ * operations complete, the ones still waiting after the operation time-out are rejected.<p>
+ * Only touched from the verticle's event loop.
+ */
+class Admission implements Handler<Void> {
+
+    static final String OVERLOADED = "overloaded";
+
+    // commands that do not queue operations in spymemcached, or only through their sub-commands
+    private static final Set<MemCommand> EXEMPT = EnumSet.of( MemCommand.STATUS, MemCommand.METRICS, MemCommand.GETSTATS,
+                                                               MemCommand.RECONFIGURE, MemCommand.BATCH );
+
+    enum Policy {
+        REJECT, QUEUE, SHED;
+
+        static Policy forName( String name ) throws Exception {
+
+            for ( Policy p : values() ) {
+                if ( p.name().equalsIgnoreCase( name ) ) {
+                    return p;
+                }
+            }
+            throw new Exception( "unknown overflow policy: '" + name + "'" );
+        }
+    }
+
+    private final MemClient verticle;
+    private final Context ctx;
+    private final int max;
+    private final int clientMax;
+    private final Policy policy;
+    private final int queueMax;
+    private final TreeSet<Queued> queue = new TreeSet<>();
+    private long sequence;
+    private long timerId = -1;
+    private long rejected;
+    private long shed;
+    private long expired;
+
+    /**
+     * @param max       the operations in flight of the verticle, 0 for no limit
+     * @param clientMax the operations in flight of every client of the pool, 0 for no limit
+     */
+    Admission( MemClient verticle, Context ctx, int max, int clientMax, Policy policy, int queueMax ) {
+
+        this.verticle = verticle;
+        this.ctx = ctx;
+        this.max = max;
+        this.clientMax = clientMax;
+        this.policy = policy;
+        this.queueMax = queueMax;
+    }
+
+    /**
+     * @return the client to submit the request to, or null if the request was queued or rejected
+     */
+    MemcachedClient admit( MemCommand command, Message<JsonObject> message ) {
+
+        if ( EXEMPT.contains( command ) ) {
+            return verticle.getPool().select();
+        }
+        if ( !queue.isEmpty() ) {
+            // queued requests go first
+            drain();
+        }
+        MemcachedClient memClient = queue.isEmpty() ? select() : null;
+        if ( memClient != null ) {
+            return memClient;
+        }
+        overflow( command, message );
+        return null;
+    }
+
+    /**
+     * admits a request that cannot be queued, such as a binary one
+     *
+     * @return the client to submit the request to, or null if the request is rejected
+     */
+    MemcachedClient tryAdmit() {
+
+        if ( !queue.isEmpty() ) {
+            drain();
+        }
+        MemcachedClient memClient = queue.isEmpty() ? select() : null;
+        if ( memClient == null ) {
+            rejected++;
+        }
+        return memClient;
+    }
+
+    /**
+     * called once operations completed
+     */
+    @Override
+    public void handle( Void v ) {
+
+        drain();
+    }
+
+    JsonObject toJson() {
+
+        return new JsonObject()
+                .putString( "policy", policy.name().toLowerCase() )
+                .putNumber( "max", max )
+                .putNumber( "clientmax", clientMax )
+                .putNumber( "inflight", verticle.getPool().inFlight() )
+                .putNumber( "queued", queue.size() )
+                .putNumber( "rejected", rejected )
+                .putNumber( "shed", shed )
+                .putNumber( "expired", expired );
+    }
+
+    /**
+     * replies to the queued requests, when the verticle stops
+     */
+    void stop() {
+
+        if ( timerId != -1 ) {
+            verticle.getVertx().cancelTimer( timerId );
+            timerId = -1;
+        }
+        for ( Queued q : queue ) {
+            MemCommand.sendError( q.message, OVERLOADED );
+        }
+        queue.clear();
+    }
+
+    private MemcachedClient select() {
+
+        ClientPool pool = verticle.getPool();
+        if ( max > 0 && pool.inFlight() >= max ) {
+            return null;
+        }
+        return clientMax > 0 ? pool.select( clientMax ) : pool.select();
+    }
+
+    private void overflow( MemCommand command, Message<JsonObject> message ) {
+
+        if ( policy == Policy.REJECT || queueMax <= 0 ) {
+            reject( command, message );
+            return;
+        }
+        Integer priority = policy == Policy.SHED ? message.body().getInteger( "priority" ) : null;
+        Queued queued = new Queued( command, message, priority == null ? 0 : priority, sequence++ );
+        if ( queue.size() >= queueMax ) {
+            Queued lowest = queue.last();
+            if ( queued.priority <= lowest.priority ) {
+                reject( command, message );
+                return;
+            }
+            queue.pollLast();
+            shed++;
+            MemCommand.sendError( lowest.message, OVERLOADED );
+        }
+        queue.add( queued );
+        verticle.getPool().wakeOnRelease( ctx, this );
+        if ( timerId == -1 ) {
+            scheduleExpiry();
+        }
+    }
+
+    private void reject( MemCommand command, Message<JsonObject> message ) {
+
+        rejected++;
+        if ( verticle.getMetrics() != null ) {
+            verticle.getMetrics().rejected( command );
+        }
+        MemCommand.sendError( message, OVERLOADED );
+    }
+
+    private void drain() {
+
+        while ( !queue.isEmpty() ) {
+            MemcachedClient memClient = select();
+            if ( memClient == null ) {
+                verticle.getPool().wakeOnRelease( ctx, this );
+                return;
+            }
+            Queued q = queue.pollFirst();
+            verticle.submit( q.command, q.message, memClient );
+        }
+    }
+
+    private void expire() {
+
+        long deadline = System.currentTimeMillis() - verticle.getTimeOutMillis();
+        Iterator<Queued> it = queue.iterator();
+        while ( it.hasNext() ) {
+            Queued q = it.next();
+            if ( q.since <= deadline ) {
+                it.remove();
+                expired++;
+                MemCommand.sendError( q.message, OVERLOADED );
+            }
+        }
+        // the pool may have been swapped since the request was queued, its completions would not wake the queue
+        drain();
+        if ( !queue.isEmpty() ) {
+            scheduleExpiry();
+        }
+    }
+
+    private void scheduleExpiry() {
+
+        timerId = verticle.getVertx().setTimer( verticle.getTimeOutMillis(), new Handler<Long>() {
+            @Override
+            public void handle( Long id ) {
+
+                timerId = -1;
+                expire();
+            }
+        } );
+    }
+
+    /**
+     * ordered by decreasing priority, then by arrival
+     */
+    private static class Queued implements Comparable<Queued> {
+        final MemCommand command;
+        final Message<JsonObject> message;
+        final int priority;
+        final long sequence;
+        final long since = System.currentTimeMillis();
+
+        Queued( MemCommand command, Message<JsonObject> message, int priority, long sequence ) {
+
+            this.command = command;
+            this.message = message;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo( Queued o ) {
+
+            if ( priority != o.priority ) {
+                return priority > o.priority ? -1 : 1;
+            }
+            return sequence < o.sequence ? -1 : sequence == o.sequence ? 0 : 1;
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package net.atarno.vertx.memcached.client;
+
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+/**
+ * Runs the sub-commands of a BATCH request concurrently and replies once, with the results in request order.<p>
+ * Every result has the same shape as the reply to the corresponding single command, so one failing
+ * sub-command does not fail the others. Sub-commands that did not complete within the operation
+ * time-out are reported as timed out.
+ */
+class Batch {
+
+    private final MemClient verticle;
+    private final Message<JsonObject> message;
+    private final JsonArray commands;
+    private final JsonObject[] results;
+    private int pending;
+    private long timerId = -1;
+    private boolean done;
+
+    Batch( MemClient verticle, Message<JsonObject> message, JsonArray commands ) {
+
+        this.verticle = verticle;
+        this.message = message;
+        this.commands = commands;
+        this.results = new JsonObject[ commands.size() ];
+        this.pending = results.length;
+    }
+
+    void submit() {
+
+        timerId = verticle.getVertx().setTimer( verticle.getTimeOutMillis(), new Handler<Long>() {
+            @Override
+            public void handle( Long id ) {
+
+                timerId = -1;
+                finish();
+            }
+        } );
+        for ( int i = 0; i < results.length && !done; i++ ) {
+            Object o = commands.get( i );
+            if ( !( o instanceof JsonObject ) ) {
+                MemCommand.sendError( new Item( i, new JsonObject() ), "batch item must be a json object" );
+            }
+            else if ( MemCommand.BATCH.name().equalsIgnoreCase( ( ( JsonObject ) o ).getString( "command" ) ) ) {
+                MemCommand.sendError( new Item( i, ( JsonObject ) o ), "batch commands can not be nested" );
+            }
+            else {
+                verticle.dispatch( new Item( i, ( JsonObject ) o ) );
+            }
+        }
+    }
+
+    private void complete( int idx, Object reply ) {
+
+        if ( done || results[ idx ] != null ) {
+            return;
+        }
+        results[ idx ] = reply instanceof JsonObject ? ( JsonObject ) reply : new JsonObject().putString( "status", "ok" );
+        if ( --pending == 0 ) {
+            finish();
+        }
+    }
+
+    private void finish() {
+
+        if ( done ) {
+            return;
+        }
+        done = true;
+        if ( timerId != -1 ) {
+            verticle.getVertx().cancelTimer( timerId );
+        }
+        JsonArray arr = new JsonArray();
+        for ( int i = 0; i < results.length; i++ ) {
+            if ( results[ i ] == null ) {
+                Object o = commands.get( i );
+                results[ i ] = new JsonObject()
+                        .putString( "command", o instanceof JsonObject ? ( ( JsonObject ) o ).getString( "command" ) : null )
+                        .putString( "status", "error" )
+                        .putString( "message", "operation time out" );
+            }
+            arr.addObject( results[ i ] );
+        }
+        MemCommand.sendOk( message, new JsonObject().putArray( "results", arr ) );
+    }
+
+    private class Item extends LocalMessage {
+        private final int idx;
+
+        Item( int idx, JsonObject body ) {
+
+            super( body );
+            this.idx = idx;
+        }
+
+        @Override
+        protected void handleReply( Object reply ) {
+
+            complete( idx, reply );
+        }
+    }
+}
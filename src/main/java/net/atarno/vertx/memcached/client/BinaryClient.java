@@ -0,0 +1,106 @@
+package net.atarno.vertx.memcached.client;
+
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.eventbus.EventBus;
+import org.vertx.java.core.eventbus.Message;
+
+/**
+ * Sends binary requests to the <code>binary-address</code> of a {@link MemClient} verticle.<p>
+ * The handlers may be null when no reply is expected.
+ */
+public class BinaryClient {
+
+    private final EventBus eb;
+    private final String address;
+
+    public BinaryClient( EventBus eb, String address ) {
+
+        this.eb = eb;
+        this.address = address;
+    }
+
+    public void get( String key, Handler<BinaryReply> handler ) {
+
+        send( BinaryCodec.request( BinaryCodec.GET, key, 0, 0, 0, null ), handler );
+    }
+
+    /**
+     * gets the value along with its CAS id
+     */
+    public void gets( String key, Handler<BinaryReply> handler ) {
+
+        send( BinaryCodec.request( BinaryCodec.GETS, key, 0, 0, 0, null ), handler );
+    }
+
+    public void set( String key, byte[] value, int flags, int exp, Handler<BinaryReply> handler ) {
+
+        send( BinaryCodec.request( BinaryCodec.SET, key, flags, exp, 0, value ), handler );
+    }
+
+    public void add( String key, byte[] value, int flags, int exp, Handler<BinaryReply> handler ) {
+
+        send( BinaryCodec.request( BinaryCodec.ADD, key, flags, exp, 0, value ), handler );
+    }
+
+    public void replace( String key, byte[] value, int flags, int exp, Handler<BinaryReply> handler ) {
+
+        send( BinaryCodec.request( BinaryCodec.REPLACE, key, flags, exp, 0, value ), handler );
+    }
+
+    /**
+     * stores the value if the item still has the given CAS id, the reply status is EXISTS otherwise
+     */
+    public void cas( String key, byte[] value, int flags, int exp, long cas, Handler<BinaryReply> handler ) {
+
+        send( BinaryCodec.request( BinaryCodec.CAS, key, flags, exp, cas, value ), handler );
+    }
+
+    public void append( String key, byte[] value, Handler<BinaryReply> handler ) {
+
+        send( BinaryCodec.request( BinaryCodec.APPEND, key, 0, 0, 0, value ), handler );
+    }
+
+    public void prepend( String key, byte[] value, Handler<BinaryReply> handler ) {
+
+        send( BinaryCodec.request( BinaryCodec.PREPEND, key, 0, 0, 0, value ), handler );
+    }
+
+    public void delete( String key, Handler<BinaryReply> handler ) {
+
+        send( BinaryCodec.request( BinaryCodec.DELETE, key, 0, 0, 0, null ), handler );
+    }
+
+    public void touch( String key, int exp, Handler<BinaryReply> handler ) {
+
+        send( BinaryCodec.request( BinaryCodec.TOUCH, key, 0, exp, 0, null ), handler );
+    }
+
+    /**
+     * the new value of the counter is returned by {@link BinaryReply#getLong()}
+     */
+    public void incr( String key, long by, Handler<BinaryReply> handler ) {
+
+        send( BinaryCodec.request( BinaryCodec.INCR, key, 0, 0, 0, BinaryCodec.toBytes( by ) ), handler );
+    }
+
+    public void decr( String key, long by, Handler<BinaryReply> handler ) {
+
+        send( BinaryCodec.request( BinaryCodec.DECR, key, 0, 0, 0, BinaryCodec.toBytes( by ) ), handler );
+    }
+
+    private void send( Buffer request, final Handler<BinaryReply> handler ) {
+
+        if ( handler == null ) {
+            eb.send( address, request );
+            return;
+        }
+        eb.send( address, request, new Handler<Message<Buffer>>() {
+            @Override
+            public void handle( Message<Buffer> reply ) {
+
+                handler.handle( BinaryCodec.decodeReply( reply.body() ) );
+            }
+        } );
+    }
+}
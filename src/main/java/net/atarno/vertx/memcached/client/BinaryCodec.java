@@ -0,0 +1,131 @@
+package net.atarno.vertx.memcached.client;
+
+import org.vertx.java.core.buffer.Buffer;
+
+import java.nio.charset.Charset;
+
+/**
+ * The compact binary framing of the requests and replies sent to the binary address of {@link MemClient}.<p>
+ * A request is <code>opcode:1 flags:4 exp:4 cas:8 keyLength:2 key value</code>, a reply is
+ * <code>status:1 flags:4 cas:8 value</code>. Integers are big-endian, the key is UTF-8 and the value takes the
+ * rest of the frame. The flags are the item flags of memcached, the value bytes are stored and returned as they are.
+ * INCR and DECR carry their delta, and are answered with the new value, as an 8 bytes value. An error reply
+ * carries its message as a UTF-8 value.
+ */
+public final class BinaryCodec {
+
+    public static final byte GET = 0x01;
+    public static final byte SET = 0x02;
+    public static final byte ADD = 0x03;
+    public static final byte REPLACE = 0x04;
+    public static final byte DELETE = 0x05;
+    public static final byte INCR = 0x06;
+    public static final byte DECR = 0x07;
+    public static final byte TOUCH = 0x08;
+    public static final byte GETS = 0x09;
+    public static final byte CAS = 0x0A;
+    public static final byte APPEND = 0x0B;
+    public static final byte PREPEND = 0x0C;
+
+    public static final byte OK = 0;
+    public static final byte NOT_FOUND = 1;
+    public static final byte EXISTS = 2;
+    public static final byte NOT_STORED = 3;
+    public static final byte ERROR = 4;
+
+    static final int REQUEST_HEADER = 19;
+    static final int REPLY_HEADER = 13;
+
+    // indexed by opcode
+    private static final MemCommand[] COMMANDS = {
+            null, MemCommand.GET, MemCommand.SET, MemCommand.ADD, MemCommand.REPLACE, MemCommand.DELETE, MemCommand.INCR,
+            MemCommand.DECR, MemCommand.TOUCH, MemCommand.GETS, MemCommand.CAS, MemCommand.APPEND, MemCommand.PREPEND
+    };
+    private static final byte[] EMPTY = new byte[ 0 ];
+    private static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+    private BinaryCodec() {
+
+    }
+
+    /**
+     * @param value null for none
+     */
+    public static Buffer request( byte opcode, String key, int flags, int exp, long cas, byte[] value ) {
+
+        byte[] k = key.getBytes( UTF8 );
+        if ( k.length > 0xFFFF ) {
+            throw new IllegalArgumentException( "key too long" );
+        }
+        byte[] v = value == null ? EMPTY : value;
+        return new Buffer( REQUEST_HEADER + k.length + v.length )
+                .appendByte( opcode )
+                .appendInt( flags )
+                .appendInt( exp )
+                .appendLong( cas )
+                .appendShort( ( short ) k.length )
+                .appendBytes( k )
+                .appendBytes( v );
+    }
+
+    /**
+     * @param value null for none
+     */
+    public static Buffer reply( byte status, int flags, long cas, byte[] value ) {
+
+        byte[] v = value == null ? EMPTY : value;
+        return new Buffer( REPLY_HEADER + v.length )
+                .appendByte( status )
+                .appendInt( flags )
+                .appendLong( cas )
+                .appendBytes( v );
+    }
+
+    public static Buffer error( String message ) {
+
+        return reply( ERROR, 0, 0, message == null ? null : message.getBytes( UTF8 ) );
+    }
+
+    public static BinaryReply decodeReply( Buffer frame ) {
+
+        if ( frame.length() < REPLY_HEADER ) {
+            return new BinaryReply( ERROR, 0, 0, "truncated reply".getBytes( UTF8 ) );
+        }
+        return new BinaryReply( frame.getByte( 0 ), frame.getInt( 1 ), frame.getLong( 5 ), frame.getBytes( REPLY_HEADER, frame.length() ) );
+    }
+
+    static byte[] toBytes( long n ) {
+
+        byte[] b = new byte[ 8 ];
+        for ( int i = 7; i >= 0; i-- ) {
+            b[ i ] = ( byte ) n;
+            n >>>= 8;
+        }
+        return b;
+    }
+
+    static long toLong( byte[] b ) {
+
+        if ( b.length != 8 ) {
+            throw new IllegalArgumentException( "a number is 8 bytes long" );
+        }
+        long n = 0;
+        for ( byte x : b ) {
+            n = n << 8 | x & 0xFF;
+        }
+        return n;
+    }
+
+    static String toString( byte[] b ) {
+
+        return new String( b, UTF8 );
+    }
+
+    /**
+     * @return the command of the opcode, null if there is no such opcode
+     */
+    static MemCommand commandOf( byte opcode ) {
+
+        return opcode > 0 && opcode < COMMANDS.length ? COMMANDS[ opcode ] : null;
+    }
+}
@@ -1,6 +1,14 @@
 package net.atarno.vertx.memcached.client;
 
 import net.spy.memcached.BinaryConnectionFactory;
+import net.spy.memcached.DefaultHashAlgorithm;
+import net.spy.memcached.HashAlgorithm;
+import net.spy.memcached.MemcachedNode;
+import net.spy.memcached.NodeLocator;
+import net.spy.memcached.OperationFactory;
+
+import java.util.List;
+import java.util.Map;
 
 /**
  * Date: 6/2/14
@@ -9,11 +17,36 @@ import net.spy.memcached.BinaryConnectionFactory;
 public class BinaryConnectionFactoryTO extends BinaryConnectionFactory {
 
     private long _operationTimeOut;
+    private OperationFactory _operationFactory;
+    private Map<String, Integer> _ketamaWeights;
+    private volatile NodeLocator _locator;
 
     public BinaryConnectionFactoryTO( long _operationTimeOut ) {
 
-        super();
+        this( _operationTimeOut, null );
+    }
+
+    /**
+     * @param metrics when not null, the keyed operations are counted per server
+     */
+    BinaryConnectionFactoryTO( long _operationTimeOut, ServerMetrics metrics ) {
+
+        this( _operationTimeOut, metrics, null, DEFAULT_HASH, null );
+    }
+
+    /**
+     * @param metrics       when not null, the keyed operations are counted per server
+     * @param breakers      when not null, the outcomes of the keyed operations are recorded per server
+     * @param hashAlg       the hash of the keys
+     * @param ketamaWeights when not null, servers are picked by {@link WeightedKetamaLocator} with these weights,
+     *                      otherwise by the hash of the key modulo the number of servers
+     */
+    BinaryConnectionFactoryTO( long _operationTimeOut, ServerMetrics metrics, CircuitBreakers breakers, HashAlgorithm hashAlg, Map<String, Integer> ketamaWeights ) {
+
+        super( DEFAULT_OP_QUEUE_LEN, DEFAULT_READ_BUFFER_SIZE, hashAlg );
         this._operationTimeOut = _operationTimeOut;
+        this._operationFactory = metrics == null && breakers == null ? super.getOperationFactory() : new MeteredOperationFactory( metrics, breakers );
+        this._ketamaWeights = ketamaWeights;
     }
 
     @Override
@@ -21,4 +54,39 @@ public class BinaryConnectionFactoryTO extends BinaryConnectionFactory {
 
         return _operationTimeOut;
     }
+
+    @Override
+    public OperationFactory getOperationFactory() {
+
+        return _operationFactory;
+    }
+
+    @Override
+    public NodeLocator createLocator( List<MemcachedNode> nodes ) {
+
+        _locator = _ketamaWeights == null ? super.createLocator( nodes ) : new WeightedKetamaLocator( nodes, getHashAlg(), _ketamaWeights );
+        return _locator;
+    }
+
+    /**
+     * @return the locator of the client built with this factory, unlike {@link net.spy.memcached.MemcachedClient#getNodeLocator()}
+     * it is not copied on every call and it holds the live nodes
+     */
+    NodeLocator getLocator() {
+
+        return _locator;
+    }
+
+    /**
+     * @param name one of "native", "crc", "fnv1-64", "fnv1a-64", "fnv1-32", "fnv1a-32" or "ketama"
+     */
+    static HashAlgorithm hashAlgorithm( String name ) throws Exception {
+
+        for ( DefaultHashAlgorithm h : DefaultHashAlgorithm.values() ) {
+            if ( h.name().replace( "_HASH", "" ).replace( '_', '-' ).equalsIgnoreCase( name ) ) {
+                return h;
+            }
+        }
+        throw new Exception( "unknown hash algorithm: '" + name + "'" );
+    }
 }
@@ -0,0 +1,335 @@
+package net.atarno.vertx.memcached.client;
+
+import net.spy.memcached.CASValue;
+import net.spy.memcached.CachedData;
+import net.spy.memcached.MemcachedClient;
+import net.spy.memcached.internal.AbstractListenableFuture;
+import net.spy.memcached.internal.GetCompletionListener;
+import net.spy.memcached.internal.GetFuture;
+import net.spy.memcached.internal.OperationCompletionListener;
+import net.spy.memcached.internal.OperationFuture;
+import net.spy.memcached.ops.OperationStatus;
+import net.spy.memcached.ops.StatusCode;
+import net.spy.memcached.transcoders.Transcoder;
+import org.vertx.java.core.Context;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.eventbus.Message;
+
+/**
+ * Serves the binary requests of {@link BinaryCodec}, received on the <code>binary-address</code> of the verticle.<p>
+ * The value bytes and the flags of a request are handed to memcached as they are, and read back the same way, so
+ * neither json nor a transcoder is involved. The requests are subject to the circuit breakers and the in-flight
+ * limits (but for queueing, an overflowing request is rejected), their latencies are recorded with the metrics of
+ * the matching command. Writes invalidate the near cache, they are not replicated.<p>
+ * The items written by the json requests are read back as a json GET would see them: a chunked value is assembled
+ * from its chunks, and the value of an envelope is encoded again with the default transcoder, without the envelope.
+ */
+class BinaryProtocol implements Handler<Message<Buffer>> {
+
+    // the item as stored, the flags are the caller's
+    static final Transcoder<CachedData> RAW = new Transcoder<CachedData>() {
+        @Override
+        public boolean asyncDecode( CachedData d ) {
+
+            return false;
+        }
+
+        @Override
+        public CachedData encode( CachedData o ) {
+
+            return o;
+        }
+
+        @Override
+        public CachedData decode( CachedData d ) {
+
+            return d;
+        }
+
+        @Override
+        public int getMaxSize() {
+
+            return CachedData.MAX_SIZE;
+        }
+    };
+
+    // the item as stored, but for a chunk manifest, which is decoded as such
+    private static final Transcoder<Object> ASSEMBLING = Chunks.reading( raw() );
+
+    private final MemClient verticle;
+
+    BinaryProtocol( MemClient verticle ) {
+
+        this.verticle = verticle;
+    }
+
+    @SuppressWarnings( "unchecked" )
+    private static Transcoder<Object> raw() {
+
+        return ( Transcoder<Object> ) ( Transcoder<?> ) RAW;
+    }
+
+    @Override
+    public void handle( Message<Buffer> message ) {
+
+        try {
+            submit( message, message.body() );
+        }
+        catch ( Exception e ) {
+            message.reply( BinaryCodec.error( e.getMessage() ) );
+        }
+    }
+
+    private void submit( Message<Buffer> message, Buffer frame ) throws Exception {
+
+        if ( frame.length() < BinaryCodec.REQUEST_HEADER ) {
+            throw new Exception( "truncated request" );
+        }
+        byte opcode = frame.getByte( 0 );
+        MemCommand command = BinaryCodec.commandOf( opcode );
+        if ( command == null ) {
+            throw new Exception( "unknown opcode: " + opcode );
+        }
+        int flags = frame.getInt( 1 );
+        int exp = frame.getInt( 5 );
+        long cas = frame.getLong( 9 );
+        int valueStart = BinaryCodec.REQUEST_HEADER + ( frame.getShort( 17 ) & 0xFFFF );
+        if ( valueStart == BinaryCodec.REQUEST_HEADER || valueStart > frame.length() ) {
+            throw new Exception( "missing mandatory non-empty key" );
+        }
+        String key = frame.getString( BinaryCodec.REQUEST_HEADER, valueStart, "UTF-8" );
+        byte[] value = frame.getBytes( valueStart, frame.length() );
+        Metrics metrics = verticle.getMetrics();
+        MemcachedClient memClient = null;
+        if ( verticle.screen( key ) ) {
+            memClient = verticle.getAdmission() == null ? verticle.getPool().select() : verticle.getAdmission().tryAdmit();
+        }
+        if ( memClient != null && !verticle.allow( key ) ) {
+            // only an admitted request is counted by the breaker, or let through as its probe
+            memClient = null;
+        }
+        if ( memClient == null ) {
+            if ( metrics != null ) {
+                metrics.rejected( command );
+            }
+            throw new Exception( verticle.isBroken( key ) ? CircuitBreakers.OPEN_ERROR : Admission.OVERLOADED );
+        }
+        Context ctx = verticle.getVertx().currentContext();
+        if ( metrics != null ) {
+            ctx = metrics.start( command, ctx );
+        }
+        if ( opcode != BinaryCodec.GET && opcode != BinaryCodec.GETS ) {
+            verticle.invalidate( key );
+        }
+        ClientPool pool = verticle.getPool();
+        CachedData data = new CachedData( flags, value, CachedData.MAX_SIZE );
+        OperationFuture<?> future;
+        switch ( opcode ) {
+            case BinaryCodec.GET:
+                pool.track( memClient, memClient.asyncGet( key, verticle.getChunks() == null ? raw() : ASSEMBLING ) ).addListener( new OfGet( message, ctx, key ) );
+                return;
+            case BinaryCodec.GETS:
+                future = memClient.asyncGets( key, RAW );
+                break;
+            case BinaryCodec.SET:
+                future = memClient.set( key, exp, data, RAW );
+                break;
+            case BinaryCodec.ADD:
+                future = memClient.add( key, exp, data, RAW );
+                break;
+            case BinaryCodec.REPLACE:
+                future = memClient.replace( key, exp, data, RAW );
+                break;
+            case BinaryCodec.CAS:
+                future = memClient.asyncCAS( key, cas, exp, data, RAW );
+                break;
+            case BinaryCodec.APPEND:
+                future = memClient.append( cas, key, data, RAW );
+                break;
+            case BinaryCodec.PREPEND:
+                future = memClient.prepend( cas, key, data, RAW );
+                break;
+            case BinaryCodec.DELETE:
+                future = cas == 0 ? memClient.delete( key ) : memClient.delete( key, cas );
+                break;
+            case BinaryCodec.TOUCH:
+                future = memClient.touch( key, exp );
+                break;
+            case BinaryCodec.INCR:
+                future = memClient.asyncIncr( key, BinaryCodec.toLong( value ) );
+                break;
+            default:
+                future = memClient.asyncDecr( key, BinaryCodec.toLong( value ) );
+                break;
+        }
+        pool.track( memClient, future ).addListener( new OfOperation( message, ctx ) );
+    }
+
+    private static byte statusOf( AbstractListenableFuture<?, ?> future, OperationStatus status ) {
+
+        if ( future == null || !future.isDone() || status == null ) {
+            return BinaryCodec.ERROR;
+        }
+        if ( status.isSuccess() ) {
+            return BinaryCodec.OK;
+        }
+        StatusCode code = status.getStatusCode();
+        if ( code == StatusCode.ERR_NOT_FOUND ) {
+            return BinaryCodec.NOT_FOUND;
+        }
+        if ( code == StatusCode.ERR_EXISTS ) {
+            return BinaryCodec.EXISTS;
+        }
+        return code == StatusCode.ERR_NOT_STORED ? BinaryCodec.NOT_STORED : BinaryCodec.ERROR;
+    }
+
+    /**
+     * @return the item, or the value of an envelope as a set without a soft time-to-live stores it
+     */
+    private CachedData unwrapped( CachedData d ) {
+
+        if ( ( d.getFlags() & Revalidation.ENVELOPE ) == 0 ) {
+            return d;
+        }
+        Transcoder<Object> tc = verticle.getDefaultTranscoder();
+        return tc.encode( tc.decode( d ) );
+    }
+
+    /**
+     * brings the completion back to the verticle's context and replies from there
+     */
+    private abstract class Pending implements Handler<Void> {
+        final Message<Buffer> message;
+        final Context ctx;
+        AbstractListenableFuture<?, ?> future;
+        OperationStatus status;
+
+        Pending( Message<Buffer> message, Context ctx ) {
+
+            this.message = message;
+            this.ctx = ctx;
+        }
+
+        void completed( AbstractListenableFuture<?, ?> f, OperationStatus s ) {
+
+            future = f;
+            status = s;
+            ctx.runOnContext( this );
+        }
+
+        /**
+         * replies to the request and records it with the metrics
+         */
+        void send( Buffer reply ) {
+
+            message.reply( reply );
+            Metrics.replied( ctx );
+        }
+
+        @Override
+        public void handle( Void v ) {
+
+            byte code = statusOf( future, status );
+            if ( code == BinaryCodec.ERROR ) {
+                send( BinaryCodec.error( status == null ? "operation time out" : status.getMessage() ) );
+                return;
+            }
+            if ( code != BinaryCodec.OK ) {
+                send( BinaryCodec.reply( code, 0, 0, null ) );
+                return;
+            }
+            try {
+                send( reply( future.get() ) );
+            }
+            catch ( Exception e ) {
+                send( BinaryCodec.error( e.getMessage() ) );
+            }
+        }
+
+        Buffer reply( Object result ) throws Exception {
+
+            if ( result instanceof CachedData ) {
+                CachedData d = unwrapped( ( CachedData ) result );
+                return BinaryCodec.reply( BinaryCodec.OK, d.getFlags(), 0, d.getData() );
+            }
+            if ( result instanceof CASValue ) {
+                CachedData d = ( CachedData ) ( ( CASValue<?> ) result ).getValue();
+                if ( ( d.getFlags() & Chunks.MANIFEST ) != 0 ) {
+                    throw new Exception( Chunks.CHUNKED_ERROR );
+                }
+                d = unwrapped( d );
+                return BinaryCodec.reply( BinaryCodec.OK, d.getFlags(), ( ( CASValue<?> ) result ).getCas(), d.getData() );
+            }
+            Long cas = future instanceof OperationFuture ? MemCommand.casOf( ( OperationFuture<?> ) future ) : null;
+            byte[] value = result instanceof Long ? BinaryCodec.toBytes( ( Long ) result ) : null;
+            return BinaryCodec.reply( BinaryCodec.OK, 0, cas == null ? 0 : cas, value );
+        }
+    }
+
+    private class OfOperation extends Pending implements OperationCompletionListener {
+
+        OfOperation( Message<Buffer> message, Context ctx ) {
+
+            super( message, ctx );
+        }
+
+        @Override
+        public void onComplete( OperationFuture<?> f ) throws Exception {
+
+            completed( f, f.getStatus() );
+        }
+    }
+
+    private class OfGet extends Pending implements GetCompletionListener {
+        private final String key;
+
+        OfGet( Message<Buffer> message, Context ctx, String key ) {
+
+            super( message, ctx );
+            this.key = key;
+        }
+
+        @Override
+        public void handle( Void v ) {
+
+            Object result = null;
+            try {
+                result = statusOf( future, status ) == BinaryCodec.OK ? future.get() : null;
+            }
+            catch ( Exception e ) {
+                // replied by the default handling
+            }
+            if ( !( result instanceof Chunks.Manifest ) ) {
+                super.handle( v );
+                return;
+            }
+            // read with the same transcoder, so that a manifest found again on a torn read is assembled as well
+            verticle.getChunks().get( verticle.getPool(), key, ( Chunks.Manifest ) result, ASSEMBLING, new Chunks.Callback() {
+                @Override
+                public void done( Object value, String error ) {
+
+                    if ( Chunks.NOT_FOUND.equals( error ) ) {
+                        send( BinaryCodec.reply( BinaryCodec.NOT_FOUND, 0, 0, null ) );
+                        return;
+                    }
+                    try {
+                        if ( error != null ) {
+                            throw new Exception( error );
+                        }
+                        send( reply( value ) );
+                    }
+                    catch ( Exception e ) {
+                        send( BinaryCodec.error( e.getMessage() ) );
+                    }
+                }
+            }, true );
+        }
+
+        @Override
+        public void onComplete( GetFuture<?> f ) throws Exception {
+
+            completed( f, f.getStatus() );
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package net.atarno.vertx.memcached.client;
+
+/**
+ * A decoded reply of the binary protocol, see {@link BinaryCodec}.
+ */
+public class BinaryReply {
+
+    private final byte status;
+    private final int flags;
+    private final long cas;
+    private final byte[] value;
+
+    BinaryReply( byte status, int flags, long cas, byte[] value ) {
+
+        this.status = status;
+        this.flags = flags;
+        this.cas = cas;
+        this.value = value;
+    }
+
+    /**
+     * @return one of the status codes of {@link BinaryCodec}
+     */
+    public byte getStatus() {
+
+        return status;
+    }
+
+    public boolean isOk() {
+
+        return status == BinaryCodec.OK;
+    }
+
+    /**
+     * @return true if the key does not exist
+     */
+    public boolean isMiss() {
+
+        return status == BinaryCodec.NOT_FOUND;
+    }
+
+    /**
+     * @return the item flags of a read value
+     */
+    public int getFlags() {
+
+        return flags;
+    }
+
+    /**
+     * @return the CAS id of the item read or written, 0 if unknown
+     */
+    public long getCas() {
+
+        return cas;
+    }
+
+    /**
+     * @return the value bytes, empty if the reply has no value
+     */
+    public byte[] getValue() {
+
+        return value;
+    }
+
+    /**
+     * @return the new value of a counter, as answered to INCR and DECR
+     */
+    public long getLong() {
+
+        return BinaryCodec.toLong( value );
+    }
+
+    /**
+     * @return the error message, null if the status is not an error
+     */
+    public String getMessage() {
+
+        return status == BinaryCodec.ERROR ? BinaryCodec.toString( value ) : null;
+    }
+}
@@ -0,0 +1,233 @@
+package net.atarno.vertx.memcached.client;
+
+import net.spy.memcached.MemcachedClient;
+import net.spy.memcached.MemcachedNode;
+import net.spy.memcached.internal.BulkGetCompletionListener;
+import net.spy.memcached.internal.BulkGetFuture;
+import net.spy.memcached.ops.OperationStatus;
+import net.spy.memcached.transcoders.Transcoder;
+import org.vertx.java.core.Context;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Streaming flavour of GETBULK.<p>
+ * The keys are grouped by the memcached node they live on and every group is split into chunks of a bounded size.
+ * Each chunk is fetched with its own multi-get and its values are sent to the stream address as soon as they arrive,
+ * so the time to the first value does not depend on the size of the key set. Once all the chunks are done
+ * (or the operation time-out elapsed) a terminator message is sent to the stream address and the request is replied.
+ * A chunked value is sent once its chunks were read. The keys of the chunks that failed, and the keys that were not
+ * asked for because the circuit breaker of their server is open, are listed as failed.
+ */
+class BulkStream {
+
+    static final int DEFAULT_CHUNK_SIZE = 500;
+
+    private final MemClient verticle;
+    private final MemcachedClient memClient;
+    private final Message<JsonObject> message;
+    private final Context ctx;
+    private final String streamAddress;
+    private final int chunkSize;
+    private final NearCache nearCache;
+    private final JsonArray failed = new JsonArray();
+    private final Set<String> reading = new HashSet<>();
+    private Transcoder<Object> tc;
+    private List<List<String>> chunks;
+    private boolean[] completed;
+    private int pending;
+    private int seq;
+    private int count;
+    private long stamp;
+    private long timerId = -1;
+    private boolean done;
+
+    BulkStream( MemClient verticle, MemcachedClient memClient, Message<JsonObject> message, Context ctx, String streamAddress, int chunkSize, NearCache nearCache ) {
+
+        this.verticle = verticle;
+        this.memClient = memClient;
+        this.message = message;
+        this.ctx = ctx;
+        this.streamAddress = streamAddress;
+        this.chunkSize = chunkSize < 1 ? DEFAULT_CHUNK_SIZE : chunkSize;
+        this.nearCache = nearCache;
+    }
+
+    /**
+     * @param cached values already served by the near cache, sent as the first chunk
+     * @param keys     keys to be fetched from memcached
+     * @param rejected keys rejected by the circuit breakers, reported as failed
+     */
+    void submit( Map<String, Object> cached, List<String> keys, List<String> rejected ) throws Exception {
+
+        tc = verticle.getTranscoder( message );
+        for ( String key : rejected ) {
+            failed.addString( key );
+        }
+        if ( !cached.isEmpty() ) {
+            sendChunk( cached );
+        }
+        Map<MemcachedNode, List<String>> byNode = new LinkedHashMap<>();
+        for ( String key : keys ) {
+            MemcachedNode node = memClient.getNodeLocator().getPrimary( key );
+            List<String> nodeKeys = byNode.get( node );
+            if ( nodeKeys == null ) {
+                nodeKeys = new ArrayList<>();
+                byNode.put( node, nodeKeys );
+            }
+            nodeKeys.add( key );
+        }
+        chunks = new ArrayList<>();
+        for ( List<String> nodeKeys : byNode.values() ) {
+            for ( int i = 0; i < nodeKeys.size(); i += chunkSize ) {
+                chunks.add( nodeKeys.subList( i, Math.min( i + chunkSize, nodeKeys.size() ) ) );
+            }
+        }
+        pending = chunks.size();
+        completed = new boolean[ pending ];
+        if ( pending == 0 ) {
+            finish();
+            return;
+        }
+        stamp = nearCache == null ? 0 : nearCache.stamp();
+        timerId = verticle.getVertx().setTimer( verticle.getTimeOutMillis(), new Handler<Long>() {
+            @Override
+            public void handle( Long id ) {
+
+                timerId = -1;
+                finish();
+            }
+        } );
+        for ( int i = 0; i < chunks.size(); i++ ) {
+            final int idx = i;
+            verticle.getPool().track( memClient, memClient.asyncGetBulk( chunks.get( i ), tc ) ).addListener( new BulkGetCompletionListener() {
+
+                @Override
+                public void onComplete( final BulkGetFuture<?> f ) throws Exception {
+
+                    ctx.runOnContext( new Handler<Void>() {
+
+                        @Override
+                        public void handle( Void v ) {
+
+                            chunkDone( idx, f );
+                        }
+                    } );
+                }
+            } );
+        }
+    }
+
+    @SuppressWarnings( "unchecked" )
+    private void chunkDone( int idx, BulkGetFuture<?> f ) {
+
+        if ( done ) {
+            return;
+        }
+        completed[ idx ] = true;
+        OperationStatus status = f.getStatus();
+        try {
+            if ( !f.isDone() || status == null || !status.isSuccess() ) {
+                throw new Exception( status == null ? "operation time out" : status.getMessage() );
+            }
+            Map<String, Object> result = new LinkedHashMap<>();
+            for ( Map.Entry<String, Object> e : ( ( Map<String, Object> ) f.get() ).entrySet() ) {
+                if ( e.getValue() instanceof Chunks.Manifest ) {
+                    readChunks( e.getKey(), ( Chunks.Manifest ) e.getValue() );
+                    continue;
+                }
+                result.put( e.getKey(), e.getValue() );
+            }
+            if ( nearCache != null ) {
+                for ( Map.Entry<String, Object> e : result.entrySet() ) {
+                    nearCache.put( e.getKey(), e.getValue(), stamp );
+                }
+            }
+            if ( !result.isEmpty() ) {
+                sendChunk( result );
+            }
+        }
+        catch ( Exception e ) {
+            for ( String key : chunks.get( idx ) ) {
+                failed.addString( key );
+            }
+        }
+        if ( --pending == 0 ) {
+            finish();
+        }
+    }
+
+    /**
+     * reads a chunked value, it is sent on its own once read and counts as pending until then
+     */
+    private void readChunks( final String key, Chunks.Manifest manifest ) {
+
+        pending++;
+        reading.add( key );
+        verticle.getChunks().get( verticle.getPool(), key, manifest, tc, new Chunks.Callback() {
+            @Override
+            public void done( Object value, String error ) {
+
+                if ( done ) {
+                    return;
+                }
+                reading.remove( key );
+                if ( value != null ) {
+                    sendChunk( Collections.singletonMap( key, value ) );
+                }
+                else if ( !Chunks.NOT_FOUND.equals( error ) ) {
+                    failed.addString( key );
+                }
+                if ( --pending == 0 ) {
+                    finish();
+                }
+            }
+        }, true );
+    }
+
+    private void sendChunk( Map<String, Object> values ) {
+
+        JsonArray keys = new JsonArray();
+        JsonArray vals = new JsonArray();
+        for ( Map.Entry<String, Object> e : values.entrySet() ) {
+            keys.add( e.getKey() );
+            vals.add( e.getValue() );
+        }
+        count += values.size();
+        verticle.getVertx().eventBus().send( streamAddress, new JsonObject().putNumber( "seq", seq++ ).putArray( "keys", keys ).putArray( "values", vals ) );
+    }
+
+    private void finish() {
+
+        if ( done ) {
+            return;
+        }
+        done = true;
+        if ( timerId != -1 ) {
+            verticle.getVertx().cancelTimer( timerId );
+        }
+        for ( int i = 0; completed != null && i < completed.length; i++ ) {
+            if ( !completed[ i ] ) {
+                for ( String key : chunks.get( i ) ) {
+                    failed.addString( key );
+                }
+            }
+        }
+        for ( String key : reading ) {
+            failed.addString( key );
+        }
+        JsonObject summary = new JsonObject().putNumber( "chunks", seq ).putNumber( "count", count ).putArray( "failed", failed );
+        verticle.getVertx().eventBus().send( streamAddress, summary.copy().putBoolean( "done", true ) );
+        MemCommand.sendOk( message, summary );
+    }
+}
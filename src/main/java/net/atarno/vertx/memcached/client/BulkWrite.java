@@ -0,0 +1,125 @@
+package net.atarno.vertx.memcached.client;
+
+import net.spy.memcached.internal.OperationCompletionListener;
+import net.spy.memcached.internal.OperationFuture;
+import net.spy.memcached.ops.OperationStatus;
+import org.vertx.java.core.Context;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Aggregates the outcome of the single-key operations of a multi-key write (SETBULK, DELETEBULK, TOUCHBULK).<p>
+ * All the operations are queued at once and pipelined by spymemcached, this instance is the one completion
+ * listener shared by all of them. The reply only lists the keys that failed or did not complete in time.
+ */
+class BulkWrite implements OperationCompletionListener {
+
+    private final MemClient verticle;
+    private final Message<JsonObject> message;
+    private final Context ctx;
+    private final Map<String, Boolean> pending = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<JsonObject> failed = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger remaining = new AtomicInteger();
+    private Collection<String> keys;
+    private long timerId = -1;
+    private boolean done;
+
+    BulkWrite( MemClient verticle, Message<JsonObject> message, Context ctx ) {
+
+        this.verticle = verticle;
+        this.message = message;
+        this.ctx = ctx;
+    }
+
+    /**
+     * must be called for every key before its operation is submitted
+     */
+    void expect( Collection<String> keys ) {
+
+        this.keys = keys;
+        remaining.set( keys.size() );
+        for ( String key : keys ) {
+            pending.put( key, Boolean.TRUE );
+            verticle.invalidate( key );
+        }
+        timerId = verticle.getVertx().setTimer( verticle.getTimeOutMillis(), new Handler<Long>() {
+            @Override
+            public void handle( Long id ) {
+
+                timerId = -1;
+                finish();
+            }
+        } );
+    }
+
+    @Override
+    public void onComplete( OperationFuture<?> f ) throws Exception {
+
+        String key = f.getKey();
+        OperationStatus status = f.getStatus();
+        if ( pending.remove( key ) == null ) {
+            return;
+        }
+        if ( status == null || !status.isSuccess() ) {
+            failed.add( failure( key, status == null ? "system error" : status.getMessage() ) );
+        }
+        if ( remaining.decrementAndGet() == 0 ) {
+            ctx.runOnContext( new Handler<Void>() {
+                @Override
+                public void handle( Void v ) {
+
+                    finish();
+                }
+            } );
+        }
+    }
+
+    /**
+     * fails a key whose operation is not submitted, on the verticle's context
+     */
+    void rejected( String key, String reason ) {
+
+        if ( pending.remove( key ) == null ) {
+            return;
+        }
+        failed.add( failure( key, reason ) );
+        if ( remaining.decrementAndGet() == 0 ) {
+            finish();
+        }
+    }
+
+    private void finish() {
+
+        if ( done ) {
+            return;
+        }
+        done = true;
+        if ( timerId != -1 ) {
+            verticle.getVertx().cancelTimer( timerId );
+        }
+        JsonArray failures = new JsonArray();
+        for ( JsonObject f : failed ) {
+            failures.addObject( f );
+        }
+        for ( String key : pending.keySet() ) {
+            failures.addObject( failure( key, "operation time out" ) );
+        }
+        for ( String key : keys ) {
+            verticle.invalidate( key );
+        }
+        MemCommand.sendOk( message, new JsonObject().putNumber( "total", keys.size() ).putArray( "failed", failures ) );
+    }
+
+    private static JsonObject failure( String key, String message ) {
+
+        return new JsonObject().putString( "key", key ).putString( "message", message );
+    }
+}
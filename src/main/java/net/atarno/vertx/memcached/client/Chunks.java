@@ -0,0 +1,442 @@
+package net.atarno.vertx.memcached.client;
+
+import net.spy.memcached.CachedData;
+import net.spy.memcached.KeyUtil;
+import net.spy.memcached.MemcachedClient;
+import net.spy.memcached.MemcachedClientIF;
+import net.spy.memcached.internal.BulkGetCompletionListener;
+import net.spy.memcached.internal.BulkGetFuture;
+import net.spy.memcached.internal.GetCompletionListener;
+import net.spy.memcached.internal.GetFuture;
+import net.spy.memcached.internal.OperationCompletionListener;
+import net.spy.memcached.internal.OperationFuture;
+import net.spy.memcached.ops.OperationStatus;
+import net.spy.memcached.transcoders.Transcoder;
+import org.vertx.java.core.Context;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonObject;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+/**
+ * Splits the values whose encoded size is above <code>memcached.chunk.size</code> across several items.<p>
+ * The encoded value is cut into chunks stored under the key followed by {@link #CHUNK_SUFFIX} and the chunk number,
+ * each chunk starts with the version of the write, a random number. Once all the chunks are stored, a manifest is
+ * stored under the key itself: the version, the flags of the encoded value, its length, the number of chunks and
+ * the CRC32 of the value. The manifest carries the {@link #MANIFEST} flag, which the transcoders of the verticle
+ * turn into a {@link Manifest} when they read it. A GET reading a manifest then reads all the chunks with one
+ * multi-get and checks them against it: a missing chunk, a chunk of another version or a wrong checksum make a
+ * torn read, the chunks having been evicted or overwritten meanwhile. A torn read is retried once from the manifest,
+ * then answered as a miss. A DELETE reads the manifest first, to delete the chunks along with it. SETBULK and
+ * DELETEBULK handle their keys the same way.<p>
+ * The replica gets its copy of a chunked value the same way, a fallback read then reads the chunks from the replica.
+ * Chunked values are not near-cached. The chunks a smaller value leaves behind are left to expire.
+ * Only touched from the verticle's event loop.
+ */
+class Chunks {
+
+    static final int MANIFEST = 0x40000;
+    static final String CHUNK_SUFFIX = "~chunk";
+    static final String CHUNKED_ERROR = "the value is chunked, only get reads it";
+    static final String NOT_FOUND = "Not found";
+    private static final int VERSION_SIZE = 8;
+
+    interface Callback {
+        /**
+         * @param value the value, null if it could not be read
+         * @param error the failure description, null on success, {@link Chunks#NOT_FOUND} if the value is gone
+         */
+        void done( Object value, String error );
+    }
+
+    private final MemClient verticle;
+    private final Context ctx;
+    private final int chunkSize;
+    private long written;
+    private long chunksWritten;
+    private long read;
+    private long torn;
+    private long retried;
+
+    Chunks( MemClient verticle, Context ctx, int chunkSize ) {
+
+        this.verticle = verticle;
+        this.ctx = ctx;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * @return a transcoder that reads manifests as {@link Manifest}, and any other item with the given transcoder
+     */
+    static Transcoder<Object> reading( final Transcoder<Object> tc ) {
+
+        return new Transcoder<Object>() {
+            @Override
+            public boolean asyncDecode( CachedData d ) {
+
+                return tc.asyncDecode( d );
+            }
+
+            @Override
+            public CachedData encode( Object o ) {
+
+                return tc.encode( o );
+            }
+
+            @Override
+            public Object decode( CachedData d ) {
+
+                return ( d.getFlags() & MANIFEST ) != 0 ? Manifest.decode( d.getData() ) : tc.decode( d );
+            }
+
+            @Override
+            public int getMaxSize() {
+
+                return tc.getMaxSize();
+            }
+        };
+    }
+
+    static String chunkKey( String key, int i ) {
+
+        return key + CHUNK_SUFFIX + i;
+    }
+
+    /**
+     * @return true if the encoded value has to be chunked
+     */
+    boolean isLarge( CachedData data ) {
+
+        return data.getData().length > chunkSize;
+    }
+
+    /**
+     * writes the chunks of an encoded value in parallel, then its manifest
+     *
+     * @param completion listens to the write of the manifest
+     * @param failed     gets the error if a chunk could not be written, on the verticle's context
+     * @throws Exception if the key of a chunk would be too long, nothing is written then
+     */
+    void set( MemcachedClient memClient, String key, int exp, CachedData data, OperationCompletionListener completion, Handler<String> failed ) throws Exception {
+
+        int count = set( verticle.getPool(), memClient, key, exp, data, completion, failed );
+        written++;
+        chunksWritten += count;
+    }
+
+    /**
+     * writes an encoded value to the given pool, the replica's copies are not counted here but by the replica
+     *
+     * @return the number of chunks
+     * @throws Exception if the key of a chunk would be too long, nothing is written then
+     */
+    int set( ClientPool pool, MemcachedClient memClient, String key, int exp, CachedData data, OperationCompletionListener completion, Handler<String> failed ) throws Exception {
+
+        byte[] value = data.getData();
+        int count = ( value.length + chunkSize - 1 ) / chunkSize;
+        if ( KeyUtil.getKeyBytes( chunkKey( key, count - 1 ) ).length > MemcachedClientIF.MAX_KEY_LENGTH ) {
+            throw new Exception( "Key is too long to be chunked (maxlen = " + ( MemcachedClientIF.MAX_KEY_LENGTH - CHUNK_SUFFIX.length() - String.valueOf( count - 1 ).length() ) + ")" );
+        }
+        long version = ThreadLocalRandom.current().nextLong();
+        CRC32 crc = new CRC32();
+        crc.update( value );
+        Manifest manifest = new Manifest( version, data.getFlags(), value.length, count, ( int ) crc.getValue() );
+        Write write = new Write( pool, memClient, key, exp, manifest, completion, failed );
+        for ( int i = 0; i < count; i++ ) {
+            int from = i * chunkSize;
+            int length = Math.min( chunkSize, value.length - from );
+            byte[] chunk = ByteBuffer.allocate( VERSION_SIZE + length ).putLong( version ).put( value, from, length ).array();
+            pool.track( memClient, memClient.set( chunkKey( key, i ), exp, new CachedData( 0, chunk, chunk.length ), BinaryProtocol.RAW ) ).addListener( write );
+        }
+        return count;
+    }
+
+    /**
+     * reads the chunks of a manifest and replies to the GET requests of the key with the value
+     *
+     * @param pool the pool the manifest was read from, the primary one or its replica
+     * @param tc   the transcoder the manifest was read with
+     */
+    void get( ClientPool pool, final String key, Manifest manifest, Transcoder<Object> tc, final Collection<Message<JsonObject>> messages, boolean retry ) {
+
+        get( pool, key, manifest, tc, new Callback() {
+            @Override
+            public void done( Object value, String error ) {
+
+                for ( Message<JsonObject> m : messages ) {
+                    if ( error != null ) {
+                        MemCommand.sendError( m, error );
+                        continue;
+                    }
+                    try {
+                        MemCommand.sendOk( m, MemCommand.parseForJson( new JsonObject().putString( "key", key ), "value", value ) );
+                    }
+                    catch ( Exception e ) {
+                        MemCommand.sendError( m, e.getMessage() );
+                    }
+                }
+            }
+        }, retry );
+    }
+
+    /**
+     * reads the chunks of a manifest and hands the value to the callback, on the verticle's context
+     *
+     * @param pool the pool the manifest was read from, the primary one or its replica
+     * @param tc   the transcoder the manifest was read with
+     */
+    void get( final ClientPool pool, final String key, final Manifest manifest, final Transcoder<Object> tc, final Callback callback, final boolean retry ) {
+
+        read++;
+        List<String> keys = new ArrayList<>( manifest.count );
+        for ( int i = 0; i < manifest.count; i++ ) {
+            keys.add( chunkKey( key, i ) );
+        }
+        MemcachedClient memClient = pool.select();
+        pool.track( memClient, memClient.asyncGetBulk( keys, BinaryProtocol.RAW ) ).addListener( new BulkGetCompletionListener() {
+            @Override
+            public void onComplete( final BulkGetFuture<?> f ) throws Exception {
+
+                ctx.runOnContext( new Handler<Void>() {
+                    @Override
+                    public void handle( Void v ) {
+
+                        assembled( pool, key, manifest, tc, callback, retry, f );
+                    }
+                } );
+            }
+        } );
+    }
+
+    @SuppressWarnings( "unchecked" )
+    private void assembled( ClientPool pool, String key, Manifest manifest, Transcoder<Object> tc, Callback callback, boolean retry, BulkGetFuture<?> f ) {
+
+        OperationStatus status = f.getStatus();
+        if ( !f.isDone() || status == null || !status.isSuccess() ) {
+            callback.done( null, status == null || !f.isDone() ? "operation time out" : status.getMessage() );
+            return;
+        }
+        byte[] value;
+        try {
+            value = manifest.assemble( key, ( Map<String, CachedData> ) f.get() );
+        }
+        catch ( Exception e ) {
+            callback.done( null, e.getMessage() );
+            return;
+        }
+        if ( value == null ) {
+            torn++;
+            if ( retry ) {
+                retried++;
+                reread( pool, key, tc, callback );
+            }
+            else {
+                callback.done( null, NOT_FOUND );
+            }
+            return;
+        }
+        Object decoded;
+        try {
+            decoded = tc.decode( new CachedData( manifest.flags, value, tc.getMaxSize() ) );
+        }
+        catch ( Exception e ) {
+            callback.done( null, e.getMessage() );
+            return;
+        }
+        callback.done( decoded, null );
+    }
+
+    /**
+     * reads the manifest again after a torn read, a new version is read once more but not retried
+     */
+    private void reread( final ClientPool pool, final String key, final Transcoder<Object> tc, final Callback callback ) {
+
+        MemcachedClient memClient = pool.select();
+        pool.track( memClient, memClient.asyncGet( key, tc ) ).addListener( new GetCompletionListener() {
+            @Override
+            public void onComplete( final GetFuture<?> f ) throws Exception {
+
+                ctx.runOnContext( new Handler<Void>() {
+                    @Override
+                    public void handle( Void v ) {
+
+                        OperationStatus status = f.getStatus();
+                        Object value;
+                        try {
+                            value = f.isDone() && status != null && status.isSuccess() ? f.get() : null;
+                        }
+                        catch ( Exception e ) {
+                            value = null;
+                        }
+                        if ( value instanceof Manifest ) {
+                            get( pool, key, ( Manifest ) value, tc, callback, false );
+                            return;
+                        }
+                        if ( value == null ) {
+                            callback.done( null, status == null || status.isSuccess() ? NOT_FOUND : status.getMessage() );
+                            return;
+                        }
+                        // overwritten by a value that is not chunked
+                        callback.done( value, null );
+                    }
+                } );
+            }
+        } );
+    }
+
+    /**
+     * reads the manifest of the key, deletes the key and, if it was chunked, its chunks
+     *
+     * @param pool       the pool of the client, the primary one or its replica
+     * @param completion listens to the delete of the key
+     */
+    void delete( final ClientPool pool, final MemcachedClient memClient, final String key, final OperationCompletionListener completion ) {
+
+        pool.track( memClient, memClient.asyncGet( key, BinaryProtocol.RAW ) ).addListener( new GetCompletionListener() {
+            @Override
+            public void onComplete( GetFuture<?> f ) throws Exception {
+
+                Object item = f.getStatus() != null && f.getStatus().isSuccess() ? f.get() : null;
+                pool.track( memClient, memClient.delete( key ) ).addListener( completion );
+                if ( !( item instanceof CachedData ) || ( ( ( CachedData ) item ).getFlags() & MANIFEST ) == 0 ) {
+                    return;
+                }
+                Manifest manifest = Manifest.decode( ( ( CachedData ) item ).getData() );
+                for ( int i = 0; i < manifest.count; i++ ) {
+                    pool.track( memClient, memClient.delete( chunkKey( key, i ) ) );
+                }
+            }
+        } );
+    }
+
+    JsonObject toJson() {
+
+        return new JsonObject()
+                .putNumber( "size", chunkSize )
+                .putNumber( "written", written )
+                .putNumber( "chunks", chunksWritten )
+                .putNumber( "read", read )
+                .putNumber( "torn", torn )
+                .putNumber( "retried", retried );
+    }
+
+    /**
+     * what a chunked value is made of, stored under its key
+     */
+    static class Manifest {
+        private static final int SIZE = 24;
+
+        final long version;
+        final int flags;
+        final int length;
+        final int count;
+        final int crc;
+
+        Manifest( long version, int flags, int length, int count, int crc ) {
+
+            this.version = version;
+            this.flags = flags;
+            this.length = length;
+            this.count = count;
+            this.crc = crc;
+        }
+
+        static Manifest decode( byte[] data ) {
+
+            if ( data.length != SIZE ) {
+                throw new IllegalStateException( "corrupted chunk manifest" );
+            }
+            ByteBuffer b = ByteBuffer.wrap( data );
+            return new Manifest( b.getLong(), b.getInt(), b.getInt(), b.getInt(), b.getInt() );
+        }
+
+        byte[] encode() {
+
+            return ByteBuffer.allocate( SIZE ).putLong( version ).putInt( flags ).putInt( length ).putInt( count ).putInt( crc ).array();
+        }
+
+        /**
+         * @return the value, null if the chunks do not make this version of it
+         */
+        byte[] assemble( String key, Map<String, CachedData> chunks ) {
+
+            ByteBuffer value = ByteBuffer.allocate( length );
+            for ( int i = 0; i < count; i++ ) {
+                CachedData chunk = chunks.get( chunkKey( key, i ) );
+                if ( chunk == null ) {
+                    return null;
+                }
+                ByteBuffer b = ByteBuffer.wrap( chunk.getData() );
+                if ( b.remaining() < VERSION_SIZE || b.getLong() != version || b.remaining() > value.remaining() ) {
+                    return null;
+                }
+                value.put( b );
+            }
+            if ( value.hasRemaining() ) {
+                return null;
+            }
+            CRC32 c = new CRC32();
+            c.update( value.array() );
+            return ( int ) c.getValue() == crc ? value.array() : null;
+        }
+    }
+
+    /**
+     * counts the chunk writes down and writes the manifest once they all succeeded
+     */
+    private class Write implements OperationCompletionListener, Handler<Void> {
+        private final ClientPool pool;
+        private final MemcachedClient memClient;
+        private final String key;
+        private final int exp;
+        private final Manifest manifest;
+        private final OperationCompletionListener completion;
+        private final Handler<String> failed;
+        private final AtomicInteger remaining;
+        private volatile String error;
+
+        Write( ClientPool pool, MemcachedClient memClient, String key, int exp, Manifest manifest, OperationCompletionListener completion, Handler<String> failed ) {
+
+            this.pool = pool;
+            this.memClient = memClient;
+            this.key = key;
+            this.exp = exp;
+            this.manifest = manifest;
+            this.completion = completion;
+            this.failed = failed;
+            this.remaining = new AtomicInteger( manifest.count );
+        }
+
+        @Override
+        public void onComplete( OperationFuture<?> f ) throws Exception {
+
+            OperationStatus status = f.getStatus();
+            if ( status == null || !status.isSuccess() ) {
+                error = status == null ? "operation time out" : status.getMessage();
+            }
+            if ( remaining.decrementAndGet() == 0 ) {
+                ctx.runOnContext( this );
+            }
+        }
+
+        @Override
+        public void handle( Void v ) {
+
+            if ( error != null ) {
+                // the manifest in place, if any, now reads as torn
+                failed.handle( error );
+                return;
+            }
+            byte[] data = manifest.encode();
+            pool.track( memClient, memClient.set( key, exp, new CachedData( MANIFEST, data, data.length ), BinaryProtocol.RAW ) ).addListener( completion );
+        }
+    }
+}
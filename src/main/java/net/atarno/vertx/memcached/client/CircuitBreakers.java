@@ -0,0 +1,232 @@
+package net.atarno.vertx.memcached.client;
+
+import net.spy.memcached.MemcachedNode;
+import org.vertx.java.core.json.JsonObject;
+
+import java.net.SocketAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A circuit breaker per memcached server.<p>
+ * The breaker of a server opens when, within a window, enough operations completed on it and too many of them
+ * failed or timed out, or when it stopped answering: operations were routed to it and none completed for longer
+ * than the operation time-out. While open, the operations routed to the server fail at once instead of waiting
+ * for the time-out. After a while a single probe operation is let through (half-open): its success closes the
+ * breaker, its failure or its silence for the time-out opens it again. The outcomes of the operations created
+ * before the probe are late answers of the sick server, they neither close nor open a half-open breaker.<p>
+ * {@link #allow(MemcachedNode)} is only asked for requests that are about to send their operations, since it lets
+ * the probe through and counts the operation as unanswered, {@link #screen(MemcachedNode)} turns requests away
+ * before they take an in-flight slot.<p>
+ * The outcomes are recorded by {@link MeteredOperationFactory} on the spymemcached IO threads, the admission
+ * checks are done on the event loops, hence the atomics.
+ */
+class CircuitBreakers {
+
+    static final String OPEN_ERROR = "server unavailable: circuit breaker open";
+
+    private static final int CLOSED = 0;
+    private static final int OPEN = 1;
+    private static final int HALF_OPEN = 2;
+    private static final String[] STATES = { "closed", "open", "half-open" };
+
+    private final ConcurrentMap<SocketAddress, Breaker> breakers = new ConcurrentHashMap<>();
+    private final long windowMillis;
+    private final int volume;
+    private final int failureRate;
+    private final long openMillis;
+    private final long timeOutMillis;
+
+    /**
+     * @param volume      the number of operations a window needs before its failure rate is considered
+     * @param failureRate the percentage of failed operations that opens the breaker
+     */
+    CircuitBreakers( long windowMillis, int volume, int failureRate, long openMillis, long timeOutMillis ) {
+
+        this.windowMillis = windowMillis;
+        this.volume = volume;
+        this.failureRate = failureRate;
+        this.openMillis = openMillis;
+        this.timeOutMillis = timeOutMillis;
+    }
+
+    /**
+     * @return false if operations must not be sent to the node, true if the node is unknown
+     */
+    boolean allow( MemcachedNode node ) {
+
+        return node == null || get( node.getSocketAddress() ).allow();
+    }
+
+    /**
+     * checked before a request is admitted, unlike {@link #allow(MemcachedNode)} it neither lets the probe through
+     * nor counts the operation, the request is asked again once admitted
+     *
+     * @return false if the breaker of the node is open and not due for a probe, or its probe is in flight
+     */
+    boolean screen( MemcachedNode node ) {
+
+        return node == null || get( node.getSocketAddress() ).screen();
+    }
+
+    /**
+     * unlike {@link #allow(MemcachedNode)} it never lets a probe through
+     *
+     * @return true if the breaker of the node is not closed
+     */
+    boolean isOpen( MemcachedNode node ) {
+
+        return node != null && get( node.getSocketAddress() ).state.get() != CLOSED;
+    }
+
+    /**
+     * @param created when the operation was created, in {@link System#nanoTime()}
+     */
+    void record( SocketAddress sa, boolean failed, long created ) {
+
+        get( sa ).record( failed, created );
+    }
+
+    JsonObject toJson() {
+
+        JsonObject json = new JsonObject();
+        for ( Map.Entry<SocketAddress, Breaker> e : breakers.entrySet() ) {
+            json.putObject( StatsCollector.toString( e.getKey() ), e.getValue().toJson() );
+        }
+        return json;
+    }
+
+    private Breaker get( SocketAddress sa ) {
+
+        Breaker b = breakers.get( sa );
+        if ( b == null ) {
+            Breaker created = new Breaker();
+            b = breakers.putIfAbsent( sa, created );
+            if ( b == null ) {
+                b = created;
+            }
+        }
+        return b;
+    }
+
+    private class Breaker {
+        final AtomicInteger state = new AtomicInteger( CLOSED );
+        final AtomicInteger requests = new AtomicInteger();
+        final AtomicInteger failures = new AtomicInteger();
+        // operations admitted since the last completion, and when the first of them was admitted
+        final AtomicInteger unanswered = new AtomicInteger();
+        final AtomicLong unansweredSince = new AtomicLong();
+        final AtomicLong rejected = new AtomicLong();
+        volatile long windowStart = System.currentTimeMillis();
+        volatile long openedAt;
+        // when the probe was let through, the operations created since then are the probe's
+        volatile long probeCreated;
+        volatile long opened;
+
+        boolean screen() {
+
+            switch ( state.get() ) {
+                case CLOSED:
+                    return true;
+                case OPEN:
+                    if ( System.currentTimeMillis() - openedAt >= openMillis ) {
+                        return true;
+                    }
+                    break;
+                default:
+                    break;
+            }
+            rejected.incrementAndGet();
+            return false;
+        }
+
+        boolean allow() {
+
+            long now = System.currentTimeMillis();
+            switch ( state.get() ) {
+                case CLOSED:
+                    if ( unanswered.getAndIncrement() == 0 ) {
+                        unansweredSince.set( now );
+                    }
+                    else if ( unanswered.get() >= volume && now - unansweredSince.get() > timeOutMillis ) {
+                        // the server takes operations but does not answer
+                        trip( CLOSED, now );
+                    }
+                    return true;
+                case OPEN:
+                    if ( now - openedAt >= openMillis && state.compareAndSet( OPEN, HALF_OPEN ) ) {
+                        openedAt = now;
+                        probeCreated = System.nanoTime();
+                        return true;
+                    }
+                    break;
+                default:
+                    // the probe is lost or hangs
+                    if ( now - openedAt > timeOutMillis ) {
+                        trip( HALF_OPEN, now );
+                    }
+                    break;
+            }
+            rejected.incrementAndGet();
+            return false;
+        }
+
+        void record( boolean failed, long created ) {
+
+            long now = System.currentTimeMillis();
+            unanswered.set( 0 );
+            switch ( state.get() ) {
+                case CLOSED:
+                    if ( now - windowStart > windowMillis ) {
+                        windowStart = now;
+                        requests.set( 0 );
+                        failures.set( 0 );
+                    }
+                    int r = requests.incrementAndGet();
+                    int f = failed ? failures.incrementAndGet() : failures.get();
+                    if ( failed && r >= volume && f * 100L >= ( long ) failureRate * r ) {
+                        trip( CLOSED, now );
+                    }
+                    break;
+                case HALF_OPEN:
+                    if ( created - probeCreated < 0 ) {
+                        // the late outcome of an operation sent before the probe
+                        break;
+                    }
+                    if ( failed ) {
+                        trip( HALF_OPEN, now );
+                    }
+                    else if ( state.compareAndSet( HALF_OPEN, CLOSED ) ) {
+                        windowStart = now;
+                        requests.set( 0 );
+                        failures.set( 0 );
+                    }
+                    break;
+                default:
+                    // the late outcome of an operation sent before the breaker opened
+                    break;
+            }
+        }
+
+        void trip( int from, long now ) {
+
+            if ( state.compareAndSet( from, OPEN ) ) {
+                openedAt = now;
+                opened++;
+            }
+        }
+
+        JsonObject toJson() {
+
+            return new JsonObject()
+                    .putString( "state", STATES[ state.get() ] )
+                    .putNumber( "requests", requests.get() )
+                    .putNumber( "failures", failures.get() )
+                    .putNumber( "opened", opened )
+                    .putNumber( "rejected", rejected.get() );
+        }
+    }
+}
@@ -0,0 +1,283 @@
+package net.atarno.vertx.memcached.client;
+
+import net.spy.memcached.MemcachedClient;
+import net.spy.memcached.MemcachedNode;
+import net.spy.memcached.NodeLocator;
+import net.spy.memcached.internal.BulkGetCompletionListener;
+import net.spy.memcached.internal.BulkGetFuture;
+import net.spy.memcached.internal.GetCompletionListener;
+import net.spy.memcached.internal.GetFuture;
+import net.spy.memcached.internal.OperationCompletionListener;
+import net.spy.memcached.internal.OperationFuture;
+import org.vertx.java.core.Context;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * The pool of spymemcached clients of a verticle.<p>
+ * Keeps track of the operations each client has in flight: a counter is incremented when an operation is
+ * submitted through {@link #track(MemcachedClient, Future)} and decremented by its completion listener.
+ * An operation is counted by the pool its client belongs to, whichever pool tracks it: a request that selected its
+ * client before the pool was swapped out by a reconfiguration may submit more operations afterwards, and the
+ * replaced pool is only shut down once they completed.
+ * The choice of the client for the next operation is delegated to a {@link PoolBalancer}.
+ */
+public class ClientPool {
+
+    // the pool of every client that was not shut down, across the verticles
+    private static final ConcurrentMap<MemcachedClient, ClientPool> OWNERS = new ConcurrentHashMap<>();
+
+    private final MemcachedClient[] clients;
+    private final PoolBalancer balancer;
+    private final NodeLocator locator;
+    private final ClientPool replica;
+    private final AtomicIntegerArray outstanding;
+    private final AtomicInteger cursor = new AtomicInteger();
+    private final Releaser[] releasers;
+    private volatile Handler<Void> waiter;
+    private volatile Context waiterCtx;
+
+    public ClientPool( MemcachedClient[] clients, PoolBalancer balancer ) {
+
+        this( clients, balancer, null, null );
+    }
+
+    /**
+     * @param locator the node locator the clients were built with, used to tell whether a key's server is up
+     * @param replica the pool of the replica servers, when writes are replicated
+     */
+    public ClientPool( MemcachedClient[] clients, PoolBalancer balancer, NodeLocator locator, ClientPool replica ) {
+
+        this.clients = clients;
+        this.balancer = balancer;
+        this.locator = locator;
+        this.replica = replica;
+        this.outstanding = new AtomicIntegerArray( clients.length );
+        this.releasers = new Releaser[ clients.length ];
+        for ( int i = 0; i < clients.length; i++ ) {
+            releasers[ i ] = new Releaser( i );
+            if ( clients[ i ] != null ) {
+                OWNERS.put( clients[ i ], this );
+            }
+        }
+    }
+
+    public MemcachedClient select() {
+
+        return clients[ balancer.select( this ) ];
+    }
+
+    /**
+     * @return the client picked by the balancer, or the least loaded one if the balancer picked a client
+     * with <code>maxOutstanding</code> operations in flight, null if all the clients are that loaded
+     */
+    public MemcachedClient select( int maxOutstanding ) {
+
+        int best = balancer.select( this );
+        int min = outstanding.get( best );
+        for ( int i = 0; i < clients.length && min >= maxOutstanding; i++ ) {
+            int o = outstanding.get( i );
+            if ( o < min ) {
+                min = o;
+                best = i;
+            }
+        }
+        return min < maxOutstanding ? clients[ best ] : null;
+    }
+
+    /**
+     * the waiter is called on the given context once, after the next operation of this pool completed
+     */
+    void wakeOnRelease( Context ctx, Handler<Void> waiter ) {
+
+        this.waiterCtx = ctx;
+        this.waiter = waiter;
+    }
+
+    /**
+     * counts the operation as outstanding on the given client until it completes
+     *
+     * @return the future itself, so that the call can be chained
+     */
+    public <F extends Future<?>> F track( MemcachedClient memClient, F future ) {
+
+        int idx = indexOf( memClient );
+        if ( idx < 0 ) {
+            // the client of a pool that was swapped out meanwhile, which is drained until the operation completes
+            ClientPool owner = OWNERS.get( memClient );
+            return owner == null || owner == this ? future : owner.track( memClient, future );
+        }
+        // the futures of spymemcached only accept the listener type of their own kind
+        if ( future instanceof OperationFuture ) {
+            outstanding.incrementAndGet( idx );
+            ( ( OperationFuture<?> ) future ).addListener( releasers[ idx ].operation );
+        }
+        else if ( future instanceof GetFuture ) {
+            outstanding.incrementAndGet( idx );
+            ( ( GetFuture<?> ) future ).addListener( releasers[ idx ].get );
+        }
+        else if ( future instanceof BulkGetFuture ) {
+            outstanding.incrementAndGet( idx );
+            ( ( BulkGetFuture<?> ) future ).addListener( releasers[ idx ].bulkGet );
+        }
+        return future;
+    }
+
+    /**
+     * @return the pool of the replica servers, or null
+     */
+    public ClientPool getReplica() {
+
+        return replica;
+    }
+
+    /**
+     * @return the server the key is located on, null if the locator is unknown
+     */
+    public MemcachedNode nodeOf( String key ) {
+
+        return locator == null ? null : locator.getPrimary( key );
+    }
+
+    /**
+     * @return false if the server of the key is known to be down
+     */
+    public boolean isAvailable( String key ) {
+
+        return locator == null || locator.getPrimary( key ).isActive();
+    }
+
+    public int size() {
+
+        return clients.length;
+    }
+
+    public MemcachedClient get( int idx ) {
+
+        return clients[ idx ];
+    }
+
+    public int getOutstanding( int idx ) {
+
+        return outstanding.get( idx );
+    }
+
+    /**
+     * @return the number of operations in flight on the clients of this pool, the replica excluded
+     */
+    public int inFlight() {
+
+        int total = 0;
+        for ( int i = 0; i < clients.length; i++ ) {
+            total += outstanding.get( i );
+        }
+        return total;
+    }
+
+    /**
+     * @return the number of operations in flight on all the clients
+     */
+    public int totalOutstanding() {
+
+        int total = replica == null ? 0 : replica.totalOutstanding();
+        for ( int i = 0; i < clients.length; i++ ) {
+            total += outstanding.get( i );
+        }
+        return total;
+    }
+
+    /**
+     * @return the next index in a round-robin sequence
+     */
+    public int nextIndex() {
+
+        return ( cursor.getAndIncrement() & Integer.MAX_VALUE ) % clients.length;
+    }
+
+    public void shutdown() {
+
+        for ( MemcachedClient c : clients ) {
+            if ( c != null ) {
+                OWNERS.remove( c, this );
+                c.shutdown();
+            }
+        }
+        if ( replica != null ) {
+            replica.shutdown();
+        }
+    }
+
+    public JsonObject toJson() {
+
+        JsonArray counts = new JsonArray();
+        for ( int i = 0; i < clients.length; i++ ) {
+            counts.addNumber( outstanding.get( i ) );
+        }
+        JsonObject json = new JsonObject().putString( "balancer", String.valueOf( balancer ) ).putArray( "outstanding", counts );
+        if ( replica != null ) {
+            json.putObject( "replica", replica.toJson() );
+        }
+        return json;
+    }
+
+    private int indexOf( MemcachedClient memClient ) {
+
+        for ( int i = 0; i < clients.length; i++ ) {
+            if ( clients[ i ] == memClient ) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void release( int idx ) {
+
+        outstanding.decrementAndGet( idx );
+        Handler<Void> w = waiter;
+        if ( w != null ) {
+            waiter = null;
+            waiterCtx.runOnContext( w );
+        }
+    }
+
+    /**
+     * decrements the outstanding counter of a client once an operation completes
+     */
+    private class Releaser {
+        final OperationCompletionListener operation;
+        final GetCompletionListener get;
+        final BulkGetCompletionListener bulkGet;
+
+        Releaser( final int idx ) {
+
+            operation = new OperationCompletionListener() {
+                @Override
+                public void onComplete( OperationFuture<?> future ) throws Exception {
+
+                    release( idx );
+                }
+            };
+            get = new GetCompletionListener() {
+                @Override
+                public void onComplete( GetFuture<?> future ) throws Exception {
+
+                    release( idx );
+                }
+            };
+            bulkGet = new BulkGetCompletionListener() {
+                @Override
+                public void onComplete( BulkGetFuture<?> future ) throws Exception {
+
+                    release( idx );
+                }
+            };
+        }
+    }
+}
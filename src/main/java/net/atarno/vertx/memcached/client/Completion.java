@@ -0,0 +1,113 @@
+package net.atarno.vertx.memcached.client;
+
+import net.spy.memcached.internal.AbstractListenableFuture;
+import net.spy.memcached.internal.BulkGetCompletionListener;
+import net.spy.memcached.internal.BulkGetFuture;
+import net.spy.memcached.internal.GetCompletionListener;
+import net.spy.memcached.internal.GetFuture;
+import net.spy.memcached.internal.OperationCompletionListener;
+import net.spy.memcached.internal.OperationFuture;
+import net.spy.memcached.ops.OperationStatus;
+import org.vertx.java.core.Context;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The completion of a single memcached operation.<p>
+ * It is both the spymemcached listener and the handler that brings the completion back to the verticle's
+ * context, where {@link MemCommand#complete(Completion)} is called. It carries the request state the command
+ * needs to reply, so an operation costs one such object instead of an anonymous listener plus an anonymous handler.
+ * The listener interfaces of spymemcached cannot be implemented together, hence a subclass per future type.
+ */
+abstract class Completion implements Handler<Void> {
+
+    final MemCommand command;
+    final MemClient verticle;
+    final Message<JsonObject> message;
+    final String key;
+    final Context ctx;
+
+    // read commands only
+    long stamp;
+    String flightId;
+    List<Message<JsonObject>> waiting;
+    Map<String, Object> cached;
+    Collection<String> keys;
+
+    // reads with a replica only
+    boolean fallback;
+    boolean abandoned;
+    long timerId = -1;
+
+    AbstractListenableFuture<?, ?> future;
+    OperationStatus status;
+
+    Completion( MemCommand command, MemClient verticle, Message<JsonObject> message, Context ctx, String key ) {
+
+        this.command = command;
+        this.verticle = verticle;
+        this.message = message;
+        this.ctx = ctx;
+        this.key = key;
+    }
+
+    @Override
+    public void handle( Void v ) {
+
+        command.complete( this );
+    }
+
+    void completed( AbstractListenableFuture<?, ?> f, OperationStatus s ) {
+
+        future = f;
+        status = s;
+        ctx.runOnContext( this );
+    }
+
+    static class OfOperation extends Completion implements OperationCompletionListener {
+
+        OfOperation( MemCommand command, MemClient verticle, Message<JsonObject> message, Context ctx, String key ) {
+
+            super( command, verticle, message, ctx, key );
+        }
+
+        @Override
+        public void onComplete( OperationFuture<?> f ) throws Exception {
+
+            completed( f, f.getStatus() );
+        }
+    }
+
+    static class OfGet extends Completion implements GetCompletionListener {
+
+        OfGet( MemCommand command, MemClient verticle, Message<JsonObject> message, Context ctx, String key ) {
+
+            super( command, verticle, message, ctx, key );
+        }
+
+        @Override
+        public void onComplete( GetFuture<?> f ) throws Exception {
+
+            completed( f, f.getStatus() );
+        }
+    }
+
+    static class OfBulkGet extends Completion implements BulkGetCompletionListener {
+
+        OfBulkGet( MemCommand command, MemClient verticle, Message<JsonObject> message, Context ctx, String key ) {
+
+            super( command, verticle, message, ctx, key );
+        }
+
+        @Override
+        public void onComplete( BulkGetFuture<?> f ) throws Exception {
+
+            completed( f, f.getStatus() );
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package net.atarno.vertx.memcached.client;
+
+import net.spy.memcached.CachedData;
+import net.spy.memcached.transcoders.SerializingTranscoder;
+import net.spy.memcached.transcoders.Transcoder;
+
+import java.io.ByteArrayOutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Base of the transcoders that store values without java serialization.<p>
+ * Values are written with the {@link #MARKER} flag, payloads larger than the compression threshold are deflated.
+ * Values encoded bigger than the maximal size are refused.
+ * Items that lack the marker were written by the default transcoder and are decoded by it,
+ * so switching transcoders does not break reads of the items already in the cache. The other way round is
+ * handled by {@link #marked(int, CompressingTranscoder)}.
+ */
+abstract class CompressingTranscoder implements Transcoder<Object> {
+
+    static final int MARKER = 0x10000;
+    static final int COMPRESSED = 0x20000;
+    static final int TYPE_MASK = 0xF00000;
+
+    private final int compressionThreshold;
+    private final int maxSize;
+    private final SerializingTranscoder fallback = new SerializingTranscoder();
+
+    CompressingTranscoder( int compressionThreshold, int maxSize ) {
+
+        this.compressionThreshold = compressionThreshold;
+        this.maxSize = maxSize;
+    }
+
+    protected abstract CachedData encode( Object o, int flags );
+
+    protected abstract Object decode( byte[] data, int type );
+
+    @Override
+    public boolean asyncDecode( CachedData d ) {
+
+        return false;
+    }
+
+    @Override
+    public CachedData encode( Object o ) {
+
+        CachedData d = encode( o, MARKER );
+        byte[] data = d.getData();
+        if ( compressionThreshold > 0 && data.length > compressionThreshold ) {
+            byte[] compressed = compress( data );
+            if ( compressed.length < data.length ) {
+                return new CachedData( d.getFlags() | COMPRESSED, compressed, getMaxSize() );
+            }
+        }
+        return d;
+    }
+
+    @Override
+    public Object decode( CachedData d ) {
+
+        int flags = d.getFlags();
+        if ( ( flags & MARKER ) == 0 ) {
+            return fallback.decode( d );
+        }
+        byte[] data = ( flags & COMPRESSED ) != 0 ? decompress( d.getData() ) : d.getData();
+        return decode( data, flags & TYPE_MASK );
+    }
+
+    /**
+     * makes the default transcoder hand the items that carry the marker over to one of ours, rather than
+     * reading them as its own types
+     */
+    static SerializingTranscoder marked( int maxSize, final CompressingTranscoder marked ) {
+
+        return new SerializingTranscoder( maxSize ) {
+            @Override
+            public Object decode( CachedData d ) {
+
+                return ( d.getFlags() & MARKER ) != 0 ? marked.decode( d ) : super.decode( d );
+            }
+        };
+    }
+
+    @Override
+    public int getMaxSize() {
+
+        return maxSize;
+    }
+
+    private static byte[] compress( byte[] data ) {
+
+        Deflater deflater = new Deflater( Deflater.BEST_SPEED );
+        try {
+            deflater.setInput( data );
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream( data.length / 2 );
+            byte[] buf = new byte[ 4096 ];
+            while ( !deflater.finished() ) {
+                out.write( buf, 0, deflater.deflate( buf ) );
+            }
+            return out.toByteArray();
+        }
+        finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] decompress( byte[] data ) {
+
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput( data );
+            ByteArrayOutputStream out = new ByteArrayOutputStream( data.length * 3 );
+            byte[] buf = new byte[ 4096 ];
+            while ( !inflater.finished() ) {
+                int n = inflater.inflate( buf );
+                if ( n == 0 && ( inflater.needsInput() || inflater.needsDictionary() ) ) {
+                    throw new IllegalStateException( "truncated compressed value" );
+                }
+                out.write( buf, 0, n );
+            }
+            return out.toByteArray();
+        }
+        catch ( DataFormatException e ) {
+            throw new IllegalStateException( "corrupted compressed value", e );
+        }
+        finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,295 @@
+package net.atarno.vertx.memcached.client;
+
+import net.spy.memcached.MemcachedClient;
+import net.spy.memcached.internal.GetCompletionListener;
+import net.spy.memcached.internal.GetFuture;
+import net.spy.memcached.internal.OperationFuture;
+import net.spy.memcached.ops.OperationStatus;
+import org.vertx.java.core.Context;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonObject;
+
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Write-behind aggregation of the INCR and DECR requests that ask for it.<p>
+ * Their deltas are added up per key in memory and replied at once, every interval the net delta of each key is
+ * sent as a single INCR or DECR, which creates the counter when it is missing. The verticle's stop flushes the
+ * pending deltas. A delta whose server is down or behind an open circuit breaker is kept for the next interval,
+ * unless the breaker lets it through as its probe, a flush that fails is dropped and counted, since it may have
+ * been applied. As the deltas are netted, a counter that memcached would have clamped at 0 in between may end up
+ * higher than with the individual operations.<p>
+ * The deltas are kept in a concurrent map of atomic counters, an idle counter is retired by swapping in a dead
+ * mark, so that adding to a key never takes a lock. The flush and its outcome are handled on the verticle's event loop.
+ */
+class Counters implements Handler<Long> {
+
+    private static final long DEAD = Long.MIN_VALUE;
+    private static final Charset ASCII = Charset.forName( "US-ASCII" );
+
+    private final MemClient verticle;
+    private final Context ctx;
+    private final ConcurrentMap<String, Counter> pending = new ConcurrentHashMap<>();
+    private final long intervalMillis;
+    private long timerId = -1;
+    private long aggregated;
+    private long flushes;
+    private long deferred;
+    private long failures;
+    private long lost;
+
+    Counters( MemClient verticle, Context ctx, long intervalMillis ) {
+
+        this.verticle = verticle;
+        this.ctx = ctx;
+        this.intervalMillis = intervalMillis;
+    }
+
+    void start() {
+
+        timerId = verticle.getVertx().setPeriodic( intervalMillis, this );
+    }
+
+    /**
+     * adds a delta to the key, the expiration applies when the flush creates the counter
+     *
+     * @return the delta of the key that is not flushed yet
+     */
+    long add( String key, long delta, int exp ) {
+
+        aggregated++;
+        return addPending( key, delta, exp );
+    }
+
+    /**
+     * @return the delta of the key that is not flushed yet
+     */
+    long pending( String key ) {
+
+        Counter c = pending.get( key );
+        long v = c == null ? 0 : c.get();
+        return v == DEAD ? 0 : v;
+    }
+
+    /**
+     * reads the counter from memcached and replies with its value plus the pending delta
+     */
+    void get( MemcachedClient memClient, final Message<JsonObject> message, final String key ) throws Exception {
+
+        verticle.getPool().track( memClient, memClient.asyncGet( key, verticle.getTranscoder( message ) ) ).addListener( new GetCompletionListener() {
+            @Override
+            public void onComplete( final GetFuture<?> future ) throws Exception {
+
+                ctx.runOnContext( new Handler<Void>() {
+                    @Override
+                    public void handle( Void v ) {
+
+                        OperationStatus status = future.getStatus();
+                        boolean miss = MemCommand.isMiss( status );
+                        String error = miss ? null : MemCommand.failure( future, status );
+                        if ( error != null ) {
+                            MemCommand.sendError( message, error );
+                            return;
+                        }
+                        try {
+                            Object stored = miss ? null : future.get();
+                            long delta = pending( key );
+                            long value = ( stored == null ? 0 : valueOf( stored ) ) + delta;
+                            JsonObject response = new JsonObject().putString( "key", key ).putNumber( "value", value < 0 ? 0 : value ).putNumber( "pending", delta );
+                            MemCommand.sendOk( message, response );
+                        }
+                        catch ( Exception e ) {
+                            MemCommand.sendError( message, e.getMessage() );
+                        }
+                    }
+                } );
+            }
+        } );
+    }
+
+    /**
+     * flushes on every interval
+     */
+    @Override
+    public void handle( Long id ) {
+
+        flush();
+    }
+
+    /**
+     * flushes the pending deltas and waits until they are written, at most for the operation time-out in all
+     */
+    void stop() {
+
+        if ( timerId != -1 ) {
+            verticle.getVertx().cancelTimer( timerId );
+            timerId = -1;
+        }
+        if ( flush() == 0 ) {
+            return;
+        }
+        ClientPool pool = verticle.getPool();
+        // this blocks the event loop, so the clients share a single deadline
+        long deadline = System.currentTimeMillis() + verticle.getTimeOutMillis();
+        for ( int i = 0; i < pool.size(); i++ ) {
+            long left = deadline - System.currentTimeMillis();
+            try {
+                if ( left <= 0 || !pool.get( i ).waitForQueues( left, TimeUnit.MILLISECONDS ) ) {
+                    verticle.getLogger().error( "pending counters may not have been flushed: time-out" );
+                    return;
+                }
+            }
+            catch ( RuntimeException e ) {
+                verticle.getLogger().error( "pending counters may not have been flushed: " + e.getMessage() );
+            }
+        }
+    }
+
+    JsonObject toJson() {
+
+        return new JsonObject()
+                .putNumber( "interval", intervalMillis )
+                .putNumber( "keys", pending.size() )
+                .putNumber( "aggregated", aggregated )
+                .putNumber( "flushes", flushes )
+                .putNumber( "deferred", deferred )
+                .putNumber( "failures", failures )
+                .putNumber( "lost", lost );
+    }
+
+    /**
+     * @return the number of operations sent
+     */
+    private int flush() {
+
+        int sent = 0;
+        for ( Map.Entry<String, Counter> e : pending.entrySet() ) {
+            String key = e.getKey();
+            Counter c = e.getValue();
+            long delta = c.getAndSet( 0 );
+            if ( delta == 0 ) {
+                // idle for a whole interval
+                if ( c.compareAndSet( 0, DEAD ) ) {
+                    pending.remove( key, c );
+                }
+                continue;
+            }
+            // the breaker is only consulted for a delta that is sent, so an open breaker gets its probe
+            if ( !verticle.getPool().isAvailable( key ) || !verticle.allow( key ) ) {
+                deferred++;
+                addPending( key, delta, c.exp );
+                continue;
+            }
+            send( key, delta, c.exp );
+            sent++;
+        }
+        return sent;
+    }
+
+    private void send( String key, long delta, int exp ) {
+
+        flushes++;
+        MemcachedClient memClient = verticle.getPool().select();
+        MemCommand command = delta > 0 ? MemCommand.INCR : MemCommand.DECR;
+        JsonObject body = new JsonObject().putString( "command", command.name().toLowerCase() ).putString( "key", key ).putNumber( "by", Math.abs( delta ) );
+        OperationFuture<Long> future = delta > 0 ? memClient.asyncIncr( key, delta, delta, exp ) : memClient.asyncDecr( key, -delta, 0, exp );
+        // completed as a regular INCR or DECR, so the near cache and the replica are kept in line
+        verticle.getPool().track( memClient, future ).addListener( new Completion.OfOperation( command, verticle, new Flush( body, delta ), ctx, key ) );
+    }
+
+    private long addPending( String key, long delta, int exp ) {
+
+        while ( true ) {
+            Counter c = pending.get( key );
+            if ( c == null ) {
+                c = new Counter( delta, exp );
+                Counter existing = pending.putIfAbsent( key, c );
+                if ( existing == null ) {
+                    return delta;
+                }
+                c = existing;
+            }
+            c.exp = exp;
+            long v = c.add( delta );
+            if ( v != DEAD ) {
+                return v;
+            }
+            // retired meanwhile
+            pending.remove( key, c );
+        }
+    }
+
+    private static long valueOf( Object value ) throws Exception {
+
+        try {
+            if ( value instanceof Number ) {
+                return ( ( Number ) value ).longValue();
+            }
+            if ( value instanceof byte[] ) {
+                return Long.parseLong( new String( ( byte[] ) value, ASCII ).trim() );
+            }
+            if ( value instanceof String ) {
+                return Long.parseLong( ( ( String ) value ).trim() );
+            }
+        }
+        catch ( NumberFormatException e ) {
+            // reported below
+        }
+        throw new Exception( "the value is not a counter" );
+    }
+
+    private static class Counter extends AtomicLong {
+        private static final long serialVersionUID = 1L;
+        volatile int exp;
+
+        Counter( long delta, int exp ) {
+
+            super( delta );
+            this.exp = exp;
+        }
+
+        /**
+         * @return the new delta, or DEAD if the counter was retired
+         */
+        long add( long delta ) {
+
+            while ( true ) {
+                long v = get();
+                if ( v == DEAD ) {
+                    return DEAD;
+                }
+                if ( compareAndSet( v, v + delta ) ) {
+                    return v + delta;
+                }
+            }
+        }
+    }
+
+    /**
+     * the reply to a flushed delta
+     */
+    private class Flush extends LocalMessage {
+        private final long delta;
+
+        Flush( JsonObject body, long delta ) {
+
+            super( body );
+            this.delta = delta;
+        }
+
+        @Override
+        protected void handleReply( Object reply ) {
+
+            if ( reply instanceof JsonObject && "error".equals( ( ( JsonObject ) reply ).getString( "status" ) ) ) {
+                failures++;
+                lost += Math.abs( delta );
+            }
+        }
+    }
+}
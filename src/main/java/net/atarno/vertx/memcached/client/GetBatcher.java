@@ -0,0 +1,199 @@
+package net.atarno.vertx.memcached.client;
+
+import net.spy.memcached.MemcachedClient;
+import net.spy.memcached.internal.BulkGetCompletionListener;
+import net.spy.memcached.internal.BulkGetFuture;
+import net.spy.memcached.ops.OperationStatus;
+import org.vertx.java.core.Context;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Merges single-key GETs into multi-gets.<p>
+ * Keys are buffered for a short window, either until the end of the current event loop turn or for a number
+ * of milliseconds, and are then fetched with one asyncGetBulk. A window is flushed early once it holds the
+ * maximum number of keys. The sizes of the batches that were actually sent are counted, see {@link #toJson()}.
+ * Belongs to a single verticle and is only used on its event loop.
+ */
+class GetBatcher {
+
+    static final String NOT_FOUND = "Not found";
+
+    interface Callback {
+        /**
+         * @param value the value, or null if the key was not found or the fetch failed
+         * @param error the failure description, null on success, {@link GetBatcher#NOT_FOUND} if the key was not found
+         */
+        void done( Object value, String error );
+    }
+    // upper bounds of the batch size histogram buckets
+    private static final int[] BUCKETS = { 1, 2, 4, 8, 16, 32, 64, 128, 256, Integer.MAX_VALUE };
+
+    private final MemClient verticle;
+    private final long windowMillis;
+    private final int maxKeys;
+
+    private List<String> keys = new ArrayList<>();
+    private List<Callback> callbacks = new ArrayList<>();
+    private long generation;
+    private long timerId = -1;
+
+    private long batches;
+    private long batchedKeys;
+    private int maxBatch;
+    private final long[] histogram = new long[ BUCKETS.length ];
+
+    GetBatcher( MemClient verticle, long windowMillis, int maxKeys ) {
+
+        this.verticle = verticle;
+        this.windowMillis = windowMillis;
+        this.maxKeys = maxKeys < 1 ? 1 : maxKeys;
+    }
+
+    void add( String key, Callback callback ) {
+
+        keys.add( key );
+        callbacks.add( callback );
+        if ( keys.size() >= maxKeys ) {
+            flush();
+        }
+        else if ( keys.size() == 1 ) {
+            schedule();
+        }
+    }
+
+    private void schedule() {
+
+        final long gen = generation;
+        if ( windowMillis <= 0 ) {
+            verticle.getVertx().runOnContext( new Handler<Void>() {
+                @Override
+                public void handle( Void v ) {
+
+                    if ( gen == generation ) {
+                        flush();
+                    }
+                }
+            } );
+        }
+        else {
+            timerId = verticle.getVertx().setTimer( windowMillis, new Handler<Long>() {
+                @Override
+                public void handle( Long id ) {
+
+                    timerId = -1;
+                    if ( gen == generation ) {
+                        flush();
+                    }
+                }
+            } );
+        }
+    }
+
+    private void flush() {
+
+        generation++;
+        if ( timerId != -1 ) {
+            verticle.getVertx().cancelTimer( timerId );
+            timerId = -1;
+        }
+        if ( keys.isEmpty() ) {
+            return;
+        }
+        final List<String> batchKeys = keys;
+        final List<Callback> batchCallbacks = callbacks;
+        keys = new ArrayList<>();
+        callbacks = new ArrayList<>();
+        record( batchKeys.size() );
+
+        final Context ctx = verticle.getVertx().currentContext();
+        try {
+            ClientPool pool = verticle.getPool();
+            MemcachedClient memClient = pool.select();
+            pool.track( memClient, memClient.asyncGetBulk( new LinkedHashSet<>( batchKeys ), verticle.getDefaultTranscoder() ) ).addListener( new BulkGetCompletionListener() {
+
+                @Override
+                public void onComplete( final BulkGetFuture<?> f ) throws Exception {
+
+                    ctx.runOnContext( new Handler<Void>() {
+
+                        @Override
+                        public void handle( Void v ) {
+
+                            complete( batchKeys, batchCallbacks, f );
+                        }
+                    } );
+                }
+            } );
+        }
+        catch ( Exception e ) {
+            for ( Callback cb : batchCallbacks ) {
+                cb.done( null, e.getMessage() );
+            }
+        }
+    }
+
+    private void complete( List<String> batchKeys, List<Callback> batchCallbacks, BulkGetFuture<?> f ) {
+
+        OperationStatus status = f.getStatus();
+        Map<String, ?> result = null;
+        String error = null;
+        if ( !f.isDone() || status == null ) {
+            error = "operation time out";
+        }
+        else if ( !status.isSuccess() ) {
+            error = status.getMessage();
+        }
+        else {
+            try {
+                result = f.get();
+            }
+            catch ( Exception e ) {
+                error = e.getMessage();
+            }
+        }
+        for ( int i = 0; i < batchKeys.size(); i++ ) {
+            if ( result == null ) {
+                batchCallbacks.get( i ).done( null, error );
+                continue;
+            }
+            Object value = result.get( batchKeys.get( i ) );
+            batchCallbacks.get( i ).done( value, value == null ? NOT_FOUND : null );
+        }
+    }
+
+    private void record( int size ) {
+
+        batches++;
+        batchedKeys += size;
+        maxBatch = Math.max( maxBatch, size );
+        for ( int i = 0; i < BUCKETS.length; i++ ) {
+            if ( size <= BUCKETS[ i ] ) {
+                histogram[ i ]++;
+                break;
+            }
+        }
+    }
+
+    JsonObject toJson() {
+
+        JsonArray sizes = new JsonArray();
+        for ( int i = 0; i < BUCKETS.length; i++ ) {
+            sizes.addObject( new JsonObject()
+                                     .putString( "upTo", BUCKETS[ i ] == Integer.MAX_VALUE ? "max" : String.valueOf( BUCKETS[ i ] ) )
+                                     .putNumber( "count", histogram[ i ] ) );
+        }
+        return new JsonObject()
+                .putNumber( "batches", batches )
+                .putNumber( "keys", batchedKeys )
+                .putNumber( "average", batches == 0 ? 0 : ( double ) batchedKeys / batches )
+                .putNumber( "max", maxBatch )
+                .putArray( "sizes", sizes );
+    }
+}
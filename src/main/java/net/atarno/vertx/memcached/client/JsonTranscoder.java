@@ -0,0 +1,84 @@
+package net.atarno.vertx.memcached.client;
+
+import net.spy.memcached.CachedData;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import java.nio.charset.Charset;
+
+/**
+ * Stores the types that can travel in a json message as UTF-8 text, with the type kept in the item flags.<p>
+ * Json objects and arrays are stored in their encoded form, which is far more compact and cheaper to produce
+ * than their java serialization. The type codes sit above the {@link #MARKER} flag, away from the flags of the
+ * default transcoder, which keeps its own types in the second byte.
+ */
+class JsonTranscoder extends CompressingTranscoder {
+
+    static final int JSON_OBJECT = 0x100000;
+    static final int JSON_ARRAY = 0x200000;
+    static final int STRING = 0x300000;
+    static final int LONG = 0x400000;
+    static final int DOUBLE = 0x500000;
+    static final int BOOLEAN = 0x600000;
+    static final int BINARY = 0x700000;
+
+    private static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+    JsonTranscoder( int compressionThreshold, int maxSize ) {
+
+        super( compressionThreshold, maxSize );
+    }
+
+    @Override
+    protected CachedData encode( Object o, int flags ) {
+
+        if ( o instanceof JsonObject ) {
+            return data( flags | JSON_OBJECT, ( ( JsonObject ) o ).encode() );
+        }
+        if ( o instanceof JsonArray ) {
+            return data( flags | JSON_ARRAY, ( ( JsonArray ) o ).encode() );
+        }
+        if ( o instanceof String ) {
+            return data( flags | STRING, ( String ) o );
+        }
+        if ( o instanceof Double || o instanceof Float ) {
+            return data( flags | DOUBLE, o.toString() );
+        }
+        if ( o instanceof Number ) {
+            return data( flags | LONG, String.valueOf( ( ( Number ) o ).longValue() ) );
+        }
+        if ( o instanceof Boolean ) {
+            return data( flags | BOOLEAN, o.toString() );
+        }
+        if ( o instanceof byte[] ) {
+            return new CachedData( flags | BINARY, ( byte[] ) o, getMaxSize() );
+        }
+        throw new IllegalArgumentException( "unsupported object type" );
+    }
+
+    @Override
+    protected Object decode( byte[] data, int type ) {
+
+        switch ( type ) {
+            case JSON_OBJECT:
+                return new JsonObject( new String( data, UTF8 ) );
+            case JSON_ARRAY:
+                return new JsonArray( new String( data, UTF8 ) );
+            case STRING:
+                return new String( data, UTF8 );
+            case LONG:
+                return Long.valueOf( new String( data, UTF8 ) );
+            case DOUBLE:
+                return Double.valueOf( new String( data, UTF8 ) );
+            case BOOLEAN:
+                return Boolean.valueOf( new String( data, UTF8 ) );
+            default:
+                return data;
+        }
+    }
+
+    private CachedData data( int flags, String s ) {
+
+        return new CachedData( flags, s.getBytes( UTF8 ), getMaxSize() );
+    }
+}
@@ -0,0 +1,101 @@
+package net.atarno.vertx.memcached.client;
+
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.Arrays;
+
+/**
+ * A log-linear latency histogram in the spirit of HdrHistogram.<p>
+ * Values are recorded in microseconds into buckets that split every power of two into 8 linear sub-buckets,
+ * so a percentile is accurate to within 12.5% whatever its magnitude, in a fixed 4KB footprint.
+ * Percentiles report the upper bound of the bucket they fall into. Not thread safe, meant to be
+ * recorded from a single event loop.
+ */
+class LatencyHistogram {
+
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS = SUB_BUCKETS * ( 64 - SUB_BITS + 1 );
+
+    private final long[] counts = new long[ BUCKETS ];
+    private long count;
+    private long sum;
+    private long max;
+
+    void record( long micros ) {
+
+        if ( micros < 0 ) {
+            micros = 0;
+        }
+        counts[ indexOf( micros ) ]++;
+        count++;
+        sum += micros;
+        max = Math.max( max, micros );
+    }
+
+    long getCount() {
+
+        return count;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     */
+    long percentile( double percentile ) {
+
+        if ( count == 0 ) {
+            return 0;
+        }
+        long rank = Math.max( 1, ( long ) Math.ceil( count * percentile / 100 ) );
+        long seen = 0;
+        for ( int i = 0; i < BUCKETS; i++ ) {
+            seen += counts[ i ];
+            if ( seen >= rank ) {
+                return Math.min( max, lowerBound( i + 1 ) - 1 );
+            }
+        }
+        return max;
+    }
+
+    void reset() {
+
+        Arrays.fill( counts, 0 );
+        count = 0;
+        sum = 0;
+        max = 0;
+    }
+
+    JsonObject toJson() {
+
+        return new JsonObject()
+                .putNumber( "count", count )
+                .putNumber( "mean", count == 0 ? 0 : ( double ) sum / count )
+                .putNumber( "p50", percentile( 50 ) )
+                .putNumber( "p90", percentile( 90 ) )
+                .putNumber( "p99", percentile( 99 ) )
+                .putNumber( "p999", percentile( 99.9 ) )
+                .putNumber( "max", max );
+    }
+
+    private static int indexOf( long value ) {
+
+        if ( value < SUB_BUCKETS ) {
+            return ( int ) value;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros( value );
+        int sub = ( int ) ( value >>> ( magnitude - SUB_BITS ) ) & ( SUB_BUCKETS - 1 );
+        return ( magnitude - SUB_BITS + 1 ) * SUB_BUCKETS + sub;
+    }
+
+    private static long lowerBound( int index ) {
+
+        if ( index < SUB_BUCKETS ) {
+            return index;
+        }
+        int magnitude = index / SUB_BUCKETS + SUB_BITS - 1;
+        if ( magnitude > 61 ) {
+            return Long.MAX_VALUE;
+        }
+        return ( long ) ( SUB_BUCKETS + index % SUB_BUCKETS ) << ( magnitude - SUB_BITS );
+    }
+}
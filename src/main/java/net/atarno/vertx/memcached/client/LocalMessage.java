@@ -0,0 +1,260 @@
+package net.atarno.vertx.memcached.client;
+
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+/**
+ * A request that did not arrive through the event bus, e.g. a sub-command of a BATCH, or one whose reply is
+ * intercepted, e.g. to time it.<p>
+ * It lets such requests go through the regular {@link MemCommand} code, every reply ends up in {@link #handleReply(Object)}.
+ * Nobody answers a reply sent from here, so reply handlers passed to the reply methods are never called.
+ */
+abstract class LocalMessage implements Message<JsonObject> {
+
+    private final JsonObject body;
+
+    LocalMessage( JsonObject body ) {
+
+        this.body = body;
+    }
+
+    protected abstract void handleReply( Object reply );
+
+    @Override
+    public String address() {
+
+        return null;
+    }
+
+    @Override
+    public JsonObject body() {
+
+        return body;
+    }
+
+    @Override
+    public String replyAddress() {
+
+        return null;
+    }
+
+    @Override
+    public void fail( int failureCode, String message ) {
+
+        handleReply( new JsonObject().putString( "command", body.getString( "command" ) ).putString( "status", "error" ).putString( "message", message ) );
+    }
+
+    public void reply() {
+
+        handleReply( null );
+    }
+
+    public <T> void reply( Handler<Message<T>> replyHandler ) {
+
+        handleReply( null );
+    }
+
+    public <T> void replyWithTimeout( long timeout, Handler<AsyncResult<Message<T>>> replyHandler ) {
+
+        handleReply( null );
+    }
+
+    public void reply( Object message ) {
+
+        handleReply( message );
+    }
+
+    public <T> void reply( Object message, Handler<Message<T>> replyHandler ) {
+
+        handleReply( message );
+    }
+
+    public <T> void replyWithTimeout( Object message, long timeout, Handler<AsyncResult<Message<T>>> replyHandler ) {
+
+        handleReply( message );
+    }
+
+    public void reply( JsonObject message ) {
+
+        handleReply( message );
+    }
+
+    public <T> void reply( JsonObject message, Handler<Message<T>> replyHandler ) {
+
+        handleReply( message );
+    }
+
+    public <T> void replyWithTimeout( JsonObject message, long timeout, Handler<AsyncResult<Message<T>>> replyHandler ) {
+
+        handleReply( message );
+    }
+
+    public void reply( JsonArray message ) {
+
+        handleReply( message );
+    }
+
+    public <T> void reply( JsonArray message, Handler<Message<T>> replyHandler ) {
+
+        handleReply( message );
+    }
+
+    public <T> void replyWithTimeout( JsonArray message, long timeout, Handler<AsyncResult<Message<T>>> replyHandler ) {
+
+        handleReply( message );
+    }
+
+    public void reply( String message ) {
+
+        handleReply( message );
+    }
+
+    public <T> void reply( String message, Handler<Message<T>> replyHandler ) {
+
+        handleReply( message );
+    }
+
+    public <T> void replyWithTimeout( String message, long timeout, Handler<AsyncResult<Message<T>>> replyHandler ) {
+
+        handleReply( message );
+    }
+
+    public void reply( Buffer message ) {
+
+        handleReply( message );
+    }
+
+    public <T> void reply( Buffer message, Handler<Message<T>> replyHandler ) {
+
+        handleReply( message );
+    }
+
+    public <T> void replyWithTimeout( Buffer message, long timeout, Handler<AsyncResult<Message<T>>> replyHandler ) {
+
+        handleReply( message );
+    }
+
+    public void reply( byte[] message ) {
+
+        handleReply( message );
+    }
+
+    public <T> void reply( byte[] message, Handler<Message<T>> replyHandler ) {
+
+        handleReply( message );
+    }
+
+    public <T> void replyWithTimeout( byte[] message, long timeout, Handler<AsyncResult<Message<T>>> replyHandler ) {
+
+        handleReply( message );
+    }
+
+    public void reply( Integer message ) {
+
+        handleReply( message );
+    }
+
+    public <T> void reply( Integer message, Handler<Message<T>> replyHandler ) {
+
+        handleReply( message );
+    }
+
+    public <T> void replyWithTimeout( Integer message, long timeout, Handler<AsyncResult<Message<T>>> replyHandler ) {
+
+        handleReply( message );
+    }
+
+    public void reply( Long message ) {
+
+        handleReply( message );
+    }
+
+    public <T> void reply( Long message, Handler<Message<T>> replyHandler ) {
+
+        handleReply( message );
+    }
+
+    public <T> void replyWithTimeout( Long message, long timeout, Handler<AsyncResult<Message<T>>> replyHandler ) {
+
+        handleReply( message );
+    }
+
+    public void reply( Short message ) {
+
+        handleReply( message );
+    }
+
+    public <T> void reply( Short message, Handler<Message<T>> replyHandler ) {
+
+        handleReply( message );
+    }
+
+    public <T> void replyWithTimeout( Short message, long timeout, Handler<AsyncResult<Message<T>>> replyHandler ) {
+
+        handleReply( message );
+    }
+
+    public void reply( Character message ) {
+
+        handleReply( message );
+    }
+
+    public <T> void reply( Character message, Handler<Message<T>> replyHandler ) {
+
+        handleReply( message );
+    }
+
+    public <T> void replyWithTimeout( Character message, long timeout, Handler<AsyncResult<Message<T>>> replyHandler ) {
+
+        handleReply( message );
+    }
+
+    public void reply( Boolean message ) {
+
+        handleReply( message );
+    }
+
+    public <T> void reply( Boolean message, Handler<Message<T>> replyHandler ) {
+
+        handleReply( message );
+    }
+
+    public <T> void replyWithTimeout( Boolean message, long timeout, Handler<AsyncResult<Message<T>>> replyHandler ) {
+
+        handleReply( message );
+    }
+
+    public void reply( Float message ) {
+
+        handleReply( message );
+    }
+
+    public <T> void reply( Float message, Handler<Message<T>> replyHandler ) {
+
+        handleReply( message );
+    }
+
+    public <T> void replyWithTimeout( Float message, long timeout, Handler<AsyncResult<Message<T>>> replyHandler ) {
+
+        handleReply( message );
+    }
+
+    public void reply( Double message ) {
+
+        handleReply( message );
+    }
+
+    public <T> void reply( Double message, Handler<Message<T>> replyHandler ) {
+
+        handleReply( message );
+    }
+
+    public <T> void replyWithTimeout( Double message, long timeout, Handler<AsyncResult<Message<T>>> replyHandler ) {
+
+        handleReply( message );
+    }
+}
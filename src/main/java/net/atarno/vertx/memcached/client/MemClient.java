@@ -2,9 +2,15 @@ package net.atarno.vertx.memcached.client;
 
 import net.spy.memcached.AddrUtil;
 import net.spy.memcached.BinaryConnectionFactory;
+import net.spy.memcached.CachedData;
+import net.spy.memcached.HashAlgorithm;
 import net.spy.memcached.MemcachedClient;
+import net.spy.memcached.transcoders.SerializingTranscoder;
+import net.spy.memcached.transcoders.Transcoder;
 import org.vertx.java.core.AsyncResult;
 import org.vertx.java.core.AsyncResultHandler;
+import org.vertx.java.core.Context;
+import org.vertx.java.core.Future;
 import org.vertx.java.core.Handler;
 import org.vertx.java.core.eventbus.EventBus;
 import org.vertx.java.core.eventbus.Message;
@@ -12,8 +18,12 @@ import org.vertx.java.core.json.JsonObject;
 import org.vertx.java.core.logging.Logger;
 import org.vertx.java.platform.Verticle;
 
-import java.net.SocketAddress;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * spymemcached client for vert.x<p>
@@ -25,112 +35,591 @@ import java.util.Map;
  */
 public class MemClient extends Verticle {
     private String address;
-    private String memServers;
+    private String binaryAddress;
     private long timeOutMillis;
     private boolean validateConnection;
 
     private EventBus eb;
     private Logger logger;
-    private MemcachedClient[] memClients;
+    private int connections;
+    private PoolBalancer balancer;
+    private ClientPool pool;
+    private Reconfigurer reconfigurer;
+    private Replica replica;
+    private CircuitBreakers breakers;
+    private Admission admission;
+    private Counters counters;
+    private Shards shards;
+    private Chunks chunks;
+    private Revalidation revalidation;
+    private NearCache nearCache;
+    private SingleFlight singleFlight;
+    private GetBatcher getBatcher;
+    private Metrics metrics;
+    private long metricsTimerId = -1;
+    private Map<String, Transcoder<Object>> transcoders;
+    private Transcoder<Object> defaultTranscoder;
 
     @Override
-    public void start() {
+    public void start( final Future<Void> startedResult ) {
         eb = vertx.eventBus();
         logger = container.logger();
         address = container.config().getString( "address", "vertx.memcached" );
+        binaryAddress = container.config().getString( "binary-address" );
         validateConnection = container.config().getBoolean( "validate-on-connect", false );
-        memServers = container.config().getString( "memcached.servers" );
         timeOutMillis = container.config().getLong( "memcached.timeout.ms", BinaryConnectionFactory.DEFAULT_OPERATION_TIMEOUT ).longValue();
-        int connections = container.config().getNumber( "memcached.connections", 1 ).intValue();
+        connections = container.config().getNumber( "memcached.connections", 1 ).intValue();
+        String balancerName = container.config().getString( "memcached.pool.balancer", "round-robin" );
+        JsonObject topology = new JsonObject()
+                .putString( "servers", container.config().getString( "memcached.servers" ) )
+                .putString( "locator", container.config().getString( "memcached.locator", "array-mod" ) )
+                .putString( "hash", container.config().getString( "memcached.hash" ) )
+                .putObject( "weights", container.config().getObject( "memcached.weights" ) )
+                .putString( "replicas", container.config().getString( "memcached.replica.servers" ) );
+        int nearCacheEntries = container.config().getNumber( "memcached.nearcache.max.entries", 0 ).intValue();
+        if ( nearCacheEntries > 0 ) {
+            nearCache = new NearCache( nearCacheEntries,
+                                       container.config().getLong( "memcached.nearcache.max.bytes", 16 * 1024 * 1024 ).longValue(),
+                                       container.config().getLong( "memcached.nearcache.ttl.ms", 1000 ).longValue() );
+        }
+        if ( container.config().getBoolean( "memcached.coalesce.gets", false ) ) {
+            singleFlight = new SingleFlight();
+        }
+        if ( container.config().getBoolean( "memcached.getbatch.enabled", false ) ) {
+            getBatcher = new GetBatcher( this,
+                                         container.config().getLong( "memcached.getbatch.window.ms", 0 ).longValue(),
+                                         container.config().getNumber( "memcached.getbatch.max.keys", 64 ).intValue() );
+        }
+        if ( container.config().getBoolean( "memcached.metrics.enabled", false ) ) {
+            metrics = new Metrics();
+            final String metricsAddress = container.config().getString( "memcached.metrics.address" );
+            if ( metricsAddress != null ) {
+                long interval = container.config().getLong( "memcached.metrics.interval.ms", 10000 ).longValue();
+                metricsTimerId = vertx.setPeriodic( interval, new Handler<Long>() {
+                    @Override
+                    public void handle( Long id ) {
+
+                        eb.publish( metricsAddress, metrics.toJson() );
+                        metrics.reset();
+                    }
+                } );
+            }
+        }
+        if ( container.config().getBoolean( "memcached.breaker.enabled", false ) ) {
+            breakers = new CircuitBreakers( container.config().getLong( "memcached.breaker.window.ms", 10000 ).longValue(),
+                                            container.config().getNumber( "memcached.breaker.volume", 20 ).intValue(),
+                                            container.config().getNumber( "memcached.breaker.failure.rate", 50 ).intValue(),
+                                            container.config().getLong( "memcached.breaker.open.ms", 5000 ).longValue(),
+                                            timeOutMillis );
+        }
+        int compressionThreshold = container.config().getNumber( "memcached.compression.threshold", SerializingTranscoder.DEFAULT_COMPRESSION_THRESHOLD ).intValue();
+        String transcoder = container.config().getString( "memcached.transcoder", "serializing" );
+        int chunkSize = container.config().getNumber( "memcached.chunk.size", 0 ).intValue();
+        // values are chunked once encoded, so the transcoders have to accept them whole
+        int maxSize = chunkSize > 0 ? container.config().getNumber( "memcached.chunk.max.bytes", 32 * 1024 * 1024 ).intValue() : CachedData.MAX_SIZE;
+        int inFlightMax = container.config().getNumber( "memcached.inflight.max", 0 ).intValue();
+        int clientInFlightMax = container.config().getNumber( "memcached.inflight.client.max", 0 ).intValue();
+        Admission.Policy overflowPolicy;
         // init connection pool
         try {
-            initMemClients( connections );
-            // register verticle
-            eb.registerHandler( address, memHandler, new AsyncResultHandler<Void>() {
-                @Override
-                public void handle( AsyncResult<Void> voidAsyncResult ) {
-                    logger.info( this.getClass().getSimpleName() + " verticle is started" );
+            overflowPolicy = Admission.Policy.forName( container.config().getString( "memcached.overflow.policy", "reject" ) );
+            initTranscoders( compressionThreshold, maxSize, chunkSize > 0, transcoder );
+            balancer = PoolBalancers.forName( balancerName );
+            pool = createPool( topology );
+        }
+        catch ( Exception e ) {
+            logger.error( e );
+            startedResult.setFailure( e );
+            return;
+        }
+        replica = new Replica( this, vertx.currentContext(), container.config().getBoolean( "memcached.replica.read.on.miss", false ) );
+        reconfigurer = new Reconfigurer( this, vertx.currentContext(), topology );
+        revalidation = new Revalidation( this, vertx.currentContext() );
+        if ( chunkSize > 0 ) {
+            chunks = new Chunks( this, vertx.currentContext(), chunkSize );
+        }
+        if ( inFlightMax > 0 || clientInFlightMax > 0 ) {
+            admission = new Admission( this, vertx.currentContext(), inFlightMax, clientInFlightMax, overflowPolicy,
+                                       container.config().getNumber( "memcached.overflow.queue.max", 1000 ).intValue() );
+        }
+        long countersFlushMillis = container.config().getLong( "memcached.counters.flush.ms", 0 ).longValue();
+        if ( countersFlushMillis > 0 ) {
+            counters = new Counters( this, vertx.currentContext(), countersFlushMillis );
+            counters.start();
+        }
+        int shardCount = container.config().getNumber( "memcached.shards", 0 ).intValue();
+        if ( shardCount > 0 ) {
+            shards = new Shards( this, address, shardCount,
+                                 container.config().getLong( "memcached.shards.forward.timeout.ms", Shards.DEFAULT_FORWARD_TIMEOUT ).longValue() );
+        }
+        String serversFile = container.config().getString( "memcached.servers.file" );
+        if ( serversFile != null ) {
+            reconfigurer.watch( serversFile, container.config().getLong( "memcached.servers.file.interval.ms", 5000 ).longValue() );
+        }
+        if ( !validateConnection ) {
+            register( startedResult );
+            return;
+        }
+        // validate asynchronously, the event loop must not wait for memcached
+        new StatsCollector( vertx, vertx.currentContext(), timeOutMillis, new Handler<StatsCollector>() {
+            @Override
+            public void handle( StatsCollector collector ) {
+
+                if ( collector.anyAvailable() ) {
+                    register( startedResult );
+                }
+                else {
+                    Exception e = new Exception( "memcached servers at " + address + " are unavailable" );
+                    logger.error( e );
+                    stop();
+                    startedResult.setFailure( e );
                 }
-            } );
+            }
+        } ).submit( getMemClient() );
+    }
+
+    private void register( final Future<Void> startedResult ) {
+
+        logger.info( "pool of " + pool.size() + " memcached clients was successfully initialized" );
+        if ( binaryAddress == null ) {
+            registerJson( startedResult );
+            return;
+        }
+        eb.registerHandler( binaryAddress, new BinaryProtocol( this ), new AsyncResultHandler<Void>() {
+            @Override
+            public void handle( AsyncResult<Void> voidAsyncResult ) {
+                if ( voidAsyncResult.failed() ) {
+                    startedResult.setFailure( voidAsyncResult.cause() );
+                    return;
+                }
+                registerJson( startedResult );
+            }
+        } );
+    }
+
+    private void registerJson( final Future<Void> startedResult ) {
+
+        if ( shards == null ) {
+            registerAddress( startedResult );
+            return;
+        }
+        String shardAddress;
+        try {
+            shardAddress = shards.claim();
         }
         catch ( Exception e ) {
             logger.error( e );
+            stop();
+            startedResult.setFailure( e );
+            return;
         }
+        // the shard first, so that the routers of the other instances find it
+        eb.registerHandler( shardAddress, memHandler, new AsyncResultHandler<Void>() {
+            @Override
+            public void handle( AsyncResult<Void> voidAsyncResult ) {
+                if ( voidAsyncResult.failed() ) {
+                    startedResult.setFailure( voidAsyncResult.cause() );
+                    return;
+                }
+                registerAddress( startedResult );
+            }
+        } );
+    }
+
+    private void registerAddress( final Future<Void> startedResult ) {
+
+        // register verticle
+        eb.registerHandler( address, shards == null ? memHandler : shards, new AsyncResultHandler<Void>() {
+            @Override
+            public void handle( AsyncResult<Void> voidAsyncResult ) {
+                if ( voidAsyncResult.failed() ) {
+                    startedResult.setFailure( voidAsyncResult.cause() );
+                    return;
+                }
+                logger.info( MemClient.class.getSimpleName() + " verticle is started" );
+                startedResult.setResult( null );
+            }
+        } );
     }
 
     Handler<Message<JsonObject>> memHandler = new Handler<Message<JsonObject>>() {
         public void handle( Message<JsonObject> message ) {
-            String command = MemCommand.voidNull( message.body().getString( "command" ) );
+            dispatch( message );
+        }
+    };
 
-            if ( command.isEmpty() ) {
-                MemCommand.sendError( message, "\"command\" property is mandatory for request" );
-                return;
+    void dispatch( Message<JsonObject> message ) {
+        String command = MemCommand.voidNull( message.body().getString( "command" ) );
+
+        if ( command.isEmpty() ) {
+            MemCommand.sendError( message, "\"command\" property is mandatory for request" );
+            return;
+        }
+        MemCommand mc = getByName( command );
+        if ( mc == null ) {
+            MemCommand.sendError( message, "unknown command: '" + command + "'" );
+            return;
+        }
+        // turned away before taking an in-flight slot, the breaker is asked again once the request is admitted
+        if ( isGuarded( mc, message ) && !screen( message.body().getString( "key" ) ) ) {
+            if ( metrics != null ) {
+                metrics.rejected( mc );
             }
-            try {
-                MemCommand mc = getByName( command );
-                mc.submitQuery( getMemClient(), message, vertx.currentContext() );
+            MemCommand.sendError( message, CircuitBreakers.OPEN_ERROR );
+            return;
+        }
+        MemcachedClient memClient = admission == null ? getMemClient() : admission.admit( mc, message );
+        if ( memClient != null ) {
+            submit( mc, message, memClient );
+        }
+    }
+
+    /**
+     * reads fall back to the replica or fail by themselves, once they are past the near cache,
+     * aggregated counters send nothing now, their flush consults the breaker
+     *
+     * @return true if the circuit breaker of the key decides whether the request is sent
+     */
+    private static boolean isGuarded( MemCommand mc, Message<JsonObject> message ) {
+
+        return message.body().getString( "key" ) != null && mc != MemCommand.GET && !isAggregated( mc, message );
+    }
+
+    private static boolean isAggregated( MemCommand mc, Message<JsonObject> message ) {
+
+        return ( mc == MemCommand.INCR || mc == MemCommand.DECR ) && message.body().getBoolean( "aggregate", false );
+    }
+
+    /**
+     * submits an admitted request
+     */
+    void submit( MemCommand mc, Message<JsonObject> message, MemcachedClient memClient ) {
+
+        if ( isGuarded( mc, message ) && !allow( message.body().getString( "key" ) ) ) {
+            if ( metrics != null ) {
+                metrics.rejected( mc );
             }
-            catch ( IllegalArgumentException e ) {
-                MemCommand.sendError( message, "unknown command: '" + command + "'" );
+            MemCommand.sendError( message, CircuitBreakers.OPEN_ERROR );
+            return;
+        }
+        try {
+            Context ctx = vertx.currentContext();
+            Message<JsonObject> request = message;
+            if ( metrics != null ) {
+                ctx = metrics.start( mc, ctx );
+                request = Metrics.timed( message, ctx );
             }
-            catch ( Exception e ) {
-                MemCommand.sendError( message, e.getMessage() );
+            mc.submitQuery( this, memClient, request, ctx );
+            replica.submitted( mc, request );
+        }
+        catch ( Exception e ) {
+            if ( metrics != null ) {
+                metrics.rejected( mc );
             }
+            MemCommand.sendError( message, e.getMessage() );
         }
-    };
+    }
 
 
-    private void initMemClients( int connections ) throws Exception {
-        boolean canConnect = true;
-        memClients = new MemcachedClient[ connections < 1 ? 1 : connections ];
-        for ( int i = 0; i < memClients.length; i++ ) {
-            BinaryConnectionFactoryTO bf = new BinaryConnectionFactoryTO( timeOutMillis );
-            memClients[ i ] = new MemcachedClient( bf, AddrUtil.getAddresses( memServers ) );
-        }
-        Map<SocketAddress, Map<String, String>> stats = null;
-        if ( validateConnection ) {
-            try {
-                MemcachedClient _c = getMemClient();
-                stats = _c.getStats();
-            }
-            catch ( Exception e ) {
-                canConnect = false;
-            }
-            if ( canConnect ) {
-                canConnect = false;
-                for ( Map<String, String> _s : stats.values() ) {
-                    if ( _s != null && !_s.isEmpty() ) {
-                        canConnect = true;
-                        break;
-                    }
+    /**
+     * builds the pool of clients of a topology, as held by {@link Reconfigurer}.
+     * Resolving the addresses of the servers may block, so this is called off the event loop on reconfiguration.
+     */
+    ClientPool createPool( JsonObject topology ) throws Exception {
+        String servers = topology.getString( "servers" );
+        if ( servers == null || servers.trim().isEmpty() ) {
+            throw new Exception( "no memcached servers given" );
+        }
+        String replicas = topology.getString( "replicas" );
+        ClientPool replica = null;
+        if ( replicas != null && !replicas.trim().isEmpty() ) {
+            // the replica servers are located the same way, but without weights
+            replica = createPool( replicas, topology.getString( "locator" ), topology.getString( "hash" ), null, null );
+        }
+        try {
+            return createPool( servers, topology.getString( "locator" ), topology.getString( "hash" ), topology.getObject( "weights" ), replica );
+        }
+        catch ( Exception e ) {
+            if ( replica != null ) {
+                replica.shutdown();
+            }
+            throw e;
+        }
+    }
+
+    private ClientPool createPool( String servers, String locator, String hash, JsonObject weights, ClientPool replica ) throws Exception {
+        List<InetSocketAddress> addresses = AddrUtil.getAddresses( servers );
+        Map<String, Integer> ketamaWeights = getKetamaWeights( addresses, locator, weights );
+        HashAlgorithm hashAlg = BinaryConnectionFactoryTO.hashAlgorithm( hash != null ? hash : ketamaWeights == null ? "native" : "ketama" );
+        MemcachedClient[] memClients = new MemcachedClient[ connections < 1 ? 1 : connections ];
+        BinaryConnectionFactoryTO bf = null;
+        try {
+            for ( int i = 0; i < memClients.length; i++ ) {
+                bf = new BinaryConnectionFactoryTO( timeOutMillis, metrics == null ? null : metrics.getServers(), breakers, hashAlg, ketamaWeights );
+                memClients[ i ] = new MemcachedClient( bf, addresses );
+            }
+        }
+        catch ( Exception e ) {
+            for ( MemcachedClient c : memClients ) {
+                if ( c != null ) {
+                    c.shutdown();
                 }
             }
+            throw e;
+        }
+        // all the clients locate the keys alike, the locator of the last one stands for the pool
+        return new ClientPool( memClients, balancer, bf.getLocator(), replica );
+    }
+
+    /**
+     * @return the weight of every server for the ketama locator, or null when keys are placed modulo the number of servers
+     */
+    private static Map<String, Integer> getKetamaWeights( List<InetSocketAddress> addresses, String locator, JsonObject weights ) throws Exception {
+
+        if ( "array-mod".equalsIgnoreCase( locator ) ) {
+            if ( weights != null ) {
+                throw new Exception( "server weights require the ketama locator" );
+            }
+            return null;
+        }
+        if ( !"ketama".equalsIgnoreCase( locator ) ) {
+            throw new Exception( "unknown locator: '" + locator + "'" );
+        }
+        Map<String, Integer> ketamaWeights = new HashMap<>();
+        if ( weights == null ) {
+            return ketamaWeights;
+        }
+        Set<String> servers = new HashSet<>();
+        for ( InetSocketAddress sa : addresses ) {
+            servers.add( StatsCollector.toString( sa ) );
+        }
+        for ( String server : weights.getFieldNames() ) {
+            Object weight = weights.getField( server );
+            if ( !servers.contains( server ) ) {
+                throw new Exception( "weight given to '" + server + "' which is not one of the memcached servers" );
+            }
+            if ( !( weight instanceof Number ) || ( ( Number ) weight ).intValue() < 1 ) {
+                throw new Exception( "the weight of '" + server + "' must be a positive integer" );
+            }
+            ketamaWeights.put( server, ( ( Number ) weight ).intValue() );
         }
-        if ( canConnect ) {
-            logger.info( "pool of " + memClients.length + " memcached clients was successfully initialized" );
+        return ketamaWeights;
+    }
+
+    private void initTranscoders( int compressionThreshold, int maxSize, boolean chunked, String defaultName ) throws Exception {
+        JsonTranscoder json = new JsonTranscoder( compressionThreshold, maxSize );
+        // the json transcoder also reads the items of the raw one
+        SerializingTranscoder serializing = CompressingTranscoder.marked( maxSize, json );
+        serializing.setCompressionThreshold( compressionThreshold );
+        transcoders = new HashMap<>();
+        transcoders.put( "serializing", serializing );
+        transcoders.put( "json", json );
+        transcoders.put( "raw", new RawTranscoder( compressionThreshold, maxSize ) );
+        if ( chunked ) {
+            // every read may find a manifest
+            for ( Map.Entry<String, Transcoder<Object>> e : transcoders.entrySet() ) {
+                e.setValue( Chunks.reading( e.getValue() ) );
+            }
         }
-        else {
-            throw new Exception( "memcached servers at " + address + " are unavailable" );
+        // values set with a soft time-to-live are stored in an envelope that only swr reads see
+        for ( Map.Entry<String, Transcoder<Object>> e : transcoders.entrySet() ) {
+            e.setValue( Revalidation.enveloping( e.getValue() ) );
         }
+        defaultTranscoder = getTranscoder( defaultName );
+    }
+
+    private Transcoder<Object> getTranscoder( String name ) throws Exception {
+
+        Transcoder<Object> tc = transcoders.get( name.toLowerCase() );
+        if ( tc == null ) {
+            throw new Exception( "unknown transcoder: '" + name + "'" );
+        }
+        return tc;
+    }
+
+    /**
+     * @return the transcoder requested by the message, or the verticle's default one
+     */
+    Transcoder<Object> getTranscoder( Message<JsonObject> message ) throws Exception {
+
+        String name = message.body().getString( "transcoder" );
+        return name == null ? defaultTranscoder : getTranscoder( name );
+    }
+
+    Transcoder<Object> getDefaultTranscoder() {
+
+        return defaultTranscoder;
     }
 
     private MemcachedClient getMemClient() {
 
-        MemcachedClient mc = memClients[ ( int ) ( Math.random() * memClients.length ) ];
-        return mc;
+        return pool.select();
+    }
+
+    long getTimeOutMillis() {
+
+        return timeOutMillis;
+    }
+
+    ClientPool getPool() {
+
+        return pool;
+    }
+
+    /**
+     * makes the given pool serve all the later operations
+     *
+     * @return the pool it replaced
+     */
+    ClientPool swapPool( ClientPool newPool ) {
+
+        ClientPool old = pool;
+        pool = newPool;
+        return old;
+    }
+
+    /**
+     * admits an operation on the key, the admission may be the probe of a half-open circuit breaker
+     *
+     * @return false if the circuit breaker of the key's server is open
+     */
+    boolean allow( String key ) {
+
+        return breakers == null || breakers.allow( pool.nodeOf( key ) );
+    }
+
+    /**
+     * checks the key before its request is admitted, see {@link CircuitBreakers#screen}
+     *
+     * @return false if the circuit breaker of the key's server refuses it
+     */
+    boolean screen( String key ) {
+
+        return breakers == null || breakers.screen( pool.nodeOf( key ) );
+    }
+
+    /**
+     * @return true if the circuit breaker of the key's server is not closed
+     */
+    boolean isBroken( String key ) {
+
+        return breakers != null && breakers.isOpen( pool.nodeOf( key ) );
+    }
+
+    Admission getAdmission() {
+
+        return admission;
+    }
+
+    Revalidation getRevalidation() {
+
+        return revalidation;
+    }
+
+    Counters getCounters() {
+
+        return counters;
+    }
+
+    Shards getShards() {
+
+        return shards;
     }
 
-    private MemCommand getByName( String name ) {
+    Chunks getChunks() {
 
-        return MemCommand.valueOf( MemCommand.voidNull( name.toUpperCase() ) );
+        return chunks;
+    }
+
+    CircuitBreakers getBreakers() {
+
+        return breakers;
+    }
+
+    Replica getReplica() {
+
+        return replica;
+    }
+
+    Reconfigurer getReconfigurer() {
+
+        return reconfigurer;
+    }
+
+    Logger getLogger() {
+
+        return logger;
+    }
+
+    SingleFlight getSingleFlight() {
+
+        return singleFlight;
+    }
+
+    /**
+     * called on local writes, so that neither the near cache nor a read in flight return the overwritten value
+     */
+    void invalidate( String key ) {
+
+        if ( nearCache != null ) {
+            nearCache.invalidate( key );
+        }
+        if ( singleFlight != null ) {
+            singleFlight.forget( key );
+        }
+    }
+
+    void invalidateAll() {
+
+        if ( nearCache != null ) {
+            nearCache.clear();
+        }
+        if ( singleFlight != null ) {
+            singleFlight.forgetAll();
+        }
+    }
+
+    NearCache getNearCache() {
+
+        return nearCache;
+    }
+
+    Metrics getMetrics() {
+
+        return metrics;
+    }
+
+    GetBatcher getGetBatcher() {
+
+        return getBatcher;
+    }
+
+    static MemCommand getByName( String name ) {
+
+        return MemCommand.forName( name );
     }
 
     public void stop() {
 
-        for ( int i = 0; i < memClients.length; i++ ) {
-            if ( memClients[ i ] != null ) {
-                memClients[ i ].shutdown();
-            }
+        if ( metricsTimerId != -1 ) {
+            vertx.cancelTimer( metricsTimerId );
+            metricsTimerId = -1;
+        }
+        if ( reconfigurer != null ) {
+            reconfigurer.stop();
+        }
+        if ( admission != null ) {
+            admission.stop();
+        }
+        if ( counters != null ) {
+            // before the clients are shut down
+            counters.stop();
+        }
+        if ( shards != null ) {
+            shards.release();
+        }
+        if ( pool != null ) {
+            pool.shutdown();
         }
         logger.info( "== Memcached clients were closed successfully" );
     }
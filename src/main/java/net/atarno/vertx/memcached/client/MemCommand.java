@@ -1,85 +1,228 @@
 package net.atarno.vertx.memcached.client;
 
 import net.spy.memcached.CASValue;
+import net.spy.memcached.CachedData;
 import net.spy.memcached.MemcachedClient;
 import net.spy.memcached.internal.*;
 import net.spy.memcached.ops.OperationStatus;
+import net.spy.memcached.ops.StatusCode;
+import net.spy.memcached.transcoders.Transcoder;
 import org.vertx.java.core.Context;
 import org.vertx.java.core.Handler;
 import org.vertx.java.core.eventbus.Message;
 import org.vertx.java.core.json.JsonArray;
 import org.vertx.java.core.json.JsonObject;
 
-import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 
 @SuppressWarnings( "unchecked" )
 public enum MemCommand {
 
     SET() {
         @Override
-        public void submitQuery( MemcachedClient memClient, final Message<JsonObject> message, final Context ctx ) throws Exception {
-            String key = getKey( message );
-            Object value = message.body().getField( "value" );
+        public void submitQuery( final MemClient verticle, MemcachedClient memClient, final Message<JsonObject> message, final Context ctx ) throws Exception {
+            final String key = getKey( message );
+            verticle.invalidate( key );
+            Object value = Revalidation.wrap( message.body(), message.body().getField( "value" ) );
             int exp = message.body().getInteger( "exp" ) == null ? 0 : message.body().getInteger( "exp" );
-            memClient.set( key, exp, value ).addListener( new OperationCompletionListener() {
-
-                @Override
-                public void onComplete( final OperationFuture<?> f ) throws Exception {
-
-                    ctx.runOnContext( new Handler<Void>() {
-
+            Chunks chunks = verticle.getChunks();
+            if ( chunks != null ) {
+                // encoded once, the size decides whether the value is chunked
+                CachedData data = verticle.getTranscoder( message ).encode( value );
+                if ( chunks.isLarge( data ) ) {
+                    chunks.set( memClient, key, exp, data, new Completion.OfOperation( this, verticle, message, ctx, key ), new Handler<String>() {
                         @Override
-                        public void handle( Void v ) {
+                        public void handle( String error ) {
 
-                            reply( message, f, f.getStatus() );
+                            sendError( message, error );
                         }
                     } );
+                    return;
                 }
-            } );
+                verticle.getPool().track( memClient, memClient.set( key, exp, data, BinaryProtocol.RAW ) ).addListener( new Completion.OfOperation( this, verticle, message, ctx, key ) );
+                return;
+            }
+            verticle.getPool().track( memClient, memClient.set( key, exp, value, verticle.getTranscoder( message ) ) ).addListener( new Completion.OfOperation( this, verticle, message, ctx, key ) );
         }
 
         @Override
-        public void reply( Message<JsonObject> message, AbstractListenableFuture future, OperationStatus status ) {
+        public void reply( Message<JsonObject> message, AbstractListenableFuture<?, ?> future, OperationStatus status ) {
 
-            try {
-                checkTimeOut( message, future, status );
-                sendOk( message, null );
-            }
-            catch ( Exception e ) {
-                sendError( message, e.getMessage() );
+            String error = failure( future, status );
+            if ( error != null ) {
+                sendError( message, error );
+                return;
             }
+            sendOk( message, null );
         }
     },
     GET() {
         @Override
-        public void submitQuery( MemcachedClient memClient, final Message<JsonObject> message, final Context ctx ) throws Exception {
-            String key = getKey( message );
-            memClient.asyncGet( key ).addListener( new GetCompletionListener() {
+        public void submitQuery( final MemClient verticle, MemcachedClient memClient, final Message<JsonObject> message, final Context ctx ) throws Exception {
+            final String key = getKey( message );
+            Counters counters = verticle.getCounters();
+            if ( counters != null && message.body().getBoolean( "pending", false ) && counters.pending( key ) != 0 ) {
+                // the stored counter is behind, neither the near cache nor a coalesced read would add the delta
+                counters.get( memClient, message, key );
+                return;
+            }
+            if ( message.body().getBoolean( "swr", false ) ) {
+                // the value served depends on the time and on the lease, which neither the near cache nor coalescing know
+                verticle.getRevalidation().get( memClient, message, key );
+                return;
+            }
+            final NearCache nearCache = getNearCache( verticle, message );
+            if ( nearCache != null ) {
+                Object cached = nearCache.get( key );
+                if ( cached != null ) {
+                    JsonObject response = parseForJson( new JsonObject(), "key", key );
+                    sendOk( message, parseForJson( response, "value", cached ) );
+                    return;
+                }
+            }
+            Transcoder<Object> tc = verticle.getTranscoder( message );
+            final SingleFlight singleFlight = verticle.getSingleFlight();
+            final String flightId = SingleFlight.id( key, voidNull( message.body().getString( "transcoder" ) ).toLowerCase() );
+            final List<Message<JsonObject>> waiting = singleFlight == null ? null : singleFlight.join( flightId, message );
+            if ( singleFlight != null && waiting == null ) {
+                return;
+            }
+            final long stamp = nearCache == null ? 0 : nearCache.stamp();
+            final Replica replica = verticle.getReplica();
+            boolean allowed = verticle.allow( key );
+            if ( replica.isEnabled() && ( !allowed || !verticle.getPool().isAvailable( key ) ) ) {
+                replica.get( getCompletion( verticle, message, ctx, key, flightId, waiting, stamp ) );
+                return;
+            }
+            if ( !allowed ) {
+                if ( singleFlight != null ) {
+                    singleFlight.complete( flightId, waiting );
+                }
+                for ( Message<JsonObject> m : waiting == null ? Collections.singletonList( message ) : waiting ) {
+                    sendError( m, CircuitBreakers.OPEN_ERROR );
+                }
+                return;
+            }
+            GetBatcher batcher = verticle.getGetBatcher();
+            if ( batcher != null && message.body().getString( "transcoder" ) == null ) {
+                batcher.add( key, new GetBatcher.Callback() {
 
-                @Override
-                public void onComplete( final GetFuture<?> f ) throws Exception {
+                    @Override
+                    public void done( Object value, String error ) {
 
-                    ctx.runOnContext( new Handler<Void>() {
+                        if ( replica.isEnabled() && replica.shouldFallback( error ) ) {
+                            replica.get( getCompletion( verticle, message, ctx, key, flightId, waiting, stamp ) );
+                            return;
+                        }
+                        if ( value instanceof Chunks.Manifest ) {
+                            if ( singleFlight != null ) {
+                                singleFlight.complete( flightId, waiting );
+                            }
+                            verticle.getChunks().get( verticle.getPool(), key, ( Chunks.Manifest ) value, verticle.getDefaultTranscoder(),
+                                                      waiting == null ? Collections.singletonList( message ) : waiting, true );
+                            return;
+                        }
+                        if ( nearCache != null && error == null ) {
+                            nearCache.put( key, value, stamp );
+                        }
+                        if ( singleFlight != null ) {
+                            singleFlight.complete( flightId, waiting );
+                        }
+                        for ( Message<JsonObject> m : waiting == null ? Collections.singletonList( message ) : waiting ) {
+                            if ( error != null ) {
+                                sendError( m, error );
+                                continue;
+                            }
+                            try {
+                                sendOk( m, parseForJson( parseForJson( new JsonObject(), "key", key ), "value", value ) );
+                            }
+                            catch ( Exception e ) {
+                                sendError( m, e.getMessage() );
+                            }
+                        }
+                    }
+                } );
+                return;
+            }
+            Completion.OfGet completion = getCompletion( verticle, message, ctx, key, flightId, waiting, stamp );
+            if ( replica.isEnabled() ) {
+                replica.guard( completion );
+            }
+            verticle.getPool().track( memClient, memClient.asyncGet( key, tc ) ).addListener( completion );
+        }
 
-                        @Override
-                        public void handle( Void v ) {
+        private Completion.OfGet getCompletion( MemClient verticle, Message<JsonObject> message, Context ctx, String key, String flightId, List<Message<JsonObject>> waiting, long stamp ) {
 
-                            reply( message, f, f.getStatus() );
-                        }
-                    } );
+            Completion.OfGet completion = new Completion.OfGet( this, verticle, message, ctx, key );
+            completion.flightId = flightId;
+            completion.waiting = waiting;
+            completion.stamp = stamp;
+            return completion;
+        }
+
+        @Override
+        void complete( Completion c ) {
+
+            Replica replica = c.verticle.getReplica();
+            if ( !replica.abandon( c ) ) {
+                return;
+            }
+            if ( !c.fallback && replica.isEnabled() && replica.shouldFallback( c.future, c.status ) ) {
+                replica.get( c );
+                return;
+            }
+            Object value = isSuccess( c.future, c.status ) ? getValue( c.future ) : null;
+            if ( value instanceof Chunks.Manifest ) {
+                readChunks( c, ( Chunks.Manifest ) value );
+                return;
+            }
+            NearCache nearCache = getNearCache( c.verticle, c.message );
+            if ( nearCache != null && isSuccess( c.future, c.status ) ) {
+                nearCache.put( c.key, value, c.stamp );
+            }
+            replyAll( c );
+        }
+
+        /**
+         * the value is read from its chunks and not near-cached, the coalesced reads get it as well
+         */
+        private void readChunks( Completion c, Chunks.Manifest manifest ) {
+
+            if ( c.waiting != null ) {
+                c.verticle.getSingleFlight().complete( c.flightId, c.waiting );
+            }
+            List<Message<JsonObject>> messages = c.waiting == null ? Collections.singletonList( c.message ) : c.waiting;
+            // a manifest read from the replica has its chunks there
+            ClientPool pool = c.fallback && c.verticle.getPool().getReplica() != null ? c.verticle.getPool().getReplica() : c.verticle.getPool();
+            try {
+                c.verticle.getChunks().get( pool, c.key, manifest, c.verticle.getTranscoder( c.message ), messages, true );
+            }
+            catch ( Exception e ) {
+                for ( Message<JsonObject> m : messages ) {
+                    sendError( m, e.getMessage() );
                 }
-            } );
+            }
         }
 
         @Override
-        public void reply( Message<JsonObject> message, AbstractListenableFuture future, OperationStatus status ) {
+        public void reply( Message<JsonObject> message, AbstractListenableFuture<?, ?> future, OperationStatus status ) {
+
+            String error = failure( future, status );
+            if ( error != null ) {
+                sendError( message, error );
+                return;
+            }
             try {
-                checkTimeOut( message, future, status );
                 JsonObject response = new JsonObject();
                 Object value = future.get();
                 response = parseForJson( response, "key", getKey( message ) );
@@ -93,105 +236,184 @@ public enum MemCommand {
     },
     GETBULK() {
         @Override
-        public void submitQuery( MemcachedClient memClient, final Message<JsonObject> message, final Context ctx ) throws Exception {
+        public void submitQuery( MemClient verticle, MemcachedClient memClient, final Message<JsonObject> message, final Context ctx ) throws Exception {
             JsonArray keys = message.body().getArray( "keys" );
             if ( keys == null || keys.size() == 0 ) {
                 throw new Exception( "missing mandatory non-empty field 'keys'" );
             }
+            final NearCache nearCache = getNearCache( verticle, message );
+            final Map<String, Object> cached = new HashMap<>();
             List<String> keysList = new ArrayList<>();
+            List<String> uncached = new ArrayList<>();
+            List<String> rejected = new ArrayList<>();
             for ( Object o : keys.toArray() ) {
-                keysList.add( ( String ) o );
+                Object value = nearCache == null ? null : nearCache.get( ( String ) o );
+                if ( value != null ) {
+                    cached.put( ( String ) o, value );
+                    continue;
+                }
+                uncached.add( ( String ) o );
+                // the keys of a server whose circuit breaker is open are missing, unless the replica has them, a stream lists them as failed
+                if ( verticle.allow( ( String ) o ) ) {
+                    keysList.add( ( String ) o );
+                }
+                else {
+                    rejected.add( ( String ) o );
+                }
             }
-            memClient.asyncGetBulk( keysList ).addListener( new BulkGetCompletionListener() {
-
-                @Override
-                public void onComplete( final BulkGetFuture<?> f ) throws Exception {
-
-                    ctx.runOnContext( new Handler<Void>() {
+            String streamAddress = message.body().getString( "stream" );
+            if ( streamAddress != null ) {
+                int chunkSize = message.body().getInteger( "chunk" ) == null ? BulkStream.DEFAULT_CHUNK_SIZE : message.body().getInteger( "chunk" );
+                new BulkStream( verticle, memClient, message, ctx, streamAddress, chunkSize, nearCache ).submit( cached, keysList, rejected );
+                return;
+            }
+            if ( uncached.isEmpty() || keysList.isEmpty() && !verticle.getReplica().isEnabled() ) {
+                sendOk( message, bulkResponse( cached ) );
+                return;
+            }
+            Completion.OfBulkGet completion = new Completion.OfBulkGet( this, verticle, message, ctx, null );
+            completion.stamp = nearCache == null ? 0 : nearCache.stamp();
+            completion.cached = cached;
+            completion.keys = uncached;
+            if ( keysList.isEmpty() ) {
+                // no primary server is worth asking
+                verticle.getReplica().getBulk( completion, new HashMap<String, Object>() );
+                return;
+            }
+            if ( verticle.getReplica().isEnabled() ) {
+                verticle.getReplica().guard( completion );
+            }
+            verticle.getPool().track( memClient, memClient.asyncGetBulk( keysList, verticle.getTranscoder( message ) ) ).addListener( completion );
+        }
 
-                        @Override
-                        public void handle( Void v ) {
+        @Override
+        void complete( Completion c ) {
 
-                            reply( message, f, f.getStatus() );
+            Replica replica = c.verticle.getReplica();
+            if ( !replica.abandon( c ) ) {
+                return;
+            }
+            NearCache nearCache = getNearCache( c.verticle, c.message );
+            if ( !c.fallback && replica.isEnabled() ) {
+                Map<String, Object> found = isSuccess( c.future, c.status ) ? ( Map<String, Object> ) getValue( c.future ) : null;
+                found = found == null ? new HashMap<String, Object>() : found;
+                if ( replica.getBulk( c, found ) ) {
+                    if ( nearCache != null ) {
+                        for ( Map.Entry<String, Object> e : found.entrySet() ) {
+                            nearCache.put( e.getKey(), e.getValue(), c.stamp );
                         }
-                    } );
+                    }
+                    return;
                 }
-            } );
+            }
+            if ( c.fallback && !c.cached.isEmpty() && failure( c.future, c.status ) != null ) {
+                // the values read from the primary servers are still worth a reply
+                try {
+                    sendOk( c.message, bulkResponse( c.cached ) );
+                }
+                catch ( Exception e ) {
+                    sendError( c.message, e.getMessage() );
+                }
+                return;
+            }
+            replyBulk( c.message, c.future, c.status, nearCache, c.stamp, c.cached );
         }
 
         @Override
-        public void reply( Message<JsonObject> message, AbstractListenableFuture future, OperationStatus status ) {
+        public void reply( Message<JsonObject> message, AbstractListenableFuture<?, ?> future, OperationStatus status ) {
 
-            try {
-                checkTimeOut( message, future, status );
-                JsonObject response = new JsonObject();
-                JsonArray keys = new JsonArray();
-                JsonArray values = new JsonArray();
-                Map<String, Object> result = ( Map<String, Object> ) future.get();
-                for ( String k : result.keySet() ) {
-                    Object value = result.get( k );
-                    keys.add(k);
-                    values.add(value);
-                }
-                response = parseForJson( response, "keys", keys );
-                response = parseForJson( response, "values", values );
-                sendOk( message, response );
-            }
-            catch ( Exception e ) {
-                sendError( message, e.getMessage() );
-            }
+            replyBulk( message, future, status, null, 0, null );
         }
     },
     STATUS() {
         @Override
-        public void submitQuery( MemcachedClient memClient, final Message<JsonObject> message, final Context ctx ) throws Exception {
+        public void submitQuery( MemClient verticle, MemcachedClient memClient, final Message<JsonObject> message, final Context ctx ) throws Exception {
             Collection<SocketAddress> available = memClient.getAvailableServers();
             Collection<SocketAddress> unavailable = memClient.getUnavailableServers();
             JsonArray aArr = new JsonArray();
             for ( SocketAddress sa : available ) {
-                aArr.addString( ( ( InetSocketAddress ) sa ).getHostString() + ":" + ( ( InetSocketAddress ) sa ).getPort() );
+                aArr.addString( StatsCollector.toString( sa ) );
             }
             JsonArray uArr = new JsonArray();
             for ( SocketAddress sa : unavailable ) {
-                uArr.addString( ( ( InetSocketAddress ) sa ).getHostString() + ":" + ( ( InetSocketAddress ) sa ).getPort() );
+                uArr.addString( StatsCollector.toString( sa ) );
+            }
+            JsonObject response = new JsonObject().putArray( "available", aArr ).putArray( "unavailable", uArr );
+            response.putObject( "pool", verticle.getPool().toJson() );
+            response.putObject( "topology", verticle.getReconfigurer().toJson() );
+            if ( verticle.getReplica().isEnabled() ) {
+                response.putObject( "replica", verticle.getReplica().toJson() );
+            }
+            if ( verticle.getAdmission() != null ) {
+                response.putObject( "admission", verticle.getAdmission().toJson() );
             }
-            sendOk( message, new JsonObject().putArray( "available", aArr ).putArray( "unavailable", uArr ) );
+            if ( verticle.getBreakers() != null ) {
+                response.putObject( "breakers", verticle.getBreakers().toJson() );
+            }
+            if ( verticle.getSingleFlight() != null ) {
+                response.putObject( "coalescing", verticle.getSingleFlight().toJson() );
+            }
+            if ( !verticle.getRevalidation().isIdle() ) {
+                response.putObject( "revalidation", verticle.getRevalidation().toJson() );
+            }
+            if ( verticle.getCounters() != null ) {
+                response.putObject( "counters", verticle.getCounters().toJson() );
+            }
+            if ( verticle.getShards() != null ) {
+                response.putObject( "shards", verticle.getShards().toJson() );
+            }
+            if ( verticle.getChunks() != null ) {
+                response.putObject( "chunks", verticle.getChunks().toJson() );
+            }
+            if ( verticle.getNearCache() != null ) {
+                response.putObject( "nearcache", verticle.getNearCache().toJson() );
+            }
+            if ( verticle.getGetBatcher() != null ) {
+                response.putObject( "getbatch", verticle.getGetBatcher().toJson() );
+            }
+            sendOk( message, response );
         }
 
         @Override
-        public void reply( Message<JsonObject> message, AbstractListenableFuture future, OperationStatus status ) {
+        public void reply( Message<JsonObject> message, AbstractListenableFuture<?, ?> future, OperationStatus status ) {
             // this is a sync call
         }
     },
     GAT() {
         @Override
-        public void submitQuery( MemcachedClient memClient, final Message<JsonObject> message, final Context ctx ) throws Exception {
+        public void submitQuery( MemClient verticle, MemcachedClient memClient, final Message<JsonObject> message, final Context ctx ) throws Exception {
 
             String key = getKey( message );
             int exp = message.body().getInteger( "exp" ) == null ? 0 : message.body().getInteger( "exp" );
+            Transcoder<Object> tc = verticle.getTranscoder( message );
+            final SingleFlight singleFlight = verticle.getSingleFlight();
+            final String flightId = SingleFlight.id( key, "gat " + exp + " " + voidNull( message.body().getString( "transcoder" ) ).toLowerCase() );
+            final List<Message<JsonObject>> waiting = singleFlight == null ? null : singleFlight.join( flightId, message );
+            if ( singleFlight != null && waiting == null ) {
+                return;
+            }
 
-            memClient.asyncGetAndTouch( key, exp ).addListener( new OperationCompletionListener() {
-
-                @Override
-                public void onComplete( final OperationFuture<?> f ) throws Exception {
-
-                    ctx.runOnContext( new Handler<Void>() {
+            Completion.OfOperation completion = new Completion.OfOperation( this, verticle, message, ctx, key );
+            completion.flightId = flightId;
+            completion.waiting = waiting;
+            verticle.getPool().track( memClient, memClient.asyncGetAndTouch( key, exp, tc ) ).addListener( completion );
+        }
 
-                        @Override
-                        public void handle( Void v ) {
+        @Override
+        void complete( Completion c ) {
 
-                            reply( message, f, f.getStatus() );
-                        }
-                    } );
-                }
-            } );
+            replyAll( c );
         }
 
         @Override
-        public void reply( Message<JsonObject> message, AbstractListenableFuture future, OperationStatus status ) {
+        public void reply( Message<JsonObject> message, AbstractListenableFuture<?, ?> future, OperationStatus status ) {
 
+            String error = failure( future, status );
+            if ( error != null ) {
+                sendError( message, error );
+                return;
+            }
             try {
-                checkTimeOut( message, future, status );
                 JsonObject response = new JsonObject();
                 CASValue<Object> value = ( CASValue<Object> ) future.get();
                 response = parseForJson( response, "key", getKey( message ) );
@@ -204,366 +426,635 @@ public enum MemCommand {
             }
         }
     },
-    APPEND() {
+    GETS() {
         @Override
-        public void submitQuery( MemcachedClient memClient, final Message<JsonObject> message, final Context ctx ) throws Exception {
+        public void submitQuery( MemClient verticle, MemcachedClient memClient, final Message<JsonObject> message, final Context ctx ) throws Exception {
 
             String key = getKey( message );
-            long cas = message.body().getLong( "cas" ) == null ? 0 : message.body().getLong( "cas" );
-            Object value = message.body().getField( "value" );
+            verticle.getPool().track( memClient, memClient.asyncGets( key, verticle.getTranscoder( message ) ) ).addListener( new Completion.OfOperation( this, verticle, message, ctx, key ) );
+        }
 
-            memClient.append( cas, key, value ).addListener( new OperationCompletionListener() {
+        @Override
+        void complete( Completion c ) {
 
-                @Override
-                public void onComplete( final OperationFuture<?> f ) throws Exception {
+            reply( c.message, c.future, c.status );
+        }
 
-                    ctx.runOnContext( new Handler<Void>() {
+        @Override
+        public void reply( Message<JsonObject> message, AbstractListenableFuture<?, ?> future, OperationStatus status ) {
 
-                        @Override
-                        public void handle( Void v ) {
+            GAT.reply( message, future, status );
+        }
+    },
+    CAS() {
+        @Override
+        public void submitQuery( final MemClient verticle, MemcachedClient memClient, final Message<JsonObject> message, final Context ctx ) throws Exception {
 
-                            reply( message, f, f.getStatus() );
-                        }
-                    } );
-                }
-            } );
+            final String key = getKey( message );
+            Long cas = message.body().getLong( "cas" );
+            if ( cas == null ) {
+                throw new Exception( "missing mandatory field 'cas'" );
+            }
+            verticle.invalidate( key );
+            int exp = message.body().getInteger( "exp" ) == null ? 0 : message.body().getInteger( "exp" );
+            Object value = message.body().getField( "value" );
+
+            verticle.getPool().track( memClient, memClient.asyncCAS( key, cas, exp, value, verticle.getTranscoder( message ) ) ).addListener( new Completion.OfOperation( this, verticle, message, ctx, key ) );
         }
 
         @Override
-        public void reply( Message<JsonObject> message, AbstractListenableFuture future, OperationStatus status ) {
+        public void reply( Message<JsonObject> message, AbstractListenableFuture<?, ?> future, OperationStatus status ) {
 
+            String error = failure( future, status );
+            if ( error != null ) {
+                sendError( message, error );
+                return;
+            }
             try {
-                checkTimeOut( message, future, status );
-                sendOk( message, null );
+                sendOk( message, parseForJson( new JsonObject(), "cas", casOf( ( OperationFuture<?> ) future ) ) );
             }
             catch ( Exception e ) {
                 sendError( message, e.getMessage() );
             }
         }
     },
-    PREPEND() {
+    UPDATE() {
         @Override
-        public void submitQuery( MemcachedClient memClient, final Message<JsonObject> message, final Context ctx ) throws Exception {
+        public void submitQuery( MemClient verticle, MemcachedClient memClient, final Message<JsonObject> message, final Context ctx ) throws Exception {
 
             String key = getKey( message );
+            verticle.invalidate( key );
+            new Update( verticle, memClient, message, ctx, key ).submit();
+        }
+
+        @Override
+        public void reply( Message<JsonObject> message, AbstractListenableFuture<?, ?> future, OperationStatus status ) {
+            // replied by the update once its cas succeeded or its attempts are exhausted
+        }
+    },
+    APPEND() {
+        @Override
+        public void submitQuery( final MemClient verticle, MemcachedClient memClient, final Message<JsonObject> message, final Context ctx ) throws Exception {
+
+            final String key = getKey( message );
+            verticle.invalidate( key );
             long cas = message.body().getLong( "cas" ) == null ? 0 : message.body().getLong( "cas" );
             Object value = message.body().getField( "value" );
 
-            memClient.prepend( cas, key, value ).addListener( new OperationCompletionListener() {
+            verticle.getPool().track( memClient, memClient.append( cas, key, value, verticle.getTranscoder( message ) ) ).addListener( new Completion.OfOperation( this, verticle, message, ctx, key ) );
+        }
 
-                @Override
-                public void onComplete( final OperationFuture<?> f ) throws Exception {
+        @Override
+        public void reply( Message<JsonObject> message, AbstractListenableFuture<?, ?> future, OperationStatus status ) {
 
-                    ctx.runOnContext( new Handler<Void>() {
+            String error = failure( future, status );
+            if ( error != null ) {
+                sendError( message, error );
+                return;
+            }
+            sendOk( message, null );
+        }
+    },
+    PREPEND() {
+        @Override
+        public void submitQuery( final MemClient verticle, MemcachedClient memClient, final Message<JsonObject> message, final Context ctx ) throws Exception {
 
-                        @Override
-                        public void handle( Void v ) {
+            final String key = getKey( message );
+            verticle.invalidate( key );
+            long cas = message.body().getLong( "cas" ) == null ? 0 : message.body().getLong( "cas" );
+            Object value = message.body().getField( "value" );
 
-                            reply( message, f, f.getStatus() );
-                        }
-                    } );
-                }
-            } );
+            verticle.getPool().track( memClient, memClient.prepend( cas, key, value, verticle.getTranscoder( message ) ) ).addListener( new Completion.OfOperation( this, verticle, message, ctx, key ) );
         }
 
         @Override
-        public void reply( Message<JsonObject> message, AbstractListenableFuture future, OperationStatus status ) {
+        public void reply( Message<JsonObject> message, AbstractListenableFuture<?, ?> future, OperationStatus status ) {
 
-            try {
-                checkTimeOut( message, future, status );
-                sendOk( message, null );
-            }
-            catch ( Exception e ) {
-                sendError( message, e.getMessage() );
+            String error = failure( future, status );
+            if ( error != null ) {
+                sendError( message, error );
+                return;
             }
+            sendOk( message, null );
         }
     },
     ADD() {
         @Override
-        public void submitQuery( MemcachedClient memClient, final Message<JsonObject> message, final Context ctx ) throws Exception {
+        public void submitQuery( final MemClient verticle, MemcachedClient memClient, final Message<JsonObject> message, final Context ctx ) throws Exception {
 
-            String key = getKey( message );
+            final String key = getKey( message );
+            verticle.invalidate( key );
             int exp = message.body().getInteger( "exp" ) == null ? 0 : message.body().getInteger( "exp" );
             Object value = message.body().getField( "value" );
 
-            memClient.add( key, exp, value ).addListener( new OperationCompletionListener() {
-
-                @Override
-                public void onComplete( final OperationFuture<?> f ) throws Exception {
-
-                    ctx.runOnContext( new Handler<Void>() {
-
-                        @Override
-                        public void handle( Void v ) {
-
-                            reply( message, f, f.getStatus() );
-                        }
-                    } );
-                }
-            } );
+            verticle.getPool().track( memClient, memClient.add( key, exp, value, verticle.getTranscoder( message ) ) ).addListener( new Completion.OfOperation( this, verticle, message, ctx, key ) );
         }
 
         @Override
-        public void reply( Message<JsonObject> message, AbstractListenableFuture future, OperationStatus status ) {
+        public void reply( Message<JsonObject> message, AbstractListenableFuture<?, ?> future, OperationStatus status ) {
 
-            try {
-                checkTimeOut( message, future, status );
-                sendOk( message, null );
-            }
-            catch ( Exception e ) {
-                sendError( message, e.getMessage() );
+            String error = failure( future, status );
+            if ( error != null ) {
+                sendError( message, error );
+                return;
             }
+            sendOk( message, null );
         }
     },
     REPLACE() {
         @Override
-        public void submitQuery( MemcachedClient memClient, final Message<JsonObject> message, final Context ctx ) throws Exception {
+        public void submitQuery( final MemClient verticle, MemcachedClient memClient, final Message<JsonObject> message, final Context ctx ) throws Exception {
 
-            String key = getKey( message );
+            final String key = getKey( message );
+            verticle.invalidate( key );
             int exp = message.body().getInteger( "exp" ) == null ? 0 : message.body().getInteger( "exp" );
             Object value = message.body().getField( "value" );
 
-            memClient.replace( key, exp, value ).addListener( new OperationCompletionListener() {
-
-                @Override
-                public void onComplete( final OperationFuture<?> f ) throws Exception {
-
-                    ctx.runOnContext( new Handler<Void>() {
-
-                        @Override
-                        public void handle( Void v ) {
-
-                            reply( message, f, f.getStatus() );
-                        }
-                    } );
-                }
-            } );
+            verticle.getPool().track( memClient, memClient.replace( key, exp, value, verticle.getTranscoder( message ) ) ).addListener( new Completion.OfOperation( this, verticle, message, ctx, key ) );
         }
 
         @Override
-        public void reply( Message<JsonObject> message, AbstractListenableFuture future, OperationStatus status ) {
+        public void reply( Message<JsonObject> message, AbstractListenableFuture<?, ?> future, OperationStatus status ) {
 
-            try {
-                checkTimeOut( message, future, status );
-                sendOk( message, null );
-            }
-            catch ( Exception e ) {
-                sendError( message, e.getMessage() );
+            String error = failure( future, status );
+            if ( error != null ) {
+                sendError( message, error );
+                return;
             }
+            sendOk( message, null );
         }
     },
     TOUCH() {
         @Override
-        public void submitQuery( MemcachedClient memClient, final Message<JsonObject> message, final Context ctx ) throws Exception {
-            String key = getKey( message );
+        public void submitQuery( final MemClient verticle, MemcachedClient memClient, final Message<JsonObject> message, final Context ctx ) throws Exception {
+            final String key = getKey( message );
+            verticle.invalidate( key );
             int exp = message.body().getInteger( "exp" ) == null ? 0 : message.body().getInteger( "exp" );
 
-            memClient.touch( key, exp ).addListener( new OperationCompletionListener() {
-
-                @Override
-                public void onComplete( final OperationFuture<?> f ) throws Exception {
-
-                    ctx.runOnContext( new Handler<Void>() {
-
-                        @Override
-                        public void handle( Void v ) {
-
-                            reply( message, f, f.getStatus() );
-                        }
-                    } );
-                }
-            } );
+            verticle.getPool().track( memClient, memClient.touch( key, exp ) ).addListener( new Completion.OfOperation( this, verticle, message, ctx, key ) );
 
         }
 
         @Override
-        public void reply( Message<JsonObject> message, AbstractListenableFuture future, OperationStatus status ) {
+        public void reply( Message<JsonObject> message, AbstractListenableFuture<?, ?> future, OperationStatus status ) {
 
-            try {
-                checkTimeOut( message, future, status );
-                sendOk( message, null );
-            }
-            catch ( Exception e ) {
-                sendError( message, e.getMessage() );
+            String error = failure( future, status );
+            if ( error != null ) {
+                sendError( message, error );
+                return;
             }
+            sendOk( message, null );
         }
     },
     GETSTATS() {
         @Override
-        public void submitQuery( MemcachedClient memClient, final Message<JsonObject> message, final Context ctx ) throws Exception {
-
-            Map<SocketAddress, Map<String, String>> stats = memClient.getStats();
-            JsonObject response = new JsonObject();
-            for ( SocketAddress sa : stats.keySet() ) {
-                JsonObject s = new JsonObject();
-                response.putObject( "server", s );
-                s.putString( "address", ( ( InetSocketAddress ) sa ).getHostString() + ":" + ( ( InetSocketAddress ) sa ).getPort() );
-                Map<String, String> info = stats.get( sa );
-                for ( String i : info.keySet() ) {
-                    s.putString( i, info.get( i ) );
+        public void submitQuery( MemClient verticle, MemcachedClient memClient, final Message<JsonObject> message, final Context ctx ) throws Exception {
+
+            new StatsCollector( verticle.getVertx(), ctx, verticle.getTimeOutMillis(), new Handler<StatsCollector>() {
+                @Override
+                public void handle( StatsCollector collector ) {
+
+                    sendOk( message, collector.toJson() );
                 }
+            } ).submit( memClient );
+        }
+
+        @Override
+        public void reply( Message<JsonObject> message, AbstractListenableFuture<?, ?> future, OperationStatus status ) {
+            // replied by the stats collector
+        }
+    },
+    METRICS() {
+        @Override
+        public void submitQuery( MemClient verticle, MemcachedClient memClient, final Message<JsonObject> message, final Context ctx ) throws Exception {
+
+            if ( verticle.getMetrics() == null ) {
+                throw new Exception( "metrics are not enabled" );
             }
-            sendOk( message, response );
+            sendOk( message, verticle.getMetrics().toJson() );
         }
 
         @Override
-        public void reply( Message<JsonObject> message, AbstractListenableFuture future, OperationStatus status ) {
+        public void reply( Message<JsonObject> message, AbstractListenableFuture<?, ?> future, OperationStatus status ) {
             // this is a sync call
         }
     },
     INCR() {
         @Override
-        public void submitQuery( MemcachedClient memClient, final Message<JsonObject> message, final Context ctx ) throws Exception {
+        public void submitQuery( final MemClient verticle, MemcachedClient memClient, final Message<JsonObject> message, final Context ctx ) throws Exception {
 
-            String key = getKey( message );
+            final String key = getKey( message );
+            verticle.invalidate( key );
             long by = message.body().getLong( "by" ) == null ? 0 : message.body().getLong( "by" );
+            if ( message.body().getBoolean( "aggregate", false ) ) {
+                aggregate( verticle, message, key, by );
+                return;
+            }
 
-            memClient.asyncIncr( key, by ).addListener( new OperationCompletionListener() {
-
-                @Override
-                public void onComplete( final OperationFuture<?> f ) throws Exception {
-
-                    ctx.runOnContext( new Handler<Void>() {
-
-                        @Override
-                        public void handle( Void v ) {
-
-                            reply( message, f, f.getStatus() );
-                        }
-                    } );
-                }
-            } );
+            verticle.getPool().track( memClient, memClient.asyncIncr( key, by ) ).addListener( new Completion.OfOperation( this, verticle, message, ctx, key ) );
         }
 
         @Override
-        public void reply( Message<JsonObject> message, AbstractListenableFuture future, OperationStatus status ) {
+        public void reply( Message<JsonObject> message, AbstractListenableFuture<?, ?> future, OperationStatus status ) {
 
-            try {
-                checkTimeOut( message, future, status );
-                sendOk( message, null );
-            }
-            catch ( Exception e ) {
-                sendError( message, e.getMessage() );
+            String error = failure( future, status );
+            if ( error != null ) {
+                sendError( message, error );
+                return;
             }
+            sendOk( message, null );
         }
     },
     DECR() {
         @Override
-        public void submitQuery( MemcachedClient memClient, final Message<JsonObject> message, final Context ctx ) throws Exception {
+        public void submitQuery( final MemClient verticle, MemcachedClient memClient, final Message<JsonObject> message, final Context ctx ) throws Exception {
 
-            String key = getKey( message );
+            final String key = getKey( message );
+            verticle.invalidate( key );
             long by = message.body().getLong( "by" ) == null ? 0 : message.body().getLong( "by" );
+            if ( message.body().getBoolean( "aggregate", false ) ) {
+                aggregate( verticle, message, key, -by );
+                return;
+            }
 
-            memClient.asyncDecr( key, by ).addListener( new OperationCompletionListener() {
-
-                @Override
-                public void onComplete( final OperationFuture<?> f ) throws Exception {
-
-                    ctx.runOnContext( new Handler<Void>() {
+            verticle.getPool().track( memClient, memClient.asyncDecr( key, by ) ).addListener( new Completion.OfOperation( this, verticle, message, ctx, key ) );
+        }
 
-                        @Override
-                        public void handle( Void v ) {
+        @Override
+        public void reply( Message<JsonObject> message, AbstractListenableFuture<?, ?> future, OperationStatus status ) {
 
-                            reply( message, f, f.getStatus() );
-                        }
-                    } );
-                }
-            } );
+            String error = failure( future, status );
+            if ( error != null ) {
+                sendError( message, error );
+                return;
+            }
+            sendOk( message, null );
+        }
+    },
+    DELETE() {
+        @Override
+        public void submitQuery( final MemClient verticle, MemcachedClient memClient, final Message<JsonObject> message, final Context ctx ) throws Exception {
+
+            final String key = getKey( message );
+            verticle.invalidate( key );
+            Completion.OfOperation completion = new Completion.OfOperation( this, verticle, message, ctx, key );
+            if ( verticle.getChunks() != null ) {
+                // the key may hold a manifest, whose chunks go with it
+                verticle.getChunks().delete( verticle.getPool(), memClient, key, completion );
+                return;
+            }
+            verticle.getPool().track( memClient, memClient.delete( key ) ).addListener( completion );
         }
 
         @Override
-        public void reply( Message<JsonObject> message, AbstractListenableFuture future, OperationStatus status ) {
+        public void reply( Message<JsonObject> message, AbstractListenableFuture<?, ?> future, OperationStatus status ) {
 
-            try {
-                checkTimeOut( message, future, status );
-                sendOk( message, null );
-            }
-            catch ( Exception e ) {
-                sendError( message, e.getMessage() );
+            String error = failure( future, status );
+            if ( error != null ) {
+                sendError( message, error );
+                return;
             }
+            sendOk( message, null );
         }
     },
-    DELETE() {
+    FLUSH() {
         @Override
-        public void submitQuery( MemcachedClient memClient, final Message<JsonObject> message, final Context ctx ) throws Exception {
+        public void submitQuery( final MemClient verticle, MemcachedClient memClient, final Message<JsonObject> message, final Context ctx ) throws Exception {
 
-            String key = getKey( message );
-            memClient.delete( key ).addListener( new OperationCompletionListener() {
+            int delay = message.body().getInteger( "delay" ) == null ? 0 : message.body().getInteger( "delay" );
+            verticle.invalidateAll();
+            // not tracked: spymemcached never notifies the listeners of a broadcast, it would stay in flight forever
+            memClient.flush( delay ).addListener( new Completion.OfOperation( this, verticle, message, ctx, null ) );
+        }
 
-                @Override
-                public void onComplete( final OperationFuture<?> f ) throws Exception {
+        @Override
+        void complete( Completion c ) {
+
+            c.verticle.invalidateAll();
+            reply( c.message, c.future, c.status );
+        }
 
-                    ctx.runOnContext( new Handler<Void>() {
+        @Override
+        public void reply( Message<JsonObject> message, AbstractListenableFuture<?, ?> future, OperationStatus status ) {
 
+            String error = failure( future, status );
+            if ( error != null ) {
+                sendError( message, error );
+                return;
+            }
+            sendOk( message, null );
+        }
+    },
+    SETBULK() {
+        @Override
+        public void submitQuery( MemClient verticle, MemcachedClient memClient, final Message<JsonObject> message, final Context ctx ) throws Exception {
+
+            JsonArray items = message.body().getArray( "items" );
+            if ( items == null || items.size() == 0 ) {
+                throw new Exception( "missing mandatory non-empty field 'items'" );
+            }
+            int exp = message.body().getInteger( "exp" ) == null ? 0 : message.body().getInteger( "exp" );
+            Map<String, JsonObject> byKey = new LinkedHashMap<>();
+            for ( int i = 0; i < items.size(); i++ ) {
+                Object o = items.get( i );
+                if ( !( o instanceof JsonObject ) ) {
+                    throw new Exception( "'items' must hold json objects" );
+                }
+                String key = voidNull( ( ( JsonObject ) o ).getString( "key" ) );
+                if ( key.isEmpty() ) {
+                    throw new Exception( "missing mandatory non-empty field 'key'" );
+                }
+                byKey.put( key, ( JsonObject ) o );
+            }
+            Transcoder<Object> tc = verticle.getTranscoder( message );
+            Chunks chunks = verticle.getChunks();
+            final BulkWrite bulk = new BulkWrite( verticle, message, ctx );
+            bulk.expect( byKey.keySet() );
+            for ( Map.Entry<String, JsonObject> e : byKey.entrySet() ) {
+                final String key = e.getKey();
+                if ( !verticle.allow( key ) ) {
+                    bulk.rejected( key, CircuitBreakers.OPEN_ERROR );
+                    continue;
+                }
+                JsonObject item = e.getValue();
+                int itemExp = item.getInteger( "exp" ) == null ? exp : item.getInteger( "exp" );
+                if ( chunks == null ) {
+                    verticle.getPool().track( memClient, memClient.set( key, itemExp, item.getField( "value" ), tc ) ).addListener( bulk );
+                    continue;
+                }
+                // as for SET, encoded once and chunked when large
+                try {
+                    CachedData data = tc.encode( item.getField( "value" ) );
+                    if ( !chunks.isLarge( data ) ) {
+                        verticle.getPool().track( memClient, memClient.set( key, itemExp, data, BinaryProtocol.RAW ) ).addListener( bulk );
+                        continue;
+                    }
+                    chunks.set( memClient, key, itemExp, data, bulk, new Handler<String>() {
                         @Override
-                        public void handle( Void v ) {
+                        public void handle( String error ) {
 
-                            reply( message, f, f.getStatus() );
+                            bulk.rejected( key, error );
                         }
                     } );
                 }
-            } );
+                catch ( Exception ex ) {
+                    bulk.rejected( key, ex.getMessage() );
+                }
+            }
         }
 
         @Override
-        public void reply( Message<JsonObject> message, AbstractListenableFuture future, OperationStatus status ) {
-
-            try {
-                checkTimeOut( message, future, status );
-                sendOk( message, null );
-            }
-            catch ( Exception e ) {
-                sendError( message, e.getMessage() );
+        public void reply( Message<JsonObject> message, AbstractListenableFuture<?, ?> future, OperationStatus status ) {
+            // replied by the bulk write once all the keys completed
+        }
+    },
+    DELETEBULK() {
+        @Override
+        public void submitQuery( MemClient verticle, MemcachedClient memClient, final Message<JsonObject> message, final Context ctx ) throws Exception {
+
+            Collection<String> keys = getKeys( message );
+            BulkWrite bulk = new BulkWrite( verticle, message, ctx );
+            bulk.expect( keys );
+            for ( String key : keys ) {
+                if ( !verticle.allow( key ) ) {
+                    bulk.rejected( key, CircuitBreakers.OPEN_ERROR );
+                    continue;
+                }
+                if ( verticle.getChunks() != null ) {
+                    // as for DELETE, the chunks of a manifest go with it
+                    verticle.getChunks().delete( verticle.getPool(), memClient, key, bulk );
+                    continue;
+                }
+                verticle.getPool().track( memClient, memClient.delete( key ) ).addListener( bulk );
             }
         }
+
+        @Override
+        public void reply( Message<JsonObject> message, AbstractListenableFuture<?, ?> future, OperationStatus status ) {
+            // replied by the bulk write once all the keys completed
+        }
     },
-    FLUSH() {
+    TOUCHBULK() {
         @Override
-        public void submitQuery( MemcachedClient memClient, final Message<JsonObject> message, final Context ctx ) throws Exception {
+        public void submitQuery( MemClient verticle, MemcachedClient memClient, final Message<JsonObject> message, final Context ctx ) throws Exception {
 
-            int delay = message.body().getInteger( "delay" ) == null ? 0 : message.body().getInteger( "delay" );
-            memClient.flush( delay ).addListener( new OperationCompletionListener() {
+            Collection<String> keys = getKeys( message );
+            int exp = message.body().getInteger( "exp" ) == null ? 0 : message.body().getInteger( "exp" );
+            BulkWrite bulk = new BulkWrite( verticle, message, ctx );
+            bulk.expect( keys );
+            for ( String key : keys ) {
+                if ( !verticle.allow( key ) ) {
+                    bulk.rejected( key, CircuitBreakers.OPEN_ERROR );
+                    continue;
+                }
+                verticle.getPool().track( memClient, memClient.touch( key, exp ) ).addListener( bulk );
+            }
+        }
 
-                @Override
-                public void onComplete( final OperationFuture<?> f ) throws Exception {
+        @Override
+        public void reply( Message<JsonObject> message, AbstractListenableFuture<?, ?> future, OperationStatus status ) {
+            // replied by the bulk write once all the keys completed
+        }
+    },
+    BATCH() {
+        @Override
+        public void submitQuery( MemClient verticle, MemcachedClient memClient, final Message<JsonObject> message, final Context ctx ) throws Exception {
 
-                    ctx.runOnContext( new Handler<Void>() {
+            JsonArray commands = message.body().getArray( "commands" );
+            if ( commands == null || commands.size() == 0 ) {
+                throw new Exception( "missing mandatory non-empty field 'commands'" );
+            }
+            new Batch( verticle, message, commands ).submit();
+        }
 
-                        @Override
-                        public void handle( Void v ) {
+        @Override
+        public void reply( Message<JsonObject> message, AbstractListenableFuture<?, ?> future, OperationStatus status ) {
+            // replied by the batch once all the sub-commands completed
+        }
+    },
+    RECONFIGURE() {
+        @Override
+        public void submitQuery( MemClient verticle, MemcachedClient memClient, final Message<JsonObject> message, final Context ctx ) throws Exception {
 
-                            reply( message, f, f.getStatus() );
-                        }
-                    } );
+            verticle.getReconfigurer().reconfigure( message.body(), ctx, new Reconfigurer.Callback() {
+                @Override
+                public void done( JsonObject topology, String error ) {
+
+                    if ( error != null ) {
+                        sendError( message, error );
+                        return;
+                    }
+                    sendOk( message, topology );
                 }
             } );
         }
 
         @Override
-        public void reply( Message<JsonObject> message, AbstractListenableFuture future, OperationStatus status ) {
-
-            try {
-                checkTimeOut( message, future, status );
-                sendOk( message, null );
-            }
-            catch ( Exception e ) {
-                sendError( message, e.getMessage() );
-            }
+        public void reply( Message<JsonObject> message, AbstractListenableFuture<?, ?> future, OperationStatus status ) {
+            // replied by the reconfigurer once the new clients are in use
         }
     };
 
+    private static final Map<String, MemCommand> byName = new TreeMap<>( String.CASE_INSENSITIVE_ORDER );
+
+    static {
+        for ( MemCommand mc : values() ) {
+            byName.put( mc.name(), mc );
+        }
+    }
+
     public static String voidNull( String s ) {
         return s == null ? "" : s;
     }
 
-    private static void checkTimeOut( Message<JsonObject> message, AbstractListenableFuture future, OperationStatus status ) throws Exception {
+    /**
+     * Finds the command by its name, case-insensitively and without allocating.
+     *
+     * @return the command or null if there is no such command
+     */
+    public static MemCommand forName( String name ) {
+
+        return byName.get( name );
+    }
+
+    /**
+     * @return the error to reply with, or null if the operation succeeded
+     */
+    static String failure( AbstractListenableFuture<?, ?> future, OperationStatus status ) {
 
         if ( future == null || !future.isDone() ) {
-            throw new Exception( "operation time out" );
+            return "operation time out";
         }
         if ( status == null || !status.isSuccess() ) {
-            throw new Exception( status == null ? "system error" : status.getMessage() );
+            return status == null ? "system error" : status.getMessage();
         }
+        return null;
+    }
+
+    /**
+     * @return true if the status tells the key does not exist
+     */
+    static boolean isMiss( OperationStatus status ) {
+
+        return status != null && status.getStatusCode() == StatusCode.ERR_NOT_FOUND;
+    }
+
+    /**
+     * @return true if a conditional write failed because the key was written, created or deleted meanwhile
+     */
+    static boolean isConflict( OperationStatus status ) {
+
+        StatusCode code = status == null ? null : status.getStatusCode();
+        return code == StatusCode.ERR_EXISTS || code == StatusCode.ERR_NOT_STORED || code == StatusCode.ERR_NOT_FOUND;
+    }
+
+    /**
+     * @return the CAS id of the item written by the operation, null if unknown
+     */
+    static Long casOf( OperationFuture<?> future ) {
+
+        try {
+            return future.getCas();
+        }
+        catch ( UnsupportedOperationException e ) {
+            return null;
+        }
+    }
+
+    /**
+     * adds the delta of an INCR or DECR to the pending delta of the key, and replies with the latter
+     */
+    private static void aggregate( MemClient verticle, Message<JsonObject> message, String key, long delta ) throws Exception {
+
+        Counters counters = verticle.getCounters();
+        if ( counters == null ) {
+            throw new Exception( "counter aggregation is not enabled" );
+        }
+        int exp = message.body().getInteger( "exp" ) == null ? 0 : message.body().getInteger( "exp" );
+        long pending = counters.add( key, delta, exp );
+        sendOk( message, new JsonObject().putString( "key", key ).putNumber( "pending", pending ) );
+    }
+
+    private static boolean isSuccess( AbstractListenableFuture<?, ?> future, OperationStatus status ) {
+
+        return future != null && future.isDone() && status != null && status.isSuccess();
+    }
+
+    private static Object getValue( AbstractListenableFuture<?, ?> future ) {
+
+        try {
+            return future.get();
+        }
+        catch ( Exception e ) {
+            return null;
+        }
+    }
+
+    private static void replyBulk( Message<JsonObject> message, AbstractListenableFuture<?, ?> future, OperationStatus status, NearCache nearCache, long stamp, Map<String, Object> cached ) {
+
+        String error = failure( future, status );
+        if ( error != null ) {
+            sendError( message, error );
+            return;
+        }
+        try {
+            Map<String, Object> result = ( Map<String, Object> ) future.get();
+            if ( nearCache != null ) {
+                for ( Map.Entry<String, Object> e : result.entrySet() ) {
+                    nearCache.put( e.getKey(), e.getValue(), stamp );
+                }
+            }
+            if ( cached != null && !cached.isEmpty() ) {
+                cached.putAll( result );
+                result = cached;
+            }
+            sendOk( message, bulkResponse( result ) );
+        }
+        catch ( Exception e ) {
+            sendError( message, e.getMessage() );
+        }
+    }
+
+    /**
+     * replies to the request and to the coalesced requests waiting on the same key
+     */
+    void replyAll( Completion c ) {
+
+        if ( c.waiting == null ) {
+            reply( c.message, c.future, c.status );
+            return;
+        }
+        c.verticle.getSingleFlight().complete( c.flightId, c.waiting );
+        for ( Message<JsonObject> m : c.waiting ) {
+            reply( m, c.future, c.status );
+        }
+    }
+
+    private static JsonObject bulkResponse( Map<String, Object> result ) throws Exception {
+
+        JsonObject response = new JsonObject();
+        JsonArray keys = new JsonArray();
+        JsonArray values = new JsonArray();
+        for ( String k : result.keySet() ) {
+            Object value = result.get( k );
+            if ( value instanceof Chunks.Manifest ) {
+                throw new Exception( Chunks.CHUNKED_ERROR );
+            }
+            keys.add(k);
+            values.add(value);
+        }
+        response = parseForJson( response, "keys", keys );
+        response = parseForJson( response, "values", values );
+        return response;
+    }
+
+    /**
+     * values read with a transcoder other than the verticle's default one are not near-cached,
+     * otherwise a later read could get the value in the wrong representation
+     */
+    private static NearCache getNearCache( MemClient verticle, Message<JsonObject> message ) {
+
+        return message.body().getString( "transcoder" ) == null ? verticle.getNearCache() : null;
     }
 
     private static String getKey( Message<JsonObject> message ) throws Exception {
@@ -574,7 +1065,19 @@ public enum MemCommand {
         return key;
     }
 
-    private static JsonObject parseForJson( JsonObject jsonObject, String key, Object value ) throws Exception {
+    private static Collection<String> getKeys( Message<JsonObject> message ) throws Exception {
+        JsonArray keys = message.body().getArray( "keys" );
+        if ( keys == null || keys.size() == 0 ) {
+            throw new Exception( "missing mandatory non-empty field 'keys'" );
+        }
+        Set<String> keysSet = new LinkedHashSet<>();
+        for ( Object o : keys.toArray() ) {
+            keysSet.add( ( String ) o );
+        }
+        return keysSet;
+    }
+
+    static JsonObject parseForJson( JsonObject jsonObject, String key, Object value ) throws Exception {
         if ( value != null ) {
 
             if ( value instanceof JsonArray ) {
@@ -595,6 +1098,9 @@ public enum MemCommand {
             else if ( value instanceof String ) {
                 jsonObject.putString( key, ( String ) value );
             }
+            else if ( value instanceof Chunks.Manifest ) {
+                throw new Exception( Chunks.CHUNKED_ERROR );
+            }
             else {
                 throw new Exception( "unsupported object type" );
             }
@@ -618,8 +1124,22 @@ public enum MemCommand {
         message.reply( reply );
     }
 
-    public abstract void submitQuery( MemcachedClient memClient, Message<JsonObject> message, Context ctx ) throws Exception;
+    public abstract void submitQuery( MemClient verticle, MemcachedClient memClient, Message<JsonObject> message, Context ctx ) throws Exception;
+
+    public abstract void reply( Message<JsonObject> message, AbstractListenableFuture<?, ?> future, OperationStatus status );
+
+    /**
+     * called on the verticle's context once the operation submitted with the completion is done,
+     * by default the written key is invalidated in the near cache, the write is mirrored to the replica servers
+     * if it succeeded and the request is replied
+     */
+    void complete( Completion c ) {
 
-    public abstract void reply( Message<JsonObject> message, AbstractListenableFuture future, OperationStatus status ) throws Exception;
+        c.verticle.invalidate( c.key );
+        if ( isSuccess( c.future, c.status ) ) {
+            c.verticle.getReplica().confirmed( this, c.message );
+        }
+        reply( c.message, c.future, c.status );
+    }
 
 }
@@ -0,0 +1,455 @@
+package net.atarno.vertx.memcached.client;
+
+import net.spy.memcached.CASValue;
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A typed asynchronous client of the json API of {@link MemClient}.<p>
+ * Requests are built and replies are unwrapped here, the handlers get the value of the reply or a failure
+ * holding its error message. A request that got no reply within the time-out fails. Reading a missing key
+ * succeeds with null instead of failing.<p>
+ * Calls made during the same event loop turn are sent as a single BATCH, once the turn is over or once
+ * <code>maxBatch</code> calls are pending, which saves event bus messages when many calls are made at once.
+ * A batch is replied as a whole, so a slow command delays the others of its batch.
+ * The objects holding the calls and their requests are pooled: they are reused once the reply was handled,
+ * except after a time-out, since the verticle may still be working on the request.<p>
+ * The handlers may be null when the outcome does not matter. An instance is not thread-safe, it must be used
+ * from the context it was created on.
+ */
+public class MemcachedEventBusClient {
+
+    public static final long DEFAULT_TIMEOUT = 5000;
+    public static final int DEFAULT_MAX_BATCH = 64;
+
+    private static final String NOT_FOUND = "Not found";
+    private static final int MAX_POOLED = 256;
+    // the fields the typed calls may set, cleared before a request is reused
+    private static final String[] FIELDS = { "command", "key", "keys", "value", "exp", "cas", "by" };
+
+    private enum Kind {
+        NONE {
+            @Override
+            Object convert( JsonObject response ) {
+
+                return null;
+            }
+        },
+        VALUE {
+            @Override
+            Object convert( JsonObject response ) {
+
+                return response == null ? null : response.getField( "value" );
+            }
+        },
+        BULK {
+            @Override
+            Object convert( JsonObject response ) {
+
+                Map<String, Object> values = new LinkedHashMap<>();
+                JsonArray keys = response.getArray( "keys" );
+                JsonArray found = response.getArray( "values" );
+                for ( int i = 0; i < keys.size(); i++ ) {
+                    values.put( ( String ) keys.get( i ), found.get( i ) );
+                }
+                return values;
+            }
+        },
+        VERSIONED {
+            @Override
+            Object convert( JsonObject response ) {
+
+                Long cas = response.getLong( "cas" );
+                return new CASValue<>( cas == null ? 0 : cas, response.getField( "value" ) );
+            }
+        },
+        CAS {
+            @Override
+            Object convert( JsonObject response ) {
+
+                return response == null ? null : response.getLong( "cas" );
+            }
+        },
+        RESULTS {
+            @Override
+            Object convert( JsonObject response ) {
+
+                return response.getArray( "results" );
+            }
+        },
+        RESPONSE {
+            @Override
+            Object convert( JsonObject response ) {
+
+                return response;
+            }
+        };
+
+        abstract Object convert( JsonObject response );
+    }
+
+    private final Vertx vertx;
+    private final String address;
+    private long timeoutMillis = DEFAULT_TIMEOUT;
+    private int maxBatch = DEFAULT_MAX_BATCH;
+    private final ArrayDeque<Call> free = new ArrayDeque<>();
+    private List<Call> pending = new ArrayList<>();
+    private boolean flushScheduled;
+    private final Handler<Void> flusher = new Handler<Void>() {
+        @Override
+        public void handle( Void v ) {
+
+            flushScheduled = false;
+            flush();
+        }
+    };
+
+    /**
+     * @param address the address of the {@link MemClient} verticles
+     */
+    public MemcachedEventBusClient( Vertx vertx, String address ) {
+
+        this.vertx = vertx;
+        this.address = address;
+    }
+
+    /**
+     * @param timeoutMillis how long a reply is waited for
+     */
+    public MemcachedEventBusClient setTimeout( long timeoutMillis ) {
+
+        this.timeoutMillis = timeoutMillis;
+        return this;
+    }
+
+    /**
+     * @param maxBatch the number of calls of a turn that are sent at once, 1 sends every call on its own
+     */
+    public MemcachedEventBusClient setMaxBatch( int maxBatch ) {
+
+        this.maxBatch = maxBatch;
+        return this;
+    }
+
+    /**
+     * the value is null if the key does not exist
+     */
+    public void get( String key, Handler<AsyncResult<Object>> handler ) {
+
+        Call c = call( Kind.VALUE, handler );
+        c.request.putString( "command", "get" ).putString( "key", key );
+        submit( c );
+    }
+
+    /**
+     * the values of the missing keys are left out
+     */
+    public void getBulk( Collection<String> keys, Handler<AsyncResult<Map<String, Object>>> handler ) {
+
+        Call c = call( Kind.BULK, handler );
+        JsonArray arr = new JsonArray();
+        for ( String key : keys ) {
+            arr.addString( key );
+        }
+        c.request.putString( "command", "getbulk" ).putArray( "keys", arr );
+        submit( c );
+    }
+
+    /**
+     * gets the value with its CAS id, null if the key does not exist
+     */
+    public void gets( String key, Handler<AsyncResult<CASValue<Object>>> handler ) {
+
+        Call c = call( Kind.VERSIONED, handler );
+        c.request.putString( "command", "gets" ).putString( "key", key );
+        submit( c );
+    }
+
+    public void set( String key, Object value, int exp, Handler<AsyncResult<Void>> handler ) {
+
+        store( "set", key, value, exp, handler );
+    }
+
+    public void add( String key, Object value, int exp, Handler<AsyncResult<Void>> handler ) {
+
+        store( "add", key, value, exp, handler );
+    }
+
+    public void replace( String key, Object value, int exp, Handler<AsyncResult<Void>> handler ) {
+
+        store( "replace", key, value, exp, handler );
+    }
+
+    /**
+     * stores the value if the item still has the given CAS id, and gets the new CAS id
+     */
+    public void cas( String key, Object value, long cas, int exp, Handler<AsyncResult<Long>> handler ) {
+
+        Call c = call( Kind.CAS, handler );
+        c.request.putString( "command", "cas" ).putString( "key", key ).putNumber( "cas", cas ).putNumber( "exp", exp );
+        if ( putValue( c, value ) ) {
+            submit( c );
+        }
+    }
+
+    public void incr( String key, long by, Handler<AsyncResult<Void>> handler ) {
+
+        Call c = call( Kind.NONE, handler );
+        c.request.putString( "command", "incr" ).putString( "key", key ).putNumber( "by", by );
+        submit( c );
+    }
+
+    public void decr( String key, long by, Handler<AsyncResult<Void>> handler ) {
+
+        Call c = call( Kind.NONE, handler );
+        c.request.putString( "command", "decr" ).putString( "key", key ).putNumber( "by", by );
+        submit( c );
+    }
+
+    public void touch( String key, int exp, Handler<AsyncResult<Void>> handler ) {
+
+        Call c = call( Kind.NONE, handler );
+        c.request.putString( "command", "touch" ).putString( "key", key ).putNumber( "exp", exp );
+        submit( c );
+    }
+
+    public void delete( String key, Handler<AsyncResult<Void>> handler ) {
+
+        Call c = call( Kind.NONE, handler );
+        c.request.putString( "command", "delete" ).putString( "key", key );
+        submit( c );
+    }
+
+    /**
+     * sends the commands as one BATCH, whatever the batching of this client, and gets their replies in order
+     */
+    public void batch( JsonArray commands, Handler<AsyncResult<JsonArray>> handler ) {
+
+        Call c = call( Kind.RESULTS, handler );
+        c.external = new JsonObject().putString( "command", "batch" ).putArray( "commands", commands );
+        send( c );
+    }
+
+    /**
+     * sends any request of the json API, e.g. one with fields the typed calls do not set,
+     * and gets the <code>response</code> of the reply
+     */
+    public void send( JsonObject request, Handler<AsyncResult<JsonObject>> handler ) {
+
+        Call c = call( Kind.RESPONSE, handler );
+        c.external = request;
+        if ( "batch".equalsIgnoreCase( request.getString( "command" ) ) ) {
+            send( c );
+        }
+        else {
+            submit( c );
+        }
+    }
+
+    /**
+     * sends the calls of the current turn at once
+     */
+    public void flush() {
+
+        if ( pending.isEmpty() ) {
+            return;
+        }
+        if ( pending.size() == 1 ) {
+            send( pending.remove( 0 ) );
+            return;
+        }
+        final List<Call> calls = pending;
+        pending = new ArrayList<>();
+        JsonArray commands = new JsonArray();
+        for ( Call c : calls ) {
+            commands.addObject( c.body() );
+        }
+        JsonObject batch = new JsonObject().putString( "command", "batch" ).putArray( "commands", commands );
+        vertx.eventBus().sendWithTimeout( address, batch, timeoutMillis, new Handler<AsyncResult<Message<JsonObject>>>() {
+            @Override
+            public void handle( AsyncResult<Message<JsonObject>> reply ) {
+
+                if ( reply.failed() ) {
+                    for ( Call c : calls ) {
+                        failed( c, reply.cause() );
+                    }
+                    return;
+                }
+                JsonObject body = reply.result().body();
+                JsonObject response = body.getObject( "response" );
+                JsonArray results = response == null ? null : response.getArray( "results" );
+                for ( int i = 0; i < calls.size(); i++ ) {
+                    complete( calls.get( i ), results == null ? body : ( JsonObject ) results.get( i ) );
+                }
+            }
+        } );
+    }
+
+    private void store( String command, String key, Object value, int exp, Handler<AsyncResult<Void>> handler ) {
+
+        Call c = call( Kind.NONE, handler );
+        c.request.putString( "command", command ).putString( "key", key ).putNumber( "exp", exp );
+        if ( putValue( c, value ) ) {
+            submit( c );
+        }
+    }
+
+    private boolean putValue( Call c, Object value ) {
+
+        try {
+            MemCommand.parseForJson( c.request, "value", value );
+            return true;
+        }
+        catch ( Exception e ) {
+            Handler<AsyncResult<Object>> handler = c.handler;
+            recycle( c );
+            if ( handler != null ) {
+                handler.handle( new Result<>( null, e ) );
+            }
+            return false;
+        }
+    }
+
+    private void submit( Call c ) {
+
+        if ( maxBatch <= 1 ) {
+            send( c );
+            return;
+        }
+        pending.add( c );
+        if ( pending.size() >= maxBatch ) {
+            flush();
+        }
+        else if ( !flushScheduled ) {
+            flushScheduled = true;
+            vertx.runOnContext( flusher );
+        }
+    }
+
+    private void send( Call c ) {
+
+        vertx.eventBus().sendWithTimeout( address, c.body(), timeoutMillis, c );
+    }
+
+    private void complete( Call c, JsonObject reply ) {
+
+        Handler<AsyncResult<Object>> handler = c.handler;
+        Kind kind = c.kind;
+        // recycled first, so the handler can reuse the call for its next request
+        recycle( c );
+        if ( handler == null ) {
+            return;
+        }
+        if ( "ok".equals( reply.getString( "status" ) ) ) {
+            handler.handle( new Result<>( kind.convert( reply.getObject( "response" ) ), null ) );
+            return;
+        }
+        String error = reply.getString( "message" );
+        if ( NOT_FOUND.equals( error ) && ( kind == Kind.VALUE || kind == Kind.VERSIONED ) ) {
+            handler.handle( new Result<>( null, null ) );
+            return;
+        }
+        handler.handle( new Result<>( null, new Exception( error ) ) );
+    }
+
+    private void failed( Call c, Throwable cause ) {
+
+        // not recycled, the request may still be in use
+        if ( c.handler != null ) {
+            c.handler.handle( new Result<>( null, cause ) );
+        }
+    }
+
+    @SuppressWarnings( "unchecked" )
+    private Call call( Kind kind, Handler<? extends AsyncResult<?>> handler ) {
+
+        Call c = free.poll();
+        if ( c == null ) {
+            c = new Call();
+        }
+        c.kind = kind;
+        c.handler = ( Handler<AsyncResult<Object>> ) handler;
+        return c;
+    }
+
+    private void recycle( Call c ) {
+
+        c.handler = null;
+        c.external = null;
+        if ( free.size() < MAX_POOLED ) {
+            for ( String field : FIELDS ) {
+                c.request.removeField( field );
+            }
+            free.push( c );
+        }
+    }
+
+    private class Call implements Handler<AsyncResult<Message<JsonObject>>> {
+        final JsonObject request = new JsonObject();
+        JsonObject external;
+        Kind kind;
+        Handler<AsyncResult<Object>> handler;
+
+        JsonObject body() {
+
+            return external == null ? request : external;
+        }
+
+        @Override
+        public void handle( AsyncResult<Message<JsonObject>> reply ) {
+
+            if ( reply.failed() ) {
+                failed( this, reply.cause() );
+            }
+            else {
+                complete( this, reply.result().body() );
+            }
+        }
+    }
+
+    private static class Result<T> implements AsyncResult<T> {
+        private final T result;
+        private final Throwable cause;
+
+        Result( T result, Throwable cause ) {
+
+            this.result = result;
+            this.cause = cause;
+        }
+
+        @Override
+        public T result() {
+
+            return result;
+        }
+
+        @Override
+        public Throwable cause() {
+
+            return cause;
+        }
+
+        @Override
+        public boolean succeeded() {
+
+            return cause == null;
+        }
+
+        @Override
+        public boolean failed() {
+
+            return cause != null;
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package net.atarno.vertx.memcached.client;
+
+import net.spy.memcached.MemcachedNode;
+import net.spy.memcached.ops.CASOperation;
+import net.spy.memcached.ops.ConcatenationOperation;
+import net.spy.memcached.ops.ConcatenationType;
+import net.spy.memcached.ops.DeleteOperation;
+import net.spy.memcached.ops.GetAndTouchOperation;
+import net.spy.memcached.ops.GetOperation;
+import net.spy.memcached.ops.GetsOperation;
+import net.spy.memcached.ops.KeyedOperation;
+import net.spy.memcached.ops.MutatorOperation;
+import net.spy.memcached.ops.Mutator;
+import net.spy.memcached.ops.Operation;
+import net.spy.memcached.ops.OperationCallback;
+import net.spy.memcached.ops.OperationStatus;
+import net.spy.memcached.ops.StatusCode;
+import net.spy.memcached.ops.StoreOperation;
+import net.spy.memcached.ops.StoreType;
+import net.spy.memcached.protocol.binary.BinaryOperationFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+
+/**
+ * Binary operation factory that counts the keyed operations per server.<p>
+ * The callback of every operation is wrapped, so that once the operation completes its handling node, status
+ * and payload sizes are known and can be added to the {@link ServerMetrics}, and its outcome can be recorded by
+ * the {@link CircuitBreakers}. Misses, CAS conflicts and NOT_STORED answers are regular outcomes and are not
+ * counted as errors.
+ */
+class MeteredOperationFactory extends BinaryOperationFactory {
+
+    private static final int HEADER_BYTES = 24;
+
+    private final ServerMetrics metrics;
+    private final CircuitBreakers breakers;
+
+    /**
+     * @param metrics  null if the operations are not counted
+     * @param breakers null if the outcomes are not recorded
+     */
+    MeteredOperationFactory( ServerMetrics metrics, CircuitBreakers breakers ) {
+
+        this.metrics = metrics;
+        this.breakers = breakers;
+    }
+
+    @Override
+    public GetOperation get( String key, GetOperation.Callback cb ) {
+
+        MeteredCallback m = wrap( cb, HEADER_BYTES + length( key ) );
+        return m.attach( super.get( key, m ) );
+    }
+
+    @Override
+    public GetOperation get( Collection<String> keys, GetOperation.Callback cb ) {
+
+        long out = HEADER_BYTES;
+        for ( String key : keys ) {
+            out += HEADER_BYTES + length( key );
+        }
+        MeteredCallback m = wrap( cb, out );
+        return m.attach( super.get( keys, m ) );
+    }
+
+    @Override
+    public GetsOperation gets( String key, GetsOperation.Callback cb ) {
+
+        MeteredCallback m = wrap( cb, HEADER_BYTES + length( key ) );
+        return m.attach( super.gets( key, m ) );
+    }
+
+    @Override
+    public GetAndTouchOperation getAndTouch( String key, int expiration, GetAndTouchOperation.Callback cb ) {
+
+        MeteredCallback m = wrap( cb, HEADER_BYTES + 4 + length( key ) );
+        return m.attach( super.getAndTouch( key, expiration, m ) );
+    }
+
+    @Override
+    public StoreOperation store( StoreType storeType, String key, int flags, int exp, byte[] data, StoreOperation.Callback cb ) {
+
+        MeteredCallback m = wrap( cb, HEADER_BYTES + 8 + length( key ) + data.length );
+        return m.attach( super.store( storeType, key, flags, exp, data, m ) );
+    }
+
+    @Override
+    public CASOperation cas( StoreType type, String key, long casId, int flags, int exp, byte[] data, StoreOperation.Callback cb ) {
+
+        MeteredCallback m = wrap( cb, HEADER_BYTES + 8 + length( key ) + data.length );
+        return m.attach( super.cas( type, key, casId, flags, exp, data, m ) );
+    }
+
+    @Override
+    public ConcatenationOperation cat( ConcatenationType catType, long casId, String key, byte[] data, OperationCallback cb ) {
+
+        MeteredCallback m = wrap( cb, HEADER_BYTES + length( key ) + data.length );
+        return m.attach( super.cat( catType, casId, key, data, m ) );
+    }
+
+    @Override
+    public DeleteOperation delete( String key, DeleteOperation.Callback cb ) {
+
+        MeteredCallback m = wrap( cb, HEADER_BYTES + length( key ) );
+        return m.attach( super.delete( key, m ) );
+    }
+
+    @Override
+    public DeleteOperation delete( String key, long cas, DeleteOperation.Callback cb ) {
+
+        MeteredCallback m = wrap( cb, HEADER_BYTES + length( key ) );
+        return m.attach( super.delete( key, cas, m ) );
+    }
+
+    @Override
+    public KeyedOperation touch( String key, int expiration, OperationCallback cb ) {
+
+        MeteredCallback m = wrap( cb, HEADER_BYTES + 4 + length( key ) );
+        return m.attach( super.touch( key, expiration, m ) );
+    }
+
+    @Override
+    public MutatorOperation mutate( Mutator m, String key, long by, long def, int exp, OperationCallback cb ) {
+
+        MeteredCallback mc = wrap( cb, HEADER_BYTES + 20 + length( key ) );
+        return mc.attach( super.mutate( m, key, by, def, exp, mc ) );
+    }
+
+    private MeteredCallback wrap( OperationCallback cb, long bytesOut ) {
+
+        // operations cloned for a retry already carry a metered callback
+        return cb instanceof MeteredCallback ? ( MeteredCallback ) cb : new MeteredCallback( cb, bytesOut );
+    }
+
+    private static int length( String key ) {
+
+        return key.getBytes( StandardCharsets.UTF_8 ).length;
+    }
+
+    /**
+     * one class for all the callback flavours, the gotData signatures of the keyed operations do not clash
+     */
+    private class MeteredCallback implements GetOperation.Callback, GetsOperation.Callback, GetAndTouchOperation.Callback,
+                                             StoreOperation.Callback, DeleteOperation.Callback {
+        private final OperationCallback delegate;
+        private final long bytesOut;
+        private final long created = System.nanoTime();
+        private volatile Operation op;
+        private long bytesIn = HEADER_BYTES;
+        private OperationStatus status;
+
+        MeteredCallback( OperationCallback delegate, long bytesOut ) {
+
+            this.delegate = delegate;
+            this.bytesOut = bytesOut;
+        }
+
+        /**
+         * a retried clone replaces the cancelled original
+         */
+        <O extends Operation> O attach( O op ) {
+
+            this.op = op;
+            return op;
+        }
+
+        @Override
+        public void gotData( String key, int flags, byte[] data ) {
+
+            bytesIn += HEADER_BYTES + length( key ) + data.length;
+            ( ( GetOperation.Callback ) delegate ).gotData( key, flags, data );
+        }
+
+        @Override
+        public void gotData( String key, int flags, long cas, byte[] data ) {
+
+            bytesIn += HEADER_BYTES + data.length;
+            if ( delegate instanceof GetsOperation.Callback ) {
+                ( ( GetsOperation.Callback ) delegate ).gotData( key, flags, cas, data );
+            }
+            else {
+                ( ( GetAndTouchOperation.Callback ) delegate ).gotData( key, flags, cas, data );
+            }
+        }
+
+        @Override
+        public void gotData( String key, long cas ) {
+
+            ( ( StoreOperation.Callback ) delegate ).gotData( key, cas );
+        }
+
+        @Override
+        public void gotData( long cas ) {
+
+            ( ( DeleteOperation.Callback ) delegate ).gotData( cas );
+        }
+
+        @Override
+        public void receivedStatus( OperationStatus status ) {
+
+            this.status = status;
+            delegate.receivedStatus( status );
+        }
+
+        @Override
+        public void complete() {
+
+            try {
+                count();
+            }
+            finally {
+                delegate.complete();
+            }
+        }
+
+        private void count() {
+
+            Operation o = op;
+            MemcachedNode node = o == null ? null : o.getHandlingNode();
+            if ( node == null ) {
+                return;
+            }
+            StatusCode code = status == null ? null : status.getStatusCode();
+            boolean timedOut = o.isTimedOut() || code == StatusCode.TIMEDOUT;
+            boolean errored = !timedOut && ( o.hasErrored() || o.isCancelled() || ( status != null && !status.isSuccess() && !isRegular( code ) ) );
+            if ( breakers != null ) {
+                breakers.record( node.getSocketAddress(), timedOut || errored, created );
+            }
+            if ( metrics == null ) {
+                return;
+            }
+            ServerMetrics.Counters c = metrics.get( node.getSocketAddress() );
+            c.ops.incrementAndGet();
+            c.bytesOut.addAndGet( bytesOut );
+            c.bytesIn.addAndGet( bytesIn );
+            if ( timedOut ) {
+                c.timeouts.incrementAndGet();
+            }
+            else if ( errored ) {
+                c.errors.incrementAndGet();
+            }
+        }
+    }
+
+    private static boolean isRegular( StatusCode code ) {
+
+        return code == StatusCode.ERR_NOT_FOUND || code == StatusCode.ERR_EXISTS || code == StatusCode.ERR_NOT_STORED;
+    }
+}
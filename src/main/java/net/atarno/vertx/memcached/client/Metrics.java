@@ -0,0 +1,166 @@
+package net.atarno.vertx.memcached.client;
+
+import org.vertx.java.core.Context;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Latency and throughput metrics of a verticle.<p>
+ * Each request is timed through the context it is handed: the spymemcached listeners hop back to the
+ * event loop through {@link Context#runOnContext(Handler)}, so the hop is where the memcached part of the
+ * latency ends (enqueue to listener) and the event loop part begins (listener to reply). A request may take
+ * several hops (bulk writes, chunks, replica fallbacks), it is recorded once, when it is replied, with its last hop
+ * as the boundary. A request replied without any hop, such as a near cache hit, is not recorded. Both parts are
+ * recorded per command in {@link LatencyHistogram}s, on the event loop. Per-server counters are kept in
+ * {@link ServerMetrics}.
+ */
+class Metrics {
+
+    private final Map<MemCommand, CommandMetrics> commands = new EnumMap<>( MemCommand.class );
+    private final ServerMetrics servers = new ServerMetrics();
+    private long since = System.currentTimeMillis();
+
+    ServerMetrics getServers() {
+
+        return servers;
+    }
+
+    /**
+     * @return a context that times the completions of the request's operations
+     */
+    Context start( MemCommand command, Context ctx ) {
+
+        CommandMetrics cm = get( command );
+        cm.requests++;
+        return new TimedContext( cm, ctx, System.nanoTime() );
+    }
+
+    /**
+     * @param ctx the context {@link #start(MemCommand, Context)} returned for the request
+     * @return the request, whose reply records it
+     */
+    static Message<JsonObject> timed( final Message<JsonObject> message, final Context ctx ) {
+
+        return new LocalMessage( message.body() ) {
+            @Override
+            protected void handleReply( Object reply ) {
+
+                message.reply( reply );
+                replied( ctx );
+            }
+        };
+    }
+
+    /**
+     * records the request of the context once it is replied, only the first reply counts
+     */
+    static void replied( Context ctx ) {
+
+        if ( ctx instanceof TimedContext ) {
+            ( ( TimedContext ) ctx ).replied();
+        }
+    }
+
+    /**
+     * counts a request that was rejected before reaching memcached
+     */
+    void rejected( MemCommand command ) {
+
+        get( command ).rejected++;
+    }
+
+    void reset() {
+
+        for ( CommandMetrics cm : commands.values() ) {
+            cm.reset();
+        }
+        servers.reset();
+        since = System.currentTimeMillis();
+    }
+
+    JsonObject toJson() {
+
+        JsonObject cmds = new JsonObject();
+        for ( Map.Entry<MemCommand, CommandMetrics> e : commands.entrySet() ) {
+            cmds.putObject( e.getKey().name().toLowerCase(), e.getValue().toJson() );
+        }
+        return new JsonObject()
+                .putNumber( "since", since )
+                .putNumber( "until", System.currentTimeMillis() )
+                .putObject( "commands", cmds )
+                .putObject( "servers", servers.toJson() );
+    }
+
+    private CommandMetrics get( MemCommand command ) {
+
+        CommandMetrics cm = commands.get( command );
+        if ( cm == null ) {
+            cm = new CommandMetrics();
+            commands.put( command, cm );
+        }
+        return cm;
+    }
+
+    private static class CommandMetrics {
+        final LatencyHistogram listener = new LatencyHistogram();
+        final LatencyHistogram reply = new LatencyHistogram();
+        long requests;
+        long rejected;
+
+        void reset() {
+
+            listener.reset();
+            reply.reset();
+            requests = 0;
+            rejected = 0;
+        }
+
+        JsonObject toJson() {
+
+            return new JsonObject()
+                    .putNumber( "requests", requests )
+                    .putNumber( "rejected", rejected )
+                    .putObject( "listener", listener.toJson() )
+                    .putObject( "reply", reply.toJson() );
+        }
+    }
+
+    private static class TimedContext implements Context {
+        private final CommandMetrics cm;
+        private final Context ctx;
+        private final long enqueued;
+        // when the last completion hopped back, 0 until one did
+        private volatile long listened;
+        private boolean recorded;
+
+        TimedContext( CommandMetrics cm, Context ctx, long enqueued ) {
+
+            this.cm = cm;
+            this.ctx = ctx;
+            this.enqueued = enqueued;
+        }
+
+        @Override
+        public void runOnContext( Handler<Void> action ) {
+
+            // called by the spymemcached listener, on the client's IO thread
+            listened = System.nanoTime();
+            ctx.runOnContext( action );
+        }
+
+        void replied() {
+
+            long l = listened;
+            if ( l == 0 || recorded ) {
+                return;
+            }
+            recorded = true;
+            cm.listener.record( ( l - enqueued ) / 1000 );
+            cm.reply.record( ( System.nanoTime() - l ) / 1000 );
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package net.atarno.vertx.memcached.client;
+
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * In-process near cache placed in front of GET/GETBULK.<p>
+ * Entries are kept in a segmented LRU: new entries land in a probation segment and are promoted
+ * to a protected segment on their second hit, so one-off reads cannot flush the hot set.
+ * The cache is bounded by entry count, by (estimated) byte size and by a TTL.<p>
+ * An instance belongs to a single verticle and is only touched from its event loop, hence no locking.
+ */
+public class NearCache {
+
+    private static final double PROTECTED_RATIO = 0.8;
+
+    private final int maxEntries;
+    private final long maxBytes;
+    private final long ttlMillis;
+    private final int maxProtected;
+
+    private final LinkedHashMap<String, Entry> probationSegment = new LinkedHashMap<>( 16, 0.75f, false );
+    private final LinkedHashMap<String, Entry> protectedSegment = new LinkedHashMap<>( 16, 0.75f, true );
+    private long bytes;
+
+    // invalidation bookkeeping, protects against a slow GET re-populating a value that was written meanwhile
+    private final LinkedHashMap<String, Long> tombstones;
+    private long invalidationSeq;
+    private long tombstoneFloor;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long expirations;
+
+    public NearCache( int maxEntries, long maxBytes, long ttlMillis ) {
+
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.ttlMillis = ttlMillis;
+        this.maxProtected = Math.max( 1, ( int ) ( maxEntries * PROTECTED_RATIO ) );
+        this.tombstones = new LinkedHashMap<String, Long>( 16, 0.75f, false ) {
+            @Override
+            protected boolean removeEldestEntry( Map.Entry<String, Long> eldest ) {
+
+                if ( size() > NearCache.this.maxEntries ) {
+                    tombstoneFloor = Math.max( tombstoneFloor, eldest.getValue() );
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * @return a stamp to be passed to {@link #put(String, Object, long)} once the remote value arrives
+     */
+    public long stamp() {
+
+        return invalidationSeq;
+    }
+
+    public Object get( String key ) {
+
+        Entry e = protectedSegment.get( key );
+        boolean isProtected = e != null;
+        if ( e == null ) {
+            e = probationSegment.get( key );
+        }
+        if ( e == null ) {
+            misses++;
+            return null;
+        }
+        if ( expired( e ) ) {
+            remove( key );
+            expirations++;
+            misses++;
+            return null;
+        }
+        if ( !isProtected ) {
+            probationSegment.remove( key );
+            promote( key, e );
+        }
+        hits++;
+        return e.value;
+    }
+
+    public void put( String key, Object value, long stamp ) {
+
+        // a chunked value is only known by its manifest
+        if ( value == null || value instanceof Chunks.Manifest || invalidatedSince( key, stamp ) ) {
+            return;
+        }
+        long size = weigh( key, value );
+        if ( size > maxBytes ) {
+            return;
+        }
+        remove( key );
+        probationSegment.put( key, new Entry( value, size, System.currentTimeMillis() + ttlMillis ) );
+        bytes += size;
+        evict();
+    }
+
+    public void invalidate( String key ) {
+
+        remove( key );
+        tombstones.remove( key );
+        tombstones.put( key, ++invalidationSeq );
+    }
+
+    public void clear() {
+
+        probationSegment.clear();
+        protectedSegment.clear();
+        bytes = 0;
+        tombstones.clear();
+        tombstoneFloor = ++invalidationSeq;
+    }
+
+    public JsonObject toJson() {
+
+        return new JsonObject()
+                .putNumber( "entries", probationSegment.size() + protectedSegment.size() )
+                .putNumber( "bytes", bytes )
+                .putNumber( "hits", hits )
+                .putNumber( "misses", misses )
+                .putNumber( "evictions", evictions )
+                .putNumber( "expirations", expirations );
+    }
+
+    private void promote( String key, Entry e ) {
+
+        protectedSegment.put( key, e );
+        if ( protectedSegment.size() > maxProtected ) {
+            // demote the least recently used protected entry back to probation
+            Iterator<Map.Entry<String, Entry>> it = protectedSegment.entrySet().iterator();
+            Map.Entry<String, Entry> eldest = it.next();
+            it.remove();
+            probationSegment.put( eldest.getKey(), eldest.getValue() );
+        }
+    }
+
+    private void remove( String key ) {
+
+        Entry e = probationSegment.remove( key );
+        if ( e == null ) {
+            e = protectedSegment.remove( key );
+        }
+        if ( e != null ) {
+            bytes -= e.size;
+        }
+    }
+
+    private void evict() {
+
+        while ( probationSegment.size() + protectedSegment.size() > maxEntries || bytes > maxBytes ) {
+            Iterator<Map.Entry<String, Entry>> it = probationSegment.isEmpty() ? protectedSegment.entrySet().iterator() : probationSegment.entrySet().iterator();
+            if ( !it.hasNext() ) {
+                return;
+            }
+            Entry e = it.next().getValue();
+            it.remove();
+            bytes -= e.size;
+            evictions++;
+        }
+    }
+
+    private boolean invalidatedSince( String key, long stamp ) {
+
+        Long seq = tombstones.get( key );
+        return ( seq == null ? tombstoneFloor : seq ) > stamp;
+    }
+
+    private boolean expired( Entry e ) {
+
+        return e.expiresAt <= System.currentTimeMillis();
+    }
+
+    /**
+     * a rough estimate of the heap retained by an entry, good enough to bound the cache
+     */
+    private static long weigh( String key, Object value ) {
+
+        long size = 64 + 2L * key.length();
+        if ( value instanceof String ) {
+            size += 40 + 2L * ( ( String ) value ).length();
+        }
+        else if ( value instanceof byte[] ) {
+            size += 16 + ( ( byte[] ) value ).length;
+        }
+        else if ( value instanceof JsonObject ) {
+            size += 2L * ( ( JsonObject ) value ).encode().length();
+        }
+        else if ( value instanceof JsonArray ) {
+            size += 2L * ( ( JsonArray ) value ).encode().length();
+        }
+        else {
+            size += 16;
+        }
+        return size;
+    }
+
+    private static class Entry {
+        final Object value;
+        final long size;
+        final long expiresAt;
+
+        Entry( Object value, long size, long expiresAt ) {
+
+            this.value = value;
+            this.size = size;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
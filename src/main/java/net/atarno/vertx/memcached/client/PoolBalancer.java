@@ -0,0 +1,12 @@
+package net.atarno.vertx.memcached.client;
+
+/**
+ * Picks the spymemcached client of the pool that the next operation will be submitted to.<p>
+ * Implementations are called on the verticle's event loop, but the outstanding counters of the pool
+ * are updated from the spymemcached listener threads.
+ * Custom implementations can be plugged in through the "memcached.pool.balancer" setting using their class name.
+ */
+public interface PoolBalancer {
+
+    int select( ClientPool pool );
+}
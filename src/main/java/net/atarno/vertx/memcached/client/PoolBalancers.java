@@ -0,0 +1,79 @@
+package net.atarno.vertx.memcached.client;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Built-in pool balancing strategies
+ */
+public enum PoolBalancers implements PoolBalancer {
+
+    RANDOM() {
+        @Override
+        public int select( ClientPool pool ) {
+
+            return ThreadLocalRandom.current().nextInt( pool.size() );
+        }
+    },
+    ROUND_ROBIN() {
+        @Override
+        public int select( ClientPool pool ) {
+
+            return pool.nextIndex();
+        }
+    },
+    LEAST_OUTSTANDING() {
+        @Override
+        public int select( ClientPool pool ) {
+
+            // start scanning at a rotating offset so ties do not always go to the first client
+            int size = pool.size();
+            int start = pool.nextIndex();
+            int best = start;
+            int min = pool.getOutstanding( start );
+            for ( int i = 1; i < size && min > 0; i++ ) {
+                int idx = ( start + i ) % size;
+                int outstanding = pool.getOutstanding( idx );
+                if ( outstanding < min ) {
+                    min = outstanding;
+                    best = idx;
+                }
+            }
+            return best;
+        }
+    },
+    POWER_OF_TWO() {
+        @Override
+        public int select( ClientPool pool ) {
+
+            int size = pool.size();
+            if ( size == 1 ) {
+                return 0;
+            }
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int a = random.nextInt( size );
+            int b = random.nextInt( size - 1 );
+            if ( b >= a ) {
+                b++;
+            }
+            return pool.getOutstanding( a ) <= pool.getOutstanding( b ) ? a : b;
+        }
+    };
+
+    /**
+     * @param name one of "random", "round-robin", "least-outstanding", "power-of-two" or a {@link PoolBalancer} class name
+     */
+    public static PoolBalancer forName( String name ) throws Exception {
+
+        for ( PoolBalancers b : values() ) {
+            if ( b.name().replace( '_', '-' ).equalsIgnoreCase( name ) ) {
+                return b;
+            }
+        }
+        try {
+            return ( PoolBalancer ) Class.forName( name ).getDeclaredConstructor().newInstance();
+        }
+        catch ( ClassNotFoundException e ) {
+            throw new Exception( "unknown pool balancer: '" + name + "'" );
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package net.atarno.vertx.memcached.client;
+
+import net.spy.memcached.CachedData;
+
+import java.nio.charset.Charset;
+
+/**
+ * Stores byte arrays as they are, strings as their UTF-8 bytes, and always reads values back as byte arrays.
+ */
+class RawTranscoder extends CompressingTranscoder {
+
+    private static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+    RawTranscoder( int compressionThreshold, int maxSize ) {
+
+        super( compressionThreshold, maxSize );
+    }
+
+    @Override
+    protected CachedData encode( Object o, int flags ) {
+
+        if ( o instanceof byte[] ) {
+            return new CachedData( flags | JsonTranscoder.BINARY, ( byte[] ) o, getMaxSize() );
+        }
+        if ( o instanceof String ) {
+            return new CachedData( flags | JsonTranscoder.BINARY, ( ( String ) o ).getBytes( UTF8 ), getMaxSize() );
+        }
+        throw new IllegalArgumentException( "unsupported object type, raw transcoder accepts only binary and string values" );
+    }
+
+    @Override
+    protected Object decode( byte[] data, int type ) {
+
+        return data;
+    }
+}
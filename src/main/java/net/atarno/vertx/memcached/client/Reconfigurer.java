@@ -0,0 +1,214 @@
+package net.atarno.vertx.memcached.client;
+
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.Context;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.file.FileProps;
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Live reconfiguration of the memcached servers of a verticle.<p>
+ * The topology (servers, replicas, locator, hash and weights) can be changed by the RECONFIGURE command or through a
+ * watched json file, fields that are left out keep their current value. The clients of the new topology are
+ * built on a background thread, since resolving and connecting the servers may block, then swapped in on the
+ * verticle's context, so every later operation goes to them. The replaced pool is drained in the background:
+ * it is shut down once the operations it has in flight completed, or once twice the operation time-out passed.<p>
+ * Only touched from the verticle's event loop, but for the background threads that build and drain the pools.
+ */
+class Reconfigurer {
+
+    private static final String[] FIELDS = { "servers", "replicas", "locator", "hash", "weights" };
+
+    interface Callback {
+        /**
+         * @param topology the topology in use, null on failure
+         * @param error    the reason of the failure, the current topology is then kept
+         */
+        void done( JsonObject topology, String error );
+    }
+
+    private final MemClient verticle;
+    private final Context ctx;
+    private final AtomicInteger draining = new AtomicInteger();
+    private JsonObject topology;
+    private boolean inProgress;
+    private boolean stopped;
+    private long reconfigurations;
+    private long watchTimerId = -1;
+    private long fileModified;
+
+    Reconfigurer( MemClient verticle, Context ctx, JsonObject topology ) {
+
+        this.verticle = verticle;
+        this.ctx = ctx;
+        this.topology = topology;
+    }
+
+    /**
+     * @param changes the fields of the topology to be changed, other fields are ignored
+     * @param ctx     the context the callback is called on
+     */
+    void reconfigure( JsonObject changes, final Context ctx, final Callback callback ) {
+
+        if ( inProgress ) {
+            callback.done( null, "a reconfiguration is already in progress" );
+            return;
+        }
+        final JsonObject next = topology.copy();
+        for ( String field : FIELDS ) {
+            if ( changes.containsField( field ) ) {
+                next.putValue( field, changes.getValue( field ) );
+            }
+        }
+        if ( next.equals( topology ) ) {
+            callback.done( topology, null );
+            return;
+        }
+        inProgress = true;
+        background( "vertx-memcached-reconfigure", new Runnable() {
+            @Override
+            public void run() {
+
+                ClientPool built = null;
+                String error = null;
+                try {
+                    built = verticle.createPool( next );
+                }
+                catch ( Exception e ) {
+                    error = e.getMessage() == null ? e.toString() : e.getMessage();
+                }
+                final ClientPool newPool = built;
+                final String failure = error;
+                ctx.runOnContext( new Handler<Void>() {
+                    @Override
+                    public void handle( Void v ) {
+
+                        inProgress = false;
+                        if ( failure != null ) {
+                            callback.done( null, failure );
+                            return;
+                        }
+                        if ( stopped ) {
+                            newPool.shutdown();
+                            callback.done( null, "the verticle is stopped" );
+                            return;
+                        }
+                        drain( verticle.swapPool( newPool ) );
+                        topology = next;
+                        reconfigurations++;
+                        verticle.getLogger().info( "memcached servers reconfigured to " + next.encode() );
+                        callback.done( next, null );
+                    }
+                } );
+            }
+        } );
+    }
+
+    /**
+     * polls the modification time of a json file holding the topology, and reconfigures when it changed
+     */
+    void watch( final String path, long intervalMillis ) {
+
+        watchTimerId = verticle.getVertx().setPeriodic( intervalMillis, new Handler<Long>() {
+            @Override
+            public void handle( Long id ) {
+
+                if ( !inProgress ) {
+                    checkFile( path );
+                }
+            }
+        } );
+    }
+
+    void stop() {
+
+        stopped = true;
+        if ( watchTimerId != -1 ) {
+            verticle.getVertx().cancelTimer( watchTimerId );
+            watchTimerId = -1;
+        }
+    }
+
+    JsonObject toJson() {
+
+        return topology.copy().putNumber( "reconfigurations", reconfigurations ).putNumber( "draining", draining.get() );
+    }
+
+    private void checkFile( final String path ) {
+
+        verticle.getVertx().fileSystem().props( path, new Handler<AsyncResult<FileProps>>() {
+            @Override
+            public void handle( AsyncResult<FileProps> props ) {
+
+                if ( props.failed() ) {
+                    return;
+                }
+                final long modified = props.result().lastModifiedTime().getTime();
+                if ( modified == fileModified ) {
+                    return;
+                }
+                verticle.getVertx().fileSystem().readFile( path, new Handler<AsyncResult<Buffer>>() {
+                    @Override
+                    public void handle( AsyncResult<Buffer> content ) {
+
+                        if ( content.failed() ) {
+                            return;
+                        }
+                        fileModified = modified;
+                        JsonObject changes;
+                        try {
+                            changes = new JsonObject( content.result().toString( "UTF-8" ) );
+                        }
+                        catch ( Exception e ) {
+                            verticle.getLogger().error( "invalid memcached servers file " + path + ": " + e.getMessage() );
+                            return;
+                        }
+                        reconfigure( changes, ctx, new Callback() {
+                            @Override
+                            public void done( JsonObject topology, String error ) {
+
+                                if ( error != null ) {
+                                    verticle.getLogger().error( "memcached servers file " + path + " was not applied: " + error );
+                                }
+                            }
+                        } );
+                    }
+                } );
+            }
+        } );
+    }
+
+    private void drain( final ClientPool old ) {
+
+        final long deadline = System.currentTimeMillis() + 2 * verticle.getTimeOutMillis();
+        draining.incrementAndGet();
+        background( "vertx-memcached-drain", new Runnable() {
+            @Override
+            public void run() {
+
+                try {
+                    while ( old.totalOutstanding() > 0 && System.currentTimeMillis() < deadline ) {
+                        Thread.sleep( 10 );
+                    }
+                }
+                catch ( InterruptedException e ) {
+                    Thread.currentThread().interrupt();
+                }
+                finally {
+                    old.shutdown();
+                    draining.decrementAndGet();
+                }
+            }
+        } );
+    }
+
+    private static void background( String name, Runnable task ) {
+
+        Thread t = new Thread( task, name );
+        t.setDaemon( true );
+        t.start();
+    }
+}
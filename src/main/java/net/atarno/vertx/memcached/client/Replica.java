@@ -0,0 +1,449 @@
+package net.atarno.vertx.memcached.client;
+
+import net.spy.memcached.CachedData;
+import net.spy.memcached.MemcachedClient;
+import net.spy.memcached.internal.AbstractListenableFuture;
+import net.spy.memcached.internal.OperationCompletionListener;
+import net.spy.memcached.internal.OperationFuture;
+import net.spy.memcached.ops.OperationStatus;
+import net.spy.memcached.ops.StatusCode;
+import net.spy.memcached.transcoders.Transcoder;
+import org.vertx.java.core.Context;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Replication of the writes to a secondary group of servers, and failover of the reads to it.<p>
+ * SET, DELETE, TOUCH and FLUSH, and their bulk forms, are sent to the replica servers along with the primary ones.
+ * ADD, REPLACE and CAS are conditional on the content of the primary server, they are mirrored as a SET once the
+ * primary accepted them. APPEND, PREPEND, INCR, DECR and UPDATE cannot be replayed as is, the key is deleted from the replica once
+ * the primary accepted them, so the replica never serves a stale value. Values above <code>memcached.chunk.size</code>
+ * are chunked on the replica as on the primary. The replica is not waited for, its failures are only counted. The
+ * writes of a key whose chunks are being written wait until its manifest is stored, a DELETE sent meanwhile would
+ * miss the manifest and let the value come back with it.<p>
+ * GET and GETBULK are read from the replica when the primary server of the key is down, when the read failed or when
+ * no answer came within the operation time-out. A miss on a live primary is a miss, unless the replica is also asked
+ * on a miss, which fills the gaps left by a primary server that restarted empty.<p>
+ * Only touched from the verticle's event loop, but for the counters updated by the write listener.
+ */
+class Replica {
+
+    private final MemClient verticle;
+    private final Context ctx;
+    private final boolean readOnMiss;
+    // the keys whose chunked value is being written, with the writes that wait for its manifest
+    private final Map<String, Chunking> chunking = new HashMap<>();
+    private final AtomicLong writes = new AtomicLong();
+    private final AtomicLong writeFailures = new AtomicLong();
+    private long fallbacks;
+    private final OperationCompletionListener writeListener = new OperationCompletionListener() {
+        @Override
+        public void onComplete( OperationFuture<?> future ) throws Exception {
+
+            OperationStatus status = future.getStatus();
+            // a delete or touch of a key the replica does not hold is not a failure
+            if ( status == null || !status.isSuccess() && status.getStatusCode() != StatusCode.ERR_NOT_FOUND ) {
+                writeFailures.incrementAndGet();
+            }
+        }
+    };
+
+    Replica( MemClient verticle, Context ctx, boolean readOnMiss ) {
+
+        this.verticle = verticle;
+        this.ctx = ctx;
+        this.readOnMiss = readOnMiss;
+    }
+
+    /**
+     * @return true if the current pool has replica servers
+     */
+    boolean isEnabled() {
+
+        return verticle.getPool().getReplica() != null;
+    }
+
+    /**
+     * called once a command was submitted to the primary servers, sends the unconditional writes to the replica
+     */
+    void submitted( MemCommand command, Message<JsonObject> message ) {
+
+        ClientPool replica = verticle.getPool().getReplica();
+        if ( replica == null ) {
+            return;
+        }
+        try {
+            JsonObject body = message.body();
+            int exp = body.getInteger( "exp" ) == null ? 0 : body.getInteger( "exp" );
+            switch ( command ) {
+                case SET:
+                    set( replica, body.getString( "key" ), exp, Revalidation.wrap( body, body.getField( "value" ) ), verticle.getTranscoder( message ) );
+                    break;
+                case DELETE:
+                    delete( replica, body.getString( "key" ) );
+                    break;
+                case TOUCH:
+                    touch( replica, body.getString( "key" ), exp );
+                    break;
+                case FLUSH:
+                    MemcachedClient memClient = replica.select();
+                    int delay = body.getInteger( "delay" ) == null ? 0 : body.getInteger( "delay" );
+                    // not tracked, as on the primary servers
+                    writes.incrementAndGet();
+                    memClient.flush( delay ).addListener( writeListener );
+                    break;
+                case SETBULK:
+                    Transcoder<Object> tc = verticle.getTranscoder( message );
+                    JsonArray items = body.getArray( "items" );
+                    for ( int i = 0; i < items.size(); i++ ) {
+                        JsonObject item = items.get( i );
+                        int itemExp = item.getInteger( "exp" ) == null ? exp : item.getInteger( "exp" );
+                        set( replica, item.getString( "key" ), itemExp, item.getField( "value" ), tc );
+                    }
+                    break;
+                case DELETEBULK:
+                    for ( Object key : body.getArray( "keys" ).toArray() ) {
+                        delete( replica, ( String ) key );
+                    }
+                    break;
+                case TOUCHBULK:
+                    for ( Object key : body.getArray( "keys" ).toArray() ) {
+                        touch( replica, ( String ) key, exp );
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+        catch ( Exception e ) {
+            writeFailures.incrementAndGet();
+        }
+    }
+
+    /**
+     * called once the primary servers accepted a write, mirrors the conditional writes to the replica
+     */
+    void confirmed( MemCommand command, Message<JsonObject> message ) {
+
+        ClientPool replica = verticle.getPool().getReplica();
+        if ( replica == null ) {
+            return;
+        }
+        try {
+            JsonObject body = message.body();
+            switch ( command ) {
+                case ADD:
+                case REPLACE:
+                case CAS:
+                    int exp = body.getInteger( "exp" ) == null ? 0 : body.getInteger( "exp" );
+                    set( replica, body.getString( "key" ), exp, body.getField( "value" ), verticle.getTranscoder( message ) );
+                    break;
+                case APPEND:
+                case PREPEND:
+                case INCR:
+                case DECR:
+                case UPDATE:
+                    delete( replica, body.getString( "key" ) );
+                    break;
+                default:
+                    break;
+            }
+        }
+        catch ( Exception e ) {
+            writeFailures.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return true if a read of the primary servers should be retried on the replica
+     */
+    boolean shouldFallback( AbstractListenableFuture<?, ?> future, OperationStatus status ) {
+
+        if ( future == null || !future.isDone() || status == null ) {
+            return true;
+        }
+        if ( status.isSuccess() ) {
+            return false;
+        }
+        return readOnMiss || status.getStatusCode() != StatusCode.ERR_NOT_FOUND;
+    }
+
+    /**
+     * @param error the error a batched read of the primary servers ended with, see {@link GetBatcher.Callback}
+     * @return true if the read should be retried on the replica
+     */
+    boolean shouldFallback( String error ) {
+
+        return error != null && ( readOnMiss || !GetBatcher.NOT_FOUND.equals( error ) );
+    }
+
+    /**
+     * reads the key of the completion from the replica, the completion is abandoned
+     */
+    void get( Completion c ) {
+
+        ClientPool replica = verticle.getPool().getReplica();
+        abandon( c );
+        fallbacks++;
+        Completion.OfGet fallback = new Completion.OfGet( c.command, c.verticle, c.message, c.ctx, c.key );
+        fallback.fallback = true;
+        fallback.flightId = c.flightId;
+        fallback.waiting = c.waiting;
+        fallback.stamp = c.stamp;
+        MemcachedClient memClient = replica.select();
+        try {
+            Transcoder<Object> tc = verticle.getTranscoder( c.message );
+            guard( fallback );
+            replica.track( memClient, memClient.asyncGet( c.key, tc ) ).addListener( fallback );
+        }
+        catch ( Exception e ) {
+            // the transcoder was already resolved for the primary read, this is not expected
+            fallback.command.complete( fallback );
+        }
+    }
+
+    /**
+     * reads the keys the primary servers did not answer for from the replica
+     *
+     * @param found the values read from the primary servers, added to the values of the completion
+     * @return false if all the keys were answered, the completion is then to be replied
+     */
+    boolean getBulk( Completion c, Map<String, Object> found ) {
+
+        boolean failed = shouldFallback( c.future, c.status );
+        ClientPool pool = verticle.getPool();
+        List<String> retry = new ArrayList<>();
+        for ( String key : c.keys ) {
+            if ( !found.containsKey( key ) && ( failed || readOnMiss || !pool.isAvailable( key ) || verticle.isBroken( key ) ) ) {
+                retry.add( key );
+            }
+        }
+        if ( retry.isEmpty() ) {
+            return false;
+        }
+        abandon( c );
+        fallbacks++;
+        Completion.OfBulkGet fallback = new Completion.OfBulkGet( c.command, c.verticle, c.message, c.ctx, null );
+        fallback.fallback = true;
+        fallback.stamp = c.stamp;
+        fallback.keys = retry;
+        fallback.cached = c.cached;
+        fallback.cached.putAll( found );
+        MemcachedClient memClient = pool.getReplica().select();
+        try {
+            Transcoder<Object> tc = verticle.getTranscoder( c.message );
+            guard( fallback );
+            pool.getReplica().track( memClient, memClient.asyncGetBulk( retry, tc ) ).addListener( fallback );
+        }
+        catch ( Exception e ) {
+            // the transcoder was already resolved for the primary read, this is not expected
+            fallback.command.complete( fallback );
+        }
+        return true;
+    }
+
+    /**
+     * completes the read without a result once the operation time-out elapsed, since spymemcached does not
+     * complete an operation that was sent to a server that never answered
+     */
+    void guard( final Completion c ) {
+
+        c.timerId = verticle.getVertx().setTimer( verticle.getTimeOutMillis(), new Handler<Long>() {
+            @Override
+            public void handle( Long id ) {
+
+                c.timerId = -1;
+                if ( !c.abandoned ) {
+                    c.future = null;
+                    c.status = null;
+                    c.command.complete( c );
+                }
+            }
+        } );
+    }
+
+    /**
+     * cancels the time-out of the completion and makes its later completion a no-op
+     *
+     * @return false if the completion was already abandoned
+     */
+    boolean abandon( Completion c ) {
+
+        if ( c.timerId != -1 ) {
+            verticle.getVertx().cancelTimer( c.timerId );
+            c.timerId = -1;
+        }
+        if ( c.abandoned ) {
+            return false;
+        }
+        c.abandoned = true;
+        return true;
+    }
+
+    JsonObject toJson() {
+
+        return new JsonObject()
+                .putBoolean( "readonmiss", readOnMiss )
+                .putNumber( "writes", writes.get() )
+                .putNumber( "writefailures", writeFailures.get() )
+                .putNumber( "fallbacks", fallbacks );
+    }
+
+    private void set( ClientPool replica, final String key, final int exp, final Object value, final Transcoder<Object> tc ) {
+
+        if ( chunking.containsKey( key ) ) {
+            chunking.get( key ).waiting.add( new Handler<Void>() {
+                @Override
+                public void handle( Void v ) {
+
+                    ClientPool current = verticle.getPool().getReplica();
+                    if ( current != null ) {
+                        set( current, key, exp, value, tc );
+                    }
+                }
+            } );
+            return;
+        }
+        MemcachedClient memClient = replica.select();
+        Chunks chunks = verticle.getChunks();
+        if ( chunks == null ) {
+            write( replica, memClient, memClient.set( key, exp, value, tc ) );
+            return;
+        }
+        // chunked the same way as on the primary servers, the replica would refuse a value above its item size
+        CachedData data = tc.encode( value );
+        if ( !chunks.isLarge( data ) ) {
+            write( replica, memClient, memClient.set( key, exp, data, BinaryProtocol.RAW ) );
+            return;
+        }
+        writes.incrementAndGet();
+        final Chunking waiting = new Chunking();
+        chunking.put( key, waiting );
+        // spymemcached does not complete an operation sent to a server that never answered, the chunks and then the
+        // manifest are given the operation time-out each
+        waiting.timerId = verticle.getVertx().setTimer( 2 * verticle.getTimeOutMillis(), new Handler<Long>() {
+            @Override
+            public void handle( Long id ) {
+
+                waiting.timerId = -1;
+                chunked( key, waiting );
+            }
+        } );
+        try {
+            chunks.set( replica, memClient, key, exp, data, new OperationCompletionListener() {
+                @Override
+                public void onComplete( OperationFuture<?> future ) throws Exception {
+
+                    writeListener.onComplete( future );
+                    ctx.runOnContext( new Handler<Void>() {
+                        @Override
+                        public void handle( Void v ) {
+
+                            chunked( key, waiting );
+                        }
+                    } );
+                }
+            }, new Handler<String>() {
+                @Override
+                public void handle( String error ) {
+
+                    writeFailures.incrementAndGet();
+                    chunked( key, waiting );
+                }
+            } );
+        }
+        catch ( Exception e ) {
+            // the key is too long to be chunked, the primary write failed the same way
+            writeFailures.incrementAndGet();
+            chunked( key, waiting );
+        }
+    }
+
+    /**
+     * runs the writes that waited for the chunked value of the key, in order, a chunked one holds the rest back again
+     */
+    private void chunked( String key, Chunking chunked ) {
+
+        if ( chunking.get( key ) != chunked ) {
+            // already run by the time-out
+            return;
+        }
+        chunking.remove( key );
+        if ( chunked.timerId != -1 ) {
+            verticle.getVertx().cancelTimer( chunked.timerId );
+        }
+        List<Handler<Void>> waiting = chunked.waiting;
+        for ( int i = 0; i < waiting.size(); i++ ) {
+            waiting.get( i ).handle( null );
+            if ( chunking.containsKey( key ) ) {
+                chunking.get( key ).waiting.addAll( waiting.subList( i + 1, waiting.size() ) );
+                return;
+            }
+        }
+    }
+
+    private void delete( ClientPool replica, final String key ) {
+
+        if ( chunking.containsKey( key ) ) {
+            chunking.get( key ).waiting.add( new Handler<Void>() {
+                @Override
+                public void handle( Void v ) {
+
+                    ClientPool current = verticle.getPool().getReplica();
+                    if ( current != null ) {
+                        delete( current, key );
+                    }
+                }
+            } );
+            return;
+        }
+        MemcachedClient memClient = replica.select();
+        if ( verticle.getChunks() != null ) {
+            writes.incrementAndGet();
+            verticle.getChunks().delete( replica, memClient, key, writeListener );
+            return;
+        }
+        write( replica, memClient, memClient.delete( key ) );
+    }
+
+    private void touch( ClientPool replica, final String key, final int exp ) {
+
+        if ( chunking.containsKey( key ) ) {
+            chunking.get( key ).waiting.add( new Handler<Void>() {
+                @Override
+                public void handle( Void v ) {
+
+                    ClientPool current = verticle.getPool().getReplica();
+                    if ( current != null ) {
+                        touch( current, key, exp );
+                    }
+                }
+            } );
+            return;
+        }
+        MemcachedClient memClient = replica.select();
+        write( replica, memClient, memClient.touch( key, exp ) );
+    }
+
+    private void write( ClientPool replica, MemcachedClient memClient, OperationFuture<?> future ) {
+
+        writes.incrementAndGet();
+        replica.track( memClient, future ).addListener( writeListener );
+    }
+
+    /**
+     * a chunked value being written to the replica, with the writes of its key that wait for its manifest
+     */
+    private static class Chunking {
+        final List<Handler<Void>> waiting = new ArrayList<>();
+        long timerId = -1;
+    }
+}
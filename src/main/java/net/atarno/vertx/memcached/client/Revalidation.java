@@ -0,0 +1,272 @@
+package net.atarno.vertx.memcached.client;
+
+import net.spy.memcached.CachedData;
+import net.spy.memcached.MemcachedClient;
+import net.spy.memcached.internal.GetCompletionListener;
+import net.spy.memcached.internal.GetFuture;
+import net.spy.memcached.internal.OperationCompletionListener;
+import net.spy.memcached.internal.OperationFuture;
+import net.spy.memcached.ops.OperationStatus;
+import net.spy.memcached.transcoders.Transcoder;
+import org.vertx.java.core.Context;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Stale-while-revalidate reads of the values SET with a soft time-to-live.<p>
+ * Such a value is stored in an envelope that holds the time its soft time-to-live ends and, optionally, how long
+ * the value took to compute, the <code>exp</code> of the item stays the hard time-to-live. A GET asking for it
+ * (<code>"swr":true</code>) gets the value as long as the item exists. Once the soft time-to-live passed the value
+ * is flagged stale, and a single caller across all the clients is granted the refresh: the one whose ADD of a
+ * short-lived lease item succeeds. The others keep getting the stale value instead of all recomputing it at once.<p>
+ * Before the soft time-to-live ends, a read may be picked for an early refresh with the XFetch probability:
+ * the closer to the end and the longer the computation, the likelier, so that the value is mostly refreshed
+ * before it goes stale. The early refresh is granted through the same lease.<p>
+ * The envelope is stored with the {@link #ENVELOPE} flag by the transcoders of the verticle, which read such an
+ * item back as the value alone, so only the reads of this class see the envelope.<p>
+ * Only touched from the verticle's event loop.
+ */
+class Revalidation {
+
+    static final int ENVELOPE = 0x80000;
+    static final String LEASE_SUFFIX = "~lease";
+    static final int DEFAULT_LEASE = 10;
+
+    private final MemClient verticle;
+    private final Context ctx;
+    private long fresh;
+    private long stale;
+    private long early;
+    private long leases;
+
+    Revalidation( MemClient verticle, Context ctx ) {
+
+        this.verticle = verticle;
+        this.ctx = ctx;
+    }
+
+    /**
+     * @return the envelope of the value if the request sets a soft time-to-live, otherwise the value itself
+     */
+    static Object wrap( JsonObject body, Object value ) throws Exception {
+
+        Integer soft = body.getInteger( "soft" );
+        if ( soft == null ) {
+            return value;
+        }
+        int exp = body.getInteger( "exp" ) == null ? 0 : body.getInteger( "exp" );
+        // expirations beyond 30 days are absolute times for memcached
+        if ( soft < 1 || exp > 0 && exp <= 30 * 24 * 3600 && soft >= exp ) {
+            throw new Exception( "'soft' must be a positive number of seconds below 'exp'" );
+        }
+        Long delta = body.getLong( "delta" );
+        JsonObject envelope = new JsonObject()
+                .putNumber( "soft", System.currentTimeMillis() + soft * 1000L )
+                .putNumber( "delta", delta == null ? 0 : delta );
+        return new Envelope( MemCommand.parseForJson( envelope, "value", value ) );
+    }
+
+    /**
+     * wraps a transcoder of the verticle, so that envelopes are flagged when written and unwrapped when read
+     */
+    static Transcoder<Object> enveloping( Transcoder<Object> tc ) {
+
+        return new Enveloping( tc, false );
+    }
+
+    /**
+     * reads the key, and on a soft-expired or early-refreshed value, competes for the refresh lease
+     */
+    void get( final MemcachedClient memClient, final Message<JsonObject> message, final String key ) throws Exception {
+
+        if ( !verticle.allow( key ) ) {
+            throw new Exception( CircuitBreakers.OPEN_ERROR );
+        }
+        Transcoder<Object> tc = verticle.getTranscoder( message );
+        if ( tc instanceof Enveloping ) {
+            tc = ( ( Enveloping ) tc ).keeping;
+        }
+        verticle.getPool().track( memClient, memClient.asyncGet( key, tc ) ).addListener( new GetCompletionListener() {
+            @Override
+            public void onComplete( final GetFuture<?> future ) throws Exception {
+
+                ctx.runOnContext( new Handler<Void>() {
+                    @Override
+                    public void handle( Void v ) {
+
+                        try {
+                            read( memClient, message, key, future );
+                        }
+                        catch ( Exception e ) {
+                            MemCommand.sendError( message, e.getMessage() );
+                        }
+                    }
+                } );
+            }
+        } );
+    }
+
+    JsonObject toJson() {
+
+        return new JsonObject()
+                .putNumber( "fresh", fresh )
+                .putNumber( "stale", stale )
+                .putNumber( "early", early )
+                .putNumber( "leases", leases );
+    }
+
+    /**
+     * @return true if no read was done
+     */
+    boolean isIdle() {
+
+        return fresh + stale + early == 0;
+    }
+
+    private void read( MemcachedClient memClient, final Message<JsonObject> message, final String key, GetFuture<?> future ) throws Exception {
+
+        String error = MemCommand.failure( future, future.getStatus() );
+        if ( error != null ) {
+            MemCommand.sendError( message, error );
+            return;
+        }
+        Object value = future.get();
+        if ( !( value instanceof Envelope ) ) {
+            reply( message, key, value, false, false );
+            return;
+        }
+        final JsonObject envelope = ( ( Envelope ) value ).json;
+        long now = System.currentTimeMillis();
+        long soft = envelope.getLong( "soft" );
+        long delta = envelope.getLong( "delta" ) == null ? 0 : envelope.getLong( "delta" );
+        double beta = message.body().getNumber( "beta", 1 ).doubleValue();
+        final boolean isStale = now >= soft;
+        // XFetch: -log(random) is exponentially distributed, the recomputation is anticipated by delta * beta on average
+        if ( !isStale && ( delta <= 0 || beta <= 0 || now - delta * beta * Math.log( 1 - ThreadLocalRandom.current().nextDouble() ) < soft ) ) {
+            fresh++;
+            reply( message, key, envelope.getField( "value" ), false, false );
+            return;
+        }
+        if ( isStale ) {
+            stale++;
+        }
+        else {
+            early++;
+        }
+        int lease = message.body().getInteger( "lease" ) == null ? DEFAULT_LEASE : message.body().getInteger( "lease" );
+        verticle.getPool().track( memClient, memClient.add( key + LEASE_SUFFIX, lease, Boolean.TRUE ) ).addListener( new OperationCompletionListener() {
+            @Override
+            public void onComplete( final OperationFuture<?> f ) throws Exception {
+
+                ctx.runOnContext( new Handler<Void>() {
+                    @Override
+                    public void handle( Void v ) {
+
+                        // another client holds the lease, or the lease could not be taken: the value is served as is
+                        OperationStatus status = f.getStatus();
+                        boolean granted = status != null && status.isSuccess();
+                        if ( granted ) {
+                            leases++;
+                        }
+                        reply( message, key, envelope.getField( "value" ), isStale, granted );
+                    }
+                } );
+            }
+        } );
+    }
+
+    private static void reply( Message<JsonObject> message, String key, Object value, boolean isStale, boolean refresh ) {
+
+        try {
+            JsonObject response = MemCommand.parseForJson( new JsonObject().putString( "key", key ), "value", value );
+            MemCommand.sendOk( message, response.putBoolean( "stale", isStale ).putBoolean( "refresh", refresh ) );
+        }
+        catch ( Exception e ) {
+            MemCommand.sendError( message, e.getMessage() );
+        }
+    }
+
+    @SuppressWarnings( "unchecked" )
+    private static JsonObject envelopeOf( Object value ) {
+
+        JsonObject json = null;
+        if ( value instanceof JsonObject ) {
+            json = ( JsonObject ) value;
+        }
+        else if ( value instanceof Map ) {
+            json = new JsonObject( ( Map<String, Object> ) value );
+        }
+        if ( json == null || !( json.getValue( "soft" ) instanceof Number ) || !json.containsField( "value" ) ) {
+            return null;
+        }
+        return json;
+    }
+
+    /**
+     * a value with its soft time-to-live, as it is stored
+     */
+    static class Envelope {
+        final JsonObject json;
+
+        Envelope( JsonObject json ) {
+
+            this.json = json;
+        }
+    }
+
+    /**
+     * flags the envelopes it encodes, and decodes a flagged item to its value, or to the envelope itself when keeping
+     */
+    private static class Enveloping implements Transcoder<Object> {
+        private final Transcoder<Object> tc;
+        private final boolean keep;
+        private final Enveloping keeping;
+
+        Enveloping( Transcoder<Object> tc, boolean keep ) {
+
+            this.tc = tc;
+            this.keep = keep;
+            this.keeping = keep ? this : new Enveloping( tc, true );
+        }
+
+        @Override
+        public boolean asyncDecode( CachedData d ) {
+
+            return tc.asyncDecode( d );
+        }
+
+        @Override
+        public CachedData encode( Object o ) {
+
+            if ( !( o instanceof Envelope ) ) {
+                return tc.encode( o );
+            }
+            CachedData d = tc.encode( ( ( Envelope ) o ).json );
+            return new CachedData( d.getFlags() | ENVELOPE, d.getData(), tc.getMaxSize() );
+        }
+
+        @Override
+        public Object decode( CachedData d ) {
+
+            if ( ( d.getFlags() & ENVELOPE ) == 0 ) {
+                return tc.decode( d );
+            }
+            Object decoded = tc.decode( new CachedData( d.getFlags() & ~ENVELOPE, d.getData(), tc.getMaxSize() ) );
+            JsonObject json = envelopeOf( decoded );
+            if ( json == null ) {
+                return decoded;
+            }
+            return keep ? new Envelope( json ) : json.getField( "value" );
+        }
+
+        @Override
+        public int getMaxSize() {
+
+            return tc.getMaxSize();
+        }
+    }
+}
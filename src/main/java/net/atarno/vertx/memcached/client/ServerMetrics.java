@@ -0,0 +1,76 @@
+package net.atarno.vertx.memcached.client;
+
+import org.vertx.java.core.json.JsonObject;
+
+import java.net.SocketAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-server operation counters.<p>
+ * Updated by {@link MeteredOperationFactory} from the spymemcached IO threads of every client in the pool,
+ * hence the atomics. Byte counts are estimated from the binary protocol header size plus the key and value lengths.
+ */
+class ServerMetrics {
+
+    private final ConcurrentMap<String, Counters> servers = new ConcurrentHashMap<>();
+
+    Counters get( SocketAddress sa ) {
+
+        String address = StatsCollector.toString( sa );
+        Counters c = servers.get( address );
+        if ( c == null ) {
+            Counters created = new Counters();
+            c = servers.putIfAbsent( address, created );
+            if ( c == null ) {
+                c = created;
+            }
+        }
+        return c;
+    }
+
+    void reset() {
+
+        for ( Counters c : servers.values() ) {
+            c.reset();
+        }
+    }
+
+    JsonObject toJson() {
+
+        JsonObject json = new JsonObject();
+        for ( Map.Entry<String, Counters> e : servers.entrySet() ) {
+            json.putObject( e.getKey(), e.getValue().toJson() );
+        }
+        return json;
+    }
+
+    static class Counters {
+        final AtomicLong ops = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+        final AtomicLong timeouts = new AtomicLong();
+        final AtomicLong bytesIn = new AtomicLong();
+        final AtomicLong bytesOut = new AtomicLong();
+
+        void reset() {
+
+            ops.set( 0 );
+            errors.set( 0 );
+            timeouts.set( 0 );
+            bytesIn.set( 0 );
+            bytesOut.set( 0 );
+        }
+
+        JsonObject toJson() {
+
+            return new JsonObject()
+                    .putNumber( "ops", ops.get() )
+                    .putNumber( "errors", errors.get() )
+                    .putNumber( "timeouts", timeouts.get() )
+                    .putNumber( "bytesIn", bytesIn.get() )
+                    .putNumber( "bytesOut", bytesOut.get() );
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package net.atarno.vertx.memcached.client;
+
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.eventbus.ReplyException;
+import org.vertx.java.core.eventbus.ReplyFailure;
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.UUID;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Key affinity across the instances of the verticle, when <code>memcached.shards</code> is set.<p>
+ * Every instance claims one of the shards in the shared data of vert.x and registers the shard's address, which
+ * is the verticle address followed by a dot and the shard number. A request received on the verticle address is
+ * routed by the hash of its key to the shard address, so all the requests of a key are served by one instance, on
+ * one event loop, where they share its near cache, its coalesced reads and its aggregated counters. A request of
+ * the instance's own shard is served in place, as are the requests without a single key (bulk reads, batches,
+ * status) and the requests of a shard that no instance claimed.<p>
+ * The claims live in the local shared data, so the shards are those of one vert.x instance: the instances of a
+ * cluster each claim the same shards and do not route to each other.
+ */
+class Shards implements Handler<Message<JsonObject>> {
+
+    static final String CLAIMS = "vertx.memcached.shards";
+    // the owner may hold the request in the admission queue, well beyond the memcached time-out
+    static final long DEFAULT_FORWARD_TIMEOUT = 30000;
+
+    private final MemClient verticle;
+    private final String address;
+    private final int count;
+    private final long forwardTimeout;
+    private final String owner = UUID.randomUUID().toString();
+    private ConcurrentMap<String, String> claims;
+    private int shard = -1;
+    private long local;
+    private long forwarded;
+    private long unclaimed;
+
+    Shards( MemClient verticle, String address, int count, long forwardTimeout ) {
+
+        this.verticle = verticle;
+        this.address = address;
+        this.count = count;
+        this.forwardTimeout = forwardTimeout;
+    }
+
+    static int shardOf( String key, int count ) {
+
+        return ( key.hashCode() & Integer.MAX_VALUE ) % count;
+    }
+
+    static String addressOf( String address, int shard ) {
+
+        return address + "." + shard;
+    }
+
+    /**
+     * claims the first free shard of the verticle address
+     *
+     * @return the address of the shard
+     */
+    String claim() throws Exception {
+
+        claims = verticle.getVertx().sharedData().getMap( CLAIMS );
+        for ( int i = 0; i < count; i++ ) {
+            if ( claims.putIfAbsent( addressOf( address, i ), owner ) == null ) {
+                shard = i;
+                return addressOf( address, i );
+            }
+        }
+        throw new Exception( "all the " + count + " shards of " + address + " are claimed" );
+    }
+
+    void release() {
+
+        if ( shard != -1 ) {
+            claims.remove( addressOf( address, shard ), owner );
+            shard = -1;
+        }
+    }
+
+    @Override
+    public void handle( final Message<JsonObject> message ) {
+
+        String key = message.body().getString( "key" );
+        int target = key == null ? shard : shardOf( key, count );
+        if ( target == shard ) {
+            local++;
+            verticle.dispatch( message );
+            return;
+        }
+        forwarded++;
+        verticle.getVertx().eventBus().sendWithTimeout( addressOf( address, target ), message.body(), forwardTimeout, new Handler<AsyncResult<Message<JsonObject>>>() {
+            @Override
+            public void handle( AsyncResult<Message<JsonObject>> reply ) {
+
+                if ( reply.succeeded() ) {
+                    message.reply( reply.result().body() );
+                    return;
+                }
+                if ( reply.cause() instanceof ReplyException && ( ( ReplyException ) reply.cause() ).failureType() == ReplyFailure.NO_HANDLERS ) {
+                    unclaimed++;
+                    verticle.dispatch( message );
+                    return;
+                }
+                MemCommand.sendError( message, reply.cause().getMessage() );
+            }
+        } );
+    }
+
+    JsonObject toJson() {
+
+        return new JsonObject()
+                .putNumber( "shards", count )
+                .putNumber( "shard", shard )
+                .putNumber( "local", local )
+                .putNumber( "forwarded", forwarded )
+                .putNumber( "unclaimed", unclaimed );
+    }
+}
@@ -0,0 +1,77 @@
+package net.atarno.vertx.memcached.client;
+
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * Coalesces concurrent reads of the same key into a single memcached operation.<p>
+ * The first request for a key becomes the leader and issues the operation, requests for the same key that
+ * arrive while it is in flight just wait for its result. All of them are replied when the operation completes.
+ * A local write to the key detaches the flight, so reads that follow the write issue a fresh operation.<p>
+ * Flights are identified by the key, optionally followed by a space and a variant (e.g. the GAT expiration),
+ * which keeps all the flights of a key in one range of the map.
+ * Belongs to a single verticle and is only used on its event loop.
+ */
+class SingleFlight {
+
+    private final TreeMap<String, List<Message<JsonObject>>> inFlight = new TreeMap<>();
+    private long leaders;
+    private long coalesced;
+
+    static String id( String key, String variant ) {
+
+        return variant == null || variant.isEmpty() ? key : key + " " + variant;
+    }
+
+    /**
+     * @return the list of the waiting requests if the caller is the leader and has to issue the operation,
+     * null if the request joined an operation that is already in flight
+     */
+    List<Message<JsonObject>> join( String id, Message<JsonObject> message ) {
+
+        List<Message<JsonObject>> waiting = inFlight.get( id );
+        if ( waiting == null ) {
+            waiting = new ArrayList<>( 1 );
+            waiting.add( message );
+            inFlight.put( id, waiting );
+            leaders++;
+            return waiting;
+        }
+        waiting.add( message );
+        coalesced++;
+        return null;
+    }
+
+    /**
+     * ends the flight led by the owner of the given list
+     */
+    void complete( String id, List<Message<JsonObject>> waiting ) {
+
+        if ( inFlight.get( id ) == waiting ) {
+            inFlight.remove( id );
+        }
+    }
+
+    /**
+     * detaches all the flights of a key
+     */
+    void forget( String key ) {
+
+        inFlight.remove( key );
+        inFlight.subMap( key + " ", key + "!" ).clear();
+    }
+
+    void forgetAll() {
+
+        inFlight.clear();
+    }
+
+    JsonObject toJson() {
+
+        return new JsonObject().putNumber( "inflight", inFlight.size() ).putNumber( "issued", leaders ).putNumber( "coalesced", coalesced );
+    }
+}
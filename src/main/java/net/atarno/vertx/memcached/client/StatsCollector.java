@@ -0,0 +1,186 @@
+package net.atarno.vertx.memcached.client;
+
+import net.spy.memcached.BroadcastOpFactory;
+import net.spy.memcached.MemcachedClient;
+import net.spy.memcached.MemcachedNode;
+import net.spy.memcached.OperationFactory;
+import net.spy.memcached.ops.Operation;
+import net.spy.memcached.ops.OperationStatus;
+import net.spy.memcached.ops.StatsOperation;
+import net.spy.memcached.protocol.binary.BinaryOperationFactory;
+import org.vertx.java.core.Context;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Non-blocking replacement for {@link MemcachedClient#getStats()}.<p>
+ * A STATS operation is broadcast to every node of the client, the per-node answers are collected on the
+ * caller's context and handed over once all nodes replied or the time-out elapsed, whichever comes first.
+ * Nodes that did not answer in time are reported as timed out, so partial results are still returned.
+ */
+public class StatsCollector {
+
+    private static final OperationFactory opFactory = new BinaryOperationFactory();
+
+    private final Vertx vertx;
+    private final Context ctx;
+    private final long timeOutMillis;
+    private final Handler<StatsCollector> doneHandler;
+
+    private final Map<SocketAddress, Map<String, String>> stats = new LinkedHashMap<>();
+    private final Map<SocketAddress, String> failed = new LinkedHashMap<>();
+    private final Map<SocketAddress, Boolean> pending = new HashMap<>();
+    private long timerId = -1;
+    private boolean done;
+
+    public StatsCollector( Vertx vertx, Context ctx, long timeOutMillis, Handler<StatsCollector> doneHandler ) {
+
+        this.vertx = vertx;
+        this.ctx = ctx;
+        this.timeOutMillis = timeOutMillis;
+        this.doneHandler = doneHandler;
+    }
+
+    public void submit( MemcachedClient memClient ) {
+
+        // the locator of the client only hands out read-only views of the nodes, they can name the servers
+        // but not take operations, so the broadcast itself goes to the live nodes of the connection
+        for ( MemcachedNode n : memClient.getNodeLocator().getAll() ) {
+            pending.put( n.getSocketAddress(), Boolean.TRUE );
+        }
+        if ( pending.isEmpty() ) {
+            finish();
+            return;
+        }
+        timerId = vertx.setTimer( timeOutMillis, new Handler<Long>() {
+            @Override
+            public void handle( Long id ) {
+
+                timerId = -1;
+                finish();
+            }
+        } );
+        memClient.broadcastOp( new BroadcastOpFactory() {
+            @Override
+            public Operation newOp( MemcachedNode n, final CountDownLatch latch ) {
+
+                final SocketAddress sa = n.getSocketAddress();
+                final Map<String, String> nodeStats = new HashMap<>();
+                return opFactory.stats( null, new StatsOperation.Callback() {
+                    private OperationStatus status;
+
+                    @Override
+                    public void gotStat( String name, String val ) {
+
+                        nodeStats.put( name, val );
+                    }
+
+                    @Override
+                    public void receivedStatus( OperationStatus status ) {
+
+                        this.status = status;
+                    }
+
+                    @Override
+                    public void complete() {
+
+                        latch.countDown();
+                        final OperationStatus s = status;
+                        ctx.runOnContext( new Handler<Void>() {
+                            @Override
+                            public void handle( Void v ) {
+
+                                nodeDone( sa, nodeStats, s );
+                            }
+                        } );
+                    }
+                } );
+            }
+        } );
+    }
+
+    /**
+     * @return stats of all the nodes that answered successfully
+     */
+    public Map<SocketAddress, Map<String, String>> getStats() {
+
+        return stats;
+    }
+
+    /**
+     * @return true if at least one node answered with non-empty stats
+     */
+    public boolean anyAvailable() {
+
+        for ( Map<String, String> s : stats.values() ) {
+            if ( s != null && !s.isEmpty() ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public JsonObject toJson() {
+
+        JsonArray servers = new JsonArray();
+        for ( Map.Entry<SocketAddress, Map<String, String>> e : stats.entrySet() ) {
+            JsonObject s = new JsonObject();
+            s.putString( "address", toString( e.getKey() ) );
+            for ( Map.Entry<String, String> i : e.getValue().entrySet() ) {
+                s.putString( i.getKey(), i.getValue() );
+            }
+            servers.addObject( s );
+        }
+        JsonArray failures = new JsonArray();
+        for ( Map.Entry<SocketAddress, String> e : failed.entrySet() ) {
+            failures.addObject( new JsonObject().putString( "address", toString( e.getKey() ) ).putString( "message", e.getValue() ) );
+        }
+        JsonArray timedOut = new JsonArray();
+        for ( SocketAddress sa : pending.keySet() ) {
+            timedOut.addString( toString( sa ) );
+        }
+        return new JsonObject().putArray( "servers", servers ).putArray( "failed", failures ).putArray( "timedout", timedOut );
+    }
+
+    private void nodeDone( SocketAddress sa, Map<String, String> nodeStats, OperationStatus status ) {
+
+        if ( done || pending.remove( sa ) == null ) {
+            return;
+        }
+        if ( status == null || status.isSuccess() ) {
+            stats.put( sa, nodeStats );
+        }
+        else {
+            failed.put( sa, status.getMessage() );
+        }
+        if ( pending.isEmpty() ) {
+            finish();
+        }
+    }
+
+    private void finish() {
+
+        if ( done ) {
+            return;
+        }
+        done = true;
+        if ( timerId != -1 ) {
+            vertx.cancelTimer( timerId );
+        }
+        doneHandler.handle( this );
+    }
+
+    static String toString( SocketAddress sa ) {
+
+        return ( ( InetSocketAddress ) sa ).getHostString() + ":" + ( ( InetSocketAddress ) sa ).getPort();
+    }
+}
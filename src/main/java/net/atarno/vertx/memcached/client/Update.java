@@ -0,0 +1,210 @@
+package net.atarno.vertx.memcached.client;
+
+import net.spy.memcached.CASValue;
+import net.spy.memcached.MemcachedClient;
+import net.spy.memcached.internal.OperationCompletionListener;
+import net.spy.memcached.internal.OperationFuture;
+import net.spy.memcached.ops.OperationStatus;
+import net.spy.memcached.transcoders.Transcoder;
+import org.vertx.java.core.Context;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.DecodeException;
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.Map;
+
+/**
+ * An atomic read-modify-write of a json object value (UPDATE).<p>
+ * The value is read with its CAS id, modified and written back with a CAS, which fails if another client wrote
+ * the key in between. The whole cycle is then retried on the verticle's context, up to a bounded number of
+ * attempts, so callers sharing a key do not pay an event bus round trip per conflict. A missing key is created
+ * with ADD from an empty object, a concurrent creation is a conflict as well.<p>
+ * The modification is a json merge patch (fields set to null are removed, objects are merged recursively) and/or
+ * numeric increments of top-level fields.
+ */
+@SuppressWarnings( "unchecked" )
+class Update implements OperationCompletionListener, Handler<Void> {
+
+    static final int DEFAULT_RETRIES = 10;
+
+    private final MemClient verticle;
+    private final Message<JsonObject> message;
+    private final Context ctx;
+    private final String key;
+    private final int exp;
+    private final int retries;
+    private final JsonObject merge;
+    private final JsonObject incr;
+    private final Transcoder<Object> tc;
+    private MemcachedClient memClient;
+    private int attempts;
+    private OperationFuture<?> future;
+    private boolean reading;
+    private JsonObject written;
+
+    Update( MemClient verticle, MemcachedClient memClient, Message<JsonObject> message, Context ctx, String key ) throws Exception {
+
+        JsonObject body = message.body();
+        this.verticle = verticle;
+        this.memClient = memClient;
+        this.message = message;
+        this.ctx = ctx;
+        this.key = key;
+        this.exp = body.getInteger( "exp" ) == null ? 0 : body.getInteger( "exp" );
+        this.retries = body.getInteger( "retries" ) == null ? DEFAULT_RETRIES : body.getInteger( "retries" );
+        this.merge = body.getObject( "merge" );
+        this.incr = body.getObject( "incr" );
+        this.tc = verticle.getTranscoder( message );
+        if ( merge == null && incr == null ) {
+            throw new Exception( "missing mandatory json object field 'merge' or 'incr'" );
+        }
+        if ( incr != null ) {
+            for ( String field : incr.getFieldNames() ) {
+                if ( !( incr.getValue( field ) instanceof Number ) ) {
+                    throw new Exception( "'incr' must hold numbers" );
+                }
+            }
+        }
+    }
+
+    void submit() {
+
+        attempts++;
+        reading = true;
+        verticle.getPool().track( memClient, memClient.asyncGets( key, tc ) ).addListener( this );
+    }
+
+    @Override
+    public void onComplete( OperationFuture<?> f ) throws Exception {
+
+        future = f;
+        ctx.runOnContext( this );
+    }
+
+    @Override
+    public void handle( Void v ) {
+
+        OperationStatus status = future.getStatus();
+        try {
+            if ( reading ) {
+                read( status );
+            }
+            else {
+                written( status );
+            }
+        }
+        catch ( Exception e ) {
+            MemCommand.sendError( message, e.getMessage() );
+        }
+    }
+
+    private void read( OperationStatus status ) throws Exception {
+
+        reading = false;
+        CASValue<Object> current = status.isSuccess() ? ( CASValue<Object> ) future.get() : null;
+        if ( current == null && !MemCommand.isMiss( status ) ) {
+            MemCommand.sendError( message, status.getMessage() );
+            return;
+        }
+        written = current == null ? new JsonObject() : toJson( current.getValue() );
+        if ( merge != null ) {
+            merge( written, merge );
+        }
+        if ( incr != null ) {
+            increment( written, incr );
+        }
+        Object value = current != null && current.getValue() instanceof String ? written.encode() : written;
+        if ( current == null ) {
+            verticle.getPool().track( memClient, memClient.add( key, exp, value, tc ) ).addListener( this );
+        }
+        else {
+            verticle.getPool().track( memClient, memClient.asyncCAS( key, current.getCas(), exp, value, tc ) ).addListener( this );
+        }
+    }
+
+    private void written( OperationStatus status ) throws Exception {
+
+        if ( status.isSuccess() ) {
+            verticle.invalidate( key );
+            verticle.getReplica().confirmed( MemCommand.UPDATE, message );
+            JsonObject response = new JsonObject().putString( "key", key ).putObject( "value", written ).putNumber( "attempts", attempts );
+            MemCommand.sendOk( message, MemCommand.parseForJson( response, "cas", MemCommand.casOf( future ) ) );
+            return;
+        }
+        // the key was written, created or deleted by another client in between
+        if ( !MemCommand.isConflict( status ) ) {
+            MemCommand.sendError( message, status.getMessage() );
+            return;
+        }
+        if ( attempts > retries ) {
+            verticle.invalidate( key );
+            MemCommand.sendError( message, "update failed after " + attempts + " attempts: the key is being modified concurrently" );
+            return;
+        }
+        // the pool may have been reconfigured in between
+        memClient = verticle.getPool().select();
+        submit();
+    }
+
+    private static JsonObject toJson( Object value ) throws Exception {
+
+        if ( value instanceof JsonObject ) {
+            return ( ( JsonObject ) value ).copy();
+        }
+        if ( value instanceof Map ) {
+            return new JsonObject( ( Map<String, Object> ) value ).copy();
+        }
+        if ( value instanceof String ) {
+            try {
+                return new JsonObject( ( String ) value );
+            }
+            catch ( DecodeException e ) {
+                // not a json object, reported below
+            }
+        }
+        throw new Exception( "the value is not a json object" );
+    }
+
+    /**
+     * RFC 7386 json merge patch
+     */
+    private static void merge( JsonObject target, JsonObject patch ) {
+
+        for ( String field : patch.getFieldNames() ) {
+            Object value = patch.getValue( field );
+            if ( value == null ) {
+                target.removeField( field );
+            }
+            else if ( value instanceof JsonObject && target.getValue( field ) instanceof JsonObject ) {
+                merge( target.getObject( field ), ( JsonObject ) value );
+            }
+            else {
+                target.putValue( field, value instanceof JsonObject ? ( ( JsonObject ) value ).copy() : value );
+            }
+        }
+    }
+
+    private static void increment( JsonObject target, JsonObject deltas ) throws Exception {
+
+        for ( String field : deltas.getFieldNames() ) {
+            Number delta = deltas.getNumber( field );
+            Object current = target.getValue( field );
+            if ( current != null && !( current instanceof Number ) ) {
+                throw new Exception( "field '" + field + "' is not a number" );
+            }
+            Number n = current == null ? 0 : ( Number ) current;
+            if ( isIntegral( n ) && isIntegral( delta ) ) {
+                target.putNumber( field, n.longValue() + delta.longValue() );
+            }
+            else {
+                target.putNumber( field, n.doubleValue() + delta.doubleValue() );
+            }
+        }
+    }
+
+    private static boolean isIntegral( Number n ) {
+
+        return n instanceof Integer || n instanceof Long || n instanceof Short || n instanceof Byte;
+    }
+}
@@ -0,0 +1,139 @@
+package net.atarno.vertx.memcached.client;
+
+import net.spy.memcached.DefaultHashAlgorithm;
+import net.spy.memcached.HashAlgorithm;
+import net.spy.memcached.KetamaNodeLocator;
+import net.spy.memcached.MemcachedNode;
+import net.spy.memcached.NodeLocator;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Ketama consistent hashing with per-server weights.<p>
+ * Every server gets a number of points on a 32 bit continuum proportional to its share of the total weight,
+ * 160 points for a server of average weight, and a key goes to the server owning the first point at or after
+ * the hash of the key. Adding or removing a server only moves the keys of the points it gains or loses,
+ * about 1/N of the keyspace, where the default modulo locator remaps almost every key.<p>
+ * The points are derived from the <code>host:port</code> the server is configured with, like libketama does,
+ * so all the clients given the same server list and weights agree on the placement of the keys.
+ */
+public class WeightedKetamaLocator implements NodeLocator {
+
+    static final int POINTS_PER_SERVER = 160;
+
+    private final HashAlgorithm hashAlg;
+    private final Map<String, Integer> weights;
+    private volatile List<MemcachedNode> nodes;
+    private volatile TreeMap<Long, MemcachedNode> continuum;
+
+    /**
+     * @param weights weight by <code>host:port</code>, servers missing here weigh 1
+     */
+    public WeightedKetamaLocator( List<MemcachedNode> nodes, HashAlgorithm hashAlg, Map<String, Integer> weights ) {
+
+        this.hashAlg = hashAlg;
+        this.weights = weights == null ? Collections.<String, Integer>emptyMap() : weights;
+        updateLocator( nodes );
+    }
+
+    @Override
+    public MemcachedNode getPrimary( String key ) {
+
+        TreeMap<Long, MemcachedNode> c = continuum;
+        Map.Entry<Long, MemcachedNode> e = c.ceilingEntry( hashAlg.hash( key ) );
+        return e == null ? c.firstEntry().getValue() : e.getValue();
+    }
+
+    /**
+     * @return the other servers in the order they follow the key on the continuum, used when the primary is down
+     */
+    @Override
+    public Iterator<MemcachedNode> getSequence( String key ) {
+
+        TreeMap<Long, MemcachedNode> c = continuum;
+        Long hash = hashAlg.hash( key );
+        MemcachedNode primary = getPrimary( key );
+        Set<MemcachedNode> sequence = new LinkedHashSet<>();
+        addOthers( sequence, c.tailMap( hash, false ).values(), primary );
+        addOthers( sequence, c.headMap( hash, true ).values(), primary );
+        return sequence.iterator();
+    }
+
+    private void addOthers( Set<MemcachedNode> sequence, Collection<MemcachedNode> points, MemcachedNode primary ) {
+
+        int others = nodes.size() - 1;
+        for ( MemcachedNode n : points ) {
+            if ( sequence.size() == others ) {
+                return;
+            }
+            if ( n != primary ) {
+                sequence.add( n );
+            }
+        }
+    }
+
+    @Override
+    public Collection<MemcachedNode> getAll() {
+
+        return nodes;
+    }
+
+    /**
+     * The read-only node wrapper of spymemcached is not public, so the wrapped nodes are borrowed
+     * from a read-only copy of its own ketama locator, which keeps the order of the nodes.
+     */
+    @Override
+    public NodeLocator getReadonlyCopy() {
+
+        List<MemcachedNode> readOnly = new ArrayList<>( new KetamaNodeLocator( nodes, DefaultHashAlgorithm.KETAMA_HASH ).getReadonlyCopy().getAll() );
+        return new WeightedKetamaLocator( readOnly, hashAlg, weights );
+    }
+
+    @Override
+    public void updateLocator( List<MemcachedNode> nodes ) {
+
+        TreeMap<Long, MemcachedNode> c = new TreeMap<>();
+        long totalWeight = 0;
+        for ( MemcachedNode n : nodes ) {
+            totalWeight += weightOf( n );
+        }
+        for ( MemcachedNode n : nodes ) {
+            String name = StatsCollector.toString( n.getSocketAddress() );
+            // rounded to a multiple of 4, a ketama digest gives 4 points
+            int points = ( int ) Math.max( 4, POINTS_PER_SERVER * nodes.size() * weightOf( n ) / totalWeight / 4 * 4 );
+            if ( hashAlg == DefaultHashAlgorithm.KETAMA_HASH ) {
+                for ( int i = 0; i < points / 4; i++ ) {
+                    byte[] digest = DefaultHashAlgorithm.computeMd5( name + "-" + i );
+                    for ( int h = 0; h < 4; h++ ) {
+                        long point = ( ( long ) ( digest[ 3 + h * 4 ] & 0xFF ) << 24 )
+                                | ( ( long ) ( digest[ 2 + h * 4 ] & 0xFF ) << 16 )
+                                | ( ( long ) ( digest[ 1 + h * 4 ] & 0xFF ) << 8 )
+                                | ( digest[ h * 4 ] & 0xFF );
+                        c.put( point, n );
+                    }
+                }
+            }
+            else {
+                for ( int i = 0; i < points; i++ ) {
+                    c.put( hashAlg.hash( name + "-" + i ), n );
+                }
+            }
+        }
+        this.nodes = Collections.unmodifiableList( new ArrayList<>( nodes ) );
+        this.continuum = c;
+    }
+
+    private int weightOf( MemcachedNode n ) {
+
+        Integer w = weights.get( StatsCollector.toString( n.getSocketAddress() ) );
+        return w == null ? 1 : w;
+    }
+}
@@ -0,0 +1,150 @@
+package net.atarno.vertx.memcached.server;
+
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.AsyncResultHandler;
+import org.vertx.java.core.Future;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.core.logging.Logger;
+import org.vertx.java.core.net.NetServer;
+import org.vertx.java.core.net.NetSocket;
+import org.vertx.java.platform.Verticle;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An embeddable memcached server for vert.x<p>
+ * Speaks the memcached binary protocol on a vert.x NetServer and keeps its items off-heap in a {@link SlabStore}.
+ * It can be deployed beside {@link net.atarno.vertx.memcached.client.MemClient} for tests and benchmarks, or
+ * as a single-node local cache. The store belongs to the verticle instance, so deploy a single instance.
+ */
+public class MemServer extends Verticle {
+
+    static final String VERSION = "1.4.20-vertx";
+
+    private SlabStore store;
+    private NetServer server;
+    private Logger logger;
+    private long startedAt;
+    private long flushTimerId = -1;
+    private int connections;
+    private long totalConnections;
+    private long gets;
+    private long sets;
+
+    @Override
+    public void start( final Future<Void> startedResult ) {
+
+        logger = container.logger();
+        JsonObject config = container.config();
+        final String host = config.getString( "host", "localhost" );
+        final int port = config.getNumber( "port", 11211 ).intValue();
+        long maxBytes = config.getLong( "memory.mb", 64 ).longValue() * 1024 * 1024;
+        int maxItemBytes = config.getNumber( "max.item.bytes", 1024 * 1024 ).intValue();
+        double growthFactor = config.getNumber( "slab.growth.factor" ) == null ? 1.25 : config.getNumber( "slab.growth.factor" ).doubleValue();
+        int minChunk = config.getNumber( "slab.min.chunk", 48 ).intValue();
+        try {
+            store = new SlabStore( maxBytes, maxItemBytes, growthFactor, minChunk );
+        }
+        catch ( IllegalArgumentException e ) {
+            logger.error( e );
+            startedResult.setFailure( e );
+            return;
+        }
+        startedAt = System.currentTimeMillis();
+        server = vertx.createNetServer().setTCPNoDelay( true );
+        server.connectHandler( new Handler<NetSocket>() {
+            @Override
+            public void handle( NetSocket socket ) {
+
+                connections++;
+                totalConnections++;
+                socket.dataHandler( new ServerConnection( MemServer.this, socket ) );
+                socket.closeHandler( new Handler<Void>() {
+                    @Override
+                    public void handle( Void v ) {
+
+                        connections--;
+                    }
+                } );
+            }
+        } );
+        server.listen( port, host, new AsyncResultHandler<NetServer>() {
+            @Override
+            public void handle( AsyncResult<NetServer> result ) {
+
+                if ( result.failed() ) {
+                    logger.error( result.cause() );
+                    startedResult.setFailure( result.cause() );
+                    return;
+                }
+                logger.info( MemServer.class.getSimpleName() + " is listening on " + host + ":" + port );
+                startedResult.setResult( null );
+            }
+        } );
+    }
+
+    SlabStore getStore() {
+
+        return store;
+    }
+
+    /**
+     * @param delay seconds to wait before the flush, 0 to flush at once
+     */
+    void flush( int delay ) {
+
+        if ( flushTimerId != -1 ) {
+            vertx.cancelTimer( flushTimerId );
+            flushTimerId = -1;
+        }
+        if ( delay <= 0 ) {
+            store.flush();
+            return;
+        }
+        flushTimerId = vertx.setTimer( delay * 1000L, new Handler<Long>() {
+            @Override
+            public void handle( Long id ) {
+
+                flushTimerId = -1;
+                store.flush();
+            }
+        } );
+    }
+
+    void countGet() {
+
+        gets++;
+    }
+
+    void countSet() {
+
+        sets++;
+    }
+
+    Map<String, String> stats() {
+
+        Map<String, String> stats = new HashMap<>( store.stats() );
+        stats.put( "version", VERSION );
+        stats.put( "uptime", String.valueOf( ( System.currentTimeMillis() - startedAt ) / 1000 ) );
+        stats.put( "time", String.valueOf( System.currentTimeMillis() / 1000 ) );
+        stats.put( "curr_connections", String.valueOf( connections ) );
+        stats.put( "total_connections", String.valueOf( totalConnections ) );
+        stats.put( "cmd_get", String.valueOf( gets ) );
+        stats.put( "cmd_set", String.valueOf( sets ) );
+        return stats;
+    }
+
+    @Override
+    public void stop() {
+
+        if ( server != null ) {
+            server.close();
+        }
+        if ( store != null ) {
+            store.flush();
+        }
+        logger.info( "== " + MemServer.class.getSimpleName() + " was stopped" );
+    }
+}
@@ -0,0 +1,333 @@
+package net.atarno.vertx.memcached.server;
+
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.net.NetSocket;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * One client connection of {@link MemServer}, speaking the memcached binary protocol.<p>
+ * Incoming data is buffered until whole requests are available. The answers to all the requests of
+ * a read are gathered in one buffer and written at once, so a pipelined burst of quiet gets followed by a
+ * NOOP costs a single write. Reading is paused while the socket's write queue is full.
+ */
+class ServerConnection implements Handler<Buffer> {
+
+    private static final int HEADER_LENGTH = 24;
+    private static final byte REQUEST = ( byte ) 0x80;
+    private static final byte RESPONSE = ( byte ) 0x81;
+
+    private static final int GET = 0x00;
+    private static final int SET = 0x01;
+    private static final int ADD = 0x02;
+    private static final int REPLACE = 0x03;
+    private static final int DELETE = 0x04;
+    private static final int INCREMENT = 0x05;
+    private static final int DECREMENT = 0x06;
+    private static final int QUIT = 0x07;
+    private static final int FLUSH = 0x08;
+    private static final int GETQ = 0x09;
+    private static final int NOOP = 0x0a;
+    private static final int VERSION = 0x0b;
+    private static final int GETK = 0x0c;
+    private static final int GETKQ = 0x0d;
+    private static final int APPEND = 0x0e;
+    private static final int PREPEND = 0x0f;
+    private static final int STAT = 0x10;
+    private static final int SETQ = 0x11;
+    private static final int ADDQ = 0x12;
+    private static final int REPLACEQ = 0x13;
+    private static final int DELETEQ = 0x14;
+    private static final int INCREMENTQ = 0x15;
+    private static final int DECREMENTQ = 0x16;
+    private static final int QUITQ = 0x17;
+    private static final int FLUSHQ = 0x18;
+    private static final int APPENDQ = 0x19;
+    private static final int PREPENDQ = 0x1a;
+    private static final int TOUCH = 0x1c;
+    private static final int GAT = 0x1d;
+    private static final int GATQ = 0x1e;
+
+    private static final int INVALID_ARGUMENTS = 0x04;
+    private static final int UNKNOWN_COMMAND = 0x81;
+
+    private static final byte[] NO_BYTES = new byte[ 0 ];
+
+    private final MemServer server;
+    private final SlabStore store;
+    private final NetSocket socket;
+    private Buffer pending;
+    private Buffer out = new Buffer();
+    private boolean closing;
+
+    ServerConnection( MemServer server, NetSocket socket ) {
+
+        this.server = server;
+        this.store = server.getStore();
+        this.socket = socket;
+        socket.drainHandler( new Handler<Void>() {
+            @Override
+            public void handle( Void v ) {
+
+                ServerConnection.this.socket.resume();
+            }
+        } );
+    }
+
+    @Override
+    public void handle( Buffer data ) {
+
+        if ( closing ) {
+            return;
+        }
+        pending = pending == null ? data : pending.appendBuffer( data );
+        int pos = 0;
+        int length = pending.length();
+        while ( length - pos >= HEADER_LENGTH ) {
+            if ( pending.getByte( pos ) != REQUEST ) {
+                closing = true;
+                break;
+            }
+            int bodyLength = pending.getInt( pos + 8 );
+            if ( bodyLength < 0 || length - pos < HEADER_LENGTH + bodyLength ) {
+                break;
+            }
+            process( pos );
+            pos += HEADER_LENGTH + bodyLength;
+            if ( closing ) {
+                break;
+            }
+        }
+        pending = pos == length ? null : pending.getBuffer( pos, length );
+        if ( out.length() > 0 ) {
+            socket.write( out );
+            out = new Buffer();
+        }
+        if ( closing ) {
+            socket.close();
+        }
+        else if ( socket.writeQueueFull() ) {
+            socket.pause();
+        }
+    }
+
+    private void process( int pos ) {
+
+        int opcode = pending.getByte( pos + 1 ) & 0xff;
+        int keyLength = pending.getShort( pos + 2 ) & 0xffff;
+        int extrasLength = pending.getByte( pos + 4 ) & 0xff;
+        int bodyLength = pending.getInt( pos + 8 );
+        int opaque = pending.getInt( pos + 12 );
+        long cas = pending.getLong( pos + 16 );
+        int extrasStart = pos + HEADER_LENGTH;
+        int keyStart = extrasStart + extrasLength;
+        int valueStart = keyStart + keyLength;
+        int end = pos + HEADER_LENGTH + bodyLength;
+        if ( valueStart > end ) {
+            error( opcode, INVALID_ARGUMENTS, opaque );
+            return;
+        }
+        String key = keyLength == 0 ? null : pending.getString( keyStart, valueStart, "UTF-8" );
+        switch ( opcode ) {
+            case GET:
+            case GETQ:
+            case GETK:
+            case GETKQ:
+                get( opcode, opaque, key, opcode == GETK || opcode == GETKQ, opcode == GETQ || opcode == GETKQ, -1 );
+                return;
+            case GAT:
+            case GATQ:
+                if ( extrasLength != 4 ) {
+                    error( opcode, INVALID_ARGUMENTS, opaque );
+                    return;
+                }
+                get( opcode, opaque, key, false, opcode == GATQ, pending.getInt( extrasStart ) );
+                return;
+            case SET:
+            case SETQ:
+            case ADD:
+            case ADDQ:
+            case REPLACE:
+            case REPLACEQ: {
+                if ( extrasLength != 8 || key == null ) {
+                    error( opcode, INVALID_ARGUMENTS, opaque );
+                    return;
+                }
+                SlabStore.Mode mode = opcode == SET || opcode == SETQ ? SlabStore.Mode.SET : opcode == ADD || opcode == ADDQ ? SlabStore.Mode.ADD : SlabStore.Mode.REPLACE;
+                int status = store.store( mode, key, pending.getInt( extrasStart ), pending.getInt( extrasStart + 4 ), pending.getBytes( valueStart, end ), cas );
+                stored( opcode, status, opaque, opcode == SETQ || opcode == ADDQ || opcode == REPLACEQ );
+                return;
+            }
+            case APPEND:
+            case APPENDQ:
+            case PREPEND:
+            case PREPENDQ: {
+                if ( key == null ) {
+                    error( opcode, INVALID_ARGUMENTS, opaque );
+                    return;
+                }
+                int status = store.concat( opcode == APPEND || opcode == APPENDQ, key, pending.getBytes( valueStart, end ), cas );
+                stored( opcode, status, opaque, opcode == APPENDQ || opcode == PREPENDQ );
+                return;
+            }
+            case DELETE:
+            case DELETEQ: {
+                int status = key == null ? INVALID_ARGUMENTS : store.delete( key, cas );
+                if ( status != SlabStore.OK ) {
+                    error( opcode, status, opaque );
+                }
+                else if ( opcode == DELETE ) {
+                    respond( opcode, SlabStore.OK, opaque, 0, null, null, null );
+                }
+                return;
+            }
+            case INCREMENT:
+            case INCREMENTQ:
+            case DECREMENT:
+            case DECREMENTQ: {
+                if ( extrasLength != 20 || key == null ) {
+                    error( opcode, INVALID_ARGUMENTS, opaque );
+                    return;
+                }
+                boolean incr = opcode == INCREMENT || opcode == INCREMENTQ;
+                int status = store.mutate( incr, key, pending.getLong( extrasStart ), pending.getLong( extrasStart + 8 ), pending.getInt( extrasStart + 16 ), cas );
+                if ( status != SlabStore.OK ) {
+                    error( opcode, status, opaque );
+                }
+                else if ( opcode == INCREMENT || opcode == DECREMENT ) {
+                    respond( opcode, SlabStore.OK, opaque, store.lastCas(), null, null, new Buffer( 8 ).appendLong( store.lastValue() ).getBytes() );
+                }
+                return;
+            }
+            case TOUCH: {
+                if ( extrasLength != 4 || key == null ) {
+                    error( opcode, INVALID_ARGUMENTS, opaque );
+                    return;
+                }
+                int status = store.touch( key, pending.getInt( extrasStart ) );
+                if ( status != SlabStore.OK ) {
+                    error( opcode, status, opaque );
+                }
+                else {
+                    respond( opcode, SlabStore.OK, opaque, 0, null, null, null );
+                }
+                return;
+            }
+            case FLUSH:
+            case FLUSHQ:
+                server.flush( extrasLength == 4 ? pending.getInt( extrasStart ) : 0 );
+                if ( opcode == FLUSH ) {
+                    respond( opcode, SlabStore.OK, opaque, 0, null, null, null );
+                }
+                return;
+            case NOOP:
+                respond( opcode, SlabStore.OK, opaque, 0, null, null, null );
+                return;
+            case VERSION:
+                respond( opcode, SlabStore.OK, opaque, 0, null, null, MemServer.VERSION.getBytes( StandardCharsets.US_ASCII ) );
+                return;
+            case STAT:
+                for ( Map.Entry<String, String> e : server.stats().entrySet() ) {
+                    respond( opcode, SlabStore.OK, opaque, 0, null, e.getKey().getBytes( StandardCharsets.US_ASCII ), e.getValue().getBytes( StandardCharsets.US_ASCII ) );
+                }
+                respond( opcode, SlabStore.OK, opaque, 0, null, null, null );
+                return;
+            case QUIT:
+            case QUITQ:
+                if ( opcode == QUIT ) {
+                    respond( opcode, SlabStore.OK, opaque, 0, null, null, null );
+                }
+                closing = true;
+                return;
+            default:
+                error( opcode, UNKNOWN_COMMAND, opaque );
+        }
+    }
+
+    /**
+     * @param exp the new expiration of the item, -1 to leave it untouched
+     */
+    private void get( int opcode, int opaque, String key, boolean withKey, boolean quiet, int exp ) {
+
+        server.countGet();
+        SlabStore.Item item = key == null ? null : store.get( key );
+        if ( item != null && exp != -1 ) {
+            store.touch( key, exp );
+        }
+        if ( item == null ) {
+            if ( !quiet ) {
+                error( opcode, SlabStore.NOT_FOUND, opaque );
+            }
+            return;
+        }
+        byte[] flags = new Buffer( 4 ).appendInt( item.flags ).getBytes();
+        respond( opcode, SlabStore.OK, opaque, item.cas, flags, withKey ? item.key.getBytes( StandardCharsets.UTF_8 ) : null, store.read( item ) );
+    }
+
+    private void stored( int opcode, int status, int opaque, boolean quiet ) {
+
+        server.countSet();
+        if ( status != SlabStore.OK ) {
+            error( opcode, status, opaque );
+        }
+        else if ( !quiet ) {
+            respond( opcode, SlabStore.OK, opaque, store.lastCas(), null, null, null );
+        }
+    }
+
+    private void error( int opcode, int status, int opaque ) {
+
+        respond( opcode, status, opaque, 0, null, null, message( status ).getBytes( StandardCharsets.US_ASCII ) );
+    }
+
+    private void respond( int opcode, int status, int opaque, long cas, byte[] extras, byte[] key, byte[] value ) {
+
+        if ( extras == null ) {
+            extras = NO_BYTES;
+        }
+        if ( key == null ) {
+            key = NO_BYTES;
+        }
+        if ( value == null ) {
+            value = NO_BYTES;
+        }
+        out.appendByte( RESPONSE )
+           .appendByte( ( byte ) opcode )
+           .appendShort( ( short ) key.length )
+           .appendByte( ( byte ) extras.length )
+           .appendByte( ( byte ) 0 )
+           .appendShort( ( short ) status )
+           .appendInt( extras.length + key.length + value.length )
+           .appendInt( opaque )
+           .appendLong( cas )
+           .appendBytes( extras )
+           .appendBytes( key )
+           .appendBytes( value );
+    }
+
+    private static String message( int status ) {
+
+        switch ( status ) {
+            case SlabStore.NOT_FOUND:
+                return "Not found";
+            case SlabStore.EXISTS:
+                return "Data exists for key.";
+            case SlabStore.TOO_LARGE:
+                return "Too large.";
+            case INVALID_ARGUMENTS:
+                return "Invalid arguments";
+            case SlabStore.NOT_STORED:
+                return "Not stored.";
+            case SlabStore.NON_NUMERIC:
+                return "Non-numeric server-side value for incr or decr";
+            case UNKNOWN_COMMAND:
+                return "Unknown command";
+            case SlabStore.OUT_OF_MEMORY:
+                return "Out of memory";
+            default:
+                return "Internal error";
+        }
+    }
+}
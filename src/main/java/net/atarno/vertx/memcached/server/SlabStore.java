@@ -0,0 +1,485 @@
+package net.atarno.vertx.memcached.server;
+
+import org.vertx.java.core.json.JsonObject;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The item store of {@link MemServer}, laid out the way memcached does it.<p>
+ * Values live off-heap, in fixed-size pages of direct memory. Every page belongs to a slab class and is
+ * cut into chunks of that class' size, the chunk sizes growing by a constant factor from class to class.
+ * A value is written to a free chunk of the smallest class it fits in. Once all the memory is handed out
+ * to pages, a class without a free chunk evicts its least recently used item.<p>
+ * Only the key and the item metadata are kept on the heap. Expired items are dropped lazily, when they
+ * are read or evicted. Not thread safe, a store belongs to a single verticle.
+ */
+public class SlabStore {
+
+    // binary protocol status codes
+    static final int OK = 0x00;
+    static final int NOT_FOUND = 0x01;
+    static final int EXISTS = 0x02;
+    static final int TOO_LARGE = 0x03;
+    static final int NOT_STORED = 0x05;
+    static final int NON_NUMERIC = 0x06;
+    static final int OUT_OF_MEMORY = 0x82;
+
+    enum Mode {
+        SET, ADD, REPLACE
+    }
+
+    // expiration times above 30 days are absolute unix times
+    private static final long RELATIVE_EXPIRATION_LIMIT = 60 * 60 * 24 * 30;
+    private static final BigInteger UNSIGNED_LONG = BigInteger.ONE.shiftLeft( 64 );
+
+    private final long maxBytes;
+    private final int pageSize;
+    private final SlabClass[] classes;
+    private final Map<String, Item> index = new HashMap<>();
+    private long allocatedBytes;
+    private long casSeq;
+
+    private long lastCas;
+    private long lastValue;
+
+    private long usedBytes;
+    private long totalItems;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long expirations;
+
+    /**
+     * @param maxBytes     the memory the pages may take in total
+     * @param pageSize     the size of a page, which is also the maximal value size
+     * @param growthFactor the chunk size ratio of consecutive slab classes
+     * @param minChunkSize the chunk size of the smallest class
+     */
+    public SlabStore( long maxBytes, int pageSize, double growthFactor, int minChunkSize ) {
+
+        if ( growthFactor <= 1 ) {
+            throw new IllegalArgumentException( "slab growth factor must be greater than 1" );
+        }
+        if ( maxBytes < pageSize ) {
+            throw new IllegalArgumentException( "memory limit must hold at least one page" );
+        }
+        this.maxBytes = maxBytes;
+        this.pageSize = pageSize;
+        List<SlabClass> list = new ArrayList<>();
+        int size = Math.max( 8, minChunkSize );
+        while ( size <= pageSize / 2 ) {
+            list.add( new SlabClass( size, pageSize / size ) );
+            // chunks are 8-byte aligned
+            size = ( ( int ) Math.ceil( size * growthFactor ) + 7 ) & ~7;
+        }
+        list.add( new SlabClass( pageSize, 1 ) );
+        this.classes = list.toArray( new SlabClass[ list.size() ] );
+    }
+
+    /**
+     * @return the live item stored under the key, or null; a hit makes the item the most recently used one of its class
+     */
+    Item get( String key ) {
+
+        Item item = live( key );
+        if ( item == null ) {
+            misses++;
+            return null;
+        }
+        hits++;
+        item.slabClass.touch( item );
+        return item;
+    }
+
+    byte[] read( Item item ) {
+
+        byte[] value = new byte[ item.length ];
+        ByteBuffer b = item.slabClass.slice( item.chunk );
+        b.get( value );
+        return value;
+    }
+
+    int store( Mode mode, String key, int flags, int exp, byte[] value, long cas ) {
+
+        Item existing = live( key );
+        if ( mode == Mode.ADD && existing != null ) {
+            return EXISTS;
+        }
+        if ( ( mode == Mode.REPLACE || cas != 0 ) && existing == null ) {
+            return NOT_FOUND;
+        }
+        if ( cas != 0 && existing.cas != cas ) {
+            return EXISTS;
+        }
+        return write( key, flags, expiresAt( exp ), value );
+    }
+
+    int concat( boolean append, String key, byte[] data, long cas ) {
+
+        Item existing = live( key );
+        if ( existing == null ) {
+            return NOT_STORED;
+        }
+        if ( cas != 0 && existing.cas != cas ) {
+            return EXISTS;
+        }
+        byte[] old = read( existing );
+        byte[] value = new byte[ old.length + data.length ];
+        System.arraycopy( append ? old : data, 0, value, 0, append ? old.length : data.length );
+        System.arraycopy( append ? data : old, 0, value, append ? old.length : data.length, append ? data.length : old.length );
+        return write( key, existing.flags, existing.expiresAt, value );
+    }
+
+    int delete( String key, long cas ) {
+
+        Item existing = live( key );
+        if ( existing == null ) {
+            return NOT_FOUND;
+        }
+        if ( cas != 0 && existing.cas != cas ) {
+            return EXISTS;
+        }
+        unlink( existing );
+        return OK;
+    }
+
+    int touch( String key, int exp ) {
+
+        Item existing = live( key );
+        if ( existing == null ) {
+            return NOT_FOUND;
+        }
+        existing.expiresAt = expiresAt( exp );
+        existing.slabClass.touch( existing );
+        return OK;
+    }
+
+    /**
+     * increments or decrements the decimal value stored under the key, see {@link #lastValue()} for the result
+     *
+     * @param exp the expiration of an item created with the initial value, -1 if a missing item must not be created
+     */
+    int mutate( boolean incr, String key, long delta, long initial, int exp, long cas ) {
+
+        Item existing = live( key );
+        if ( existing == null ) {
+            if ( exp == -1 ) {
+                return NOT_FOUND;
+            }
+            lastValue = initial;
+            return write( key, 0, expiresAt( exp ), unsignedString( initial ).getBytes( StandardCharsets.US_ASCII ) );
+        }
+        if ( cas != 0 && existing.cas != cas ) {
+            return EXISTS;
+        }
+        long value;
+        try {
+            BigInteger current = new BigInteger( new String( read( existing ), StandardCharsets.US_ASCII ).trim() );
+            if ( current.signum() < 0 || current.bitLength() > 64 ) {
+                return NON_NUMERIC;
+            }
+            value = current.longValue();
+        }
+        catch ( NumberFormatException e ) {
+            return NON_NUMERIC;
+        }
+        if ( incr ) {
+            value += delta;
+        }
+        else {
+            // unsigned comparison, a decrement stops at 0
+            value = value + Long.MIN_VALUE < delta + Long.MIN_VALUE ? 0 : value - delta;
+        }
+        lastValue = value;
+        return write( key, existing.flags, existing.expiresAt, unsignedString( value ).getBytes( StandardCharsets.US_ASCII ) );
+    }
+
+    void flush() {
+
+        index.clear();
+        for ( SlabClass c : classes ) {
+            c.clear();
+        }
+        usedBytes = 0;
+    }
+
+    /**
+     * @return the CAS of the item written by the last successful mutation
+     */
+    long lastCas() {
+
+        return lastCas;
+    }
+
+    /**
+     * @return the value computed by the last successful {@link #mutate(boolean, String, long, long, int, long)}
+     */
+    long lastValue() {
+
+        return lastValue;
+    }
+
+    Map<String, String> stats() {
+
+        Map<String, String> stats = new HashMap<>();
+        stats.put( "curr_items", String.valueOf( index.size() ) );
+        stats.put( "total_items", String.valueOf( totalItems ) );
+        stats.put( "bytes", String.valueOf( usedBytes ) );
+        stats.put( "limit_maxbytes", String.valueOf( maxBytes ) );
+        stats.put( "total_malloced", String.valueOf( allocatedBytes ) );
+        stats.put( "get_hits", String.valueOf( hits ) );
+        stats.put( "get_misses", String.valueOf( misses ) );
+        stats.put( "evictions", String.valueOf( evictions ) );
+        stats.put( "reclaimed", String.valueOf( expirations ) );
+        stats.put( "slab_classes", String.valueOf( classes.length ) );
+        stats.put( "item_size_max", String.valueOf( pageSize ) );
+        return stats;
+    }
+
+    public JsonObject toJson() {
+
+        JsonObject json = new JsonObject();
+        for ( Map.Entry<String, String> e : stats().entrySet() ) {
+            json.putNumber( e.getKey(), Long.valueOf( e.getValue() ) );
+        }
+        return json;
+    }
+
+    static String unsignedString( long value ) {
+
+        return value >= 0 ? String.valueOf( value ) : BigInteger.valueOf( value ).add( UNSIGNED_LONG ).toString();
+    }
+
+    private int write( String key, int flags, long expiresAt, byte[] value ) {
+
+        if ( value.length > pageSize ) {
+            return TOO_LARGE;
+        }
+        // like memcached, the old value is unlinked first and is gone even if the new one cannot be stored
+        Item old = index.get( key );
+        if ( old != null ) {
+            unlink( old );
+        }
+        SlabClass c = classFor( value.length );
+        int chunk = allocate( c );
+        if ( chunk < 0 ) {
+            return OUT_OF_MEMORY;
+        }
+        Item item = new Item( key, flags, expiresAt, ++casSeq, value.length, c, chunk );
+        c.slice( chunk ).put( value );
+        c.link( item );
+        index.put( key, item );
+        usedBytes += value.length;
+        totalItems++;
+        lastCas = item.cas;
+        return OK;
+    }
+
+    private Item live( String key ) {
+
+        Item item = index.get( key );
+        if ( item != null && expired( item, System.currentTimeMillis() ) ) {
+            unlink( item );
+            expirations++;
+            return null;
+        }
+        return item;
+    }
+
+    private void unlink( Item item ) {
+
+        index.remove( item.key );
+        item.slabClass.unlink( item );
+        item.slabClass.free( item.chunk );
+        usedBytes -= item.length;
+    }
+
+    private int allocate( SlabClass c ) {
+
+        if ( !c.hasFree() && allocatedBytes + pageSize <= maxBytes ) {
+            c.addPage( ByteBuffer.allocateDirect( pageSize ) );
+            allocatedBytes += pageSize;
+        }
+        if ( c.hasFree() ) {
+            return c.takeFree();
+        }
+        Item victim = c.tail;
+        if ( victim == null ) {
+            // all the memory went to pages of other classes
+            return -1;
+        }
+        if ( expired( victim, System.currentTimeMillis() ) ) {
+            expirations++;
+        }
+        else {
+            evictions++;
+        }
+        unlink( victim );
+        return c.takeFree();
+    }
+
+    private SlabClass classFor( int length ) {
+
+        for ( SlabClass c : classes ) {
+            if ( c.chunkSize >= length ) {
+                return c;
+            }
+        }
+        return classes[ classes.length - 1 ];
+    }
+
+    private static long expiresAt( int exp ) {
+
+        if ( exp == 0 ) {
+            return 0;
+        }
+        long seconds = exp & 0xffffffffL;
+        return seconds > RELATIVE_EXPIRATION_LIMIT ? seconds * 1000 : System.currentTimeMillis() + seconds * 1000;
+    }
+
+    private static boolean expired( Item item, long now ) {
+
+        return item.expiresAt != 0 && item.expiresAt <= now;
+    }
+
+    static class Item {
+        final String key;
+        final int flags;
+        final long cas;
+        final int length;
+        final SlabClass slabClass;
+        final int chunk;
+        long expiresAt;
+        Item prev;
+        Item next;
+
+        Item( String key, int flags, long expiresAt, long cas, int length, SlabClass slabClass, int chunk ) {
+
+            this.key = key;
+            this.flags = flags;
+            this.expiresAt = expiresAt;
+            this.cas = cas;
+            this.length = length;
+            this.slabClass = slabClass;
+            this.chunk = chunk;
+        }
+    }
+
+    /**
+     * the pages of one chunk size, their free chunks and the LRU list of the items stored in them
+     */
+    static class SlabClass {
+        final int chunkSize;
+        final int chunksPerPage;
+        private final List<ByteBuffer> pages = new ArrayList<>();
+        private int[] freeChunks = new int[ 16 ];
+        private int freeCount;
+        private Item head;
+        private Item tail;
+
+        SlabClass( int chunkSize, int chunksPerPage ) {
+
+            this.chunkSize = chunkSize;
+            this.chunksPerPage = chunksPerPage;
+        }
+
+        /**
+         * @return a buffer positioned on the chunk, with the chunk size as its limit
+         */
+        ByteBuffer slice( int chunk ) {
+
+            ByteBuffer b = pages.get( chunk / chunksPerPage ).duplicate();
+            int offset = ( chunk % chunksPerPage ) * chunkSize;
+            b.limit( offset + chunkSize ).position( offset );
+            return b;
+        }
+
+        void addPage( ByteBuffer page ) {
+
+            int first = pages.size() * chunksPerPage;
+            pages.add( page );
+            // pushed in reverse, so that chunks are handed out in address order
+            for ( int i = chunksPerPage - 1; i >= 0; i-- ) {
+                free( first + i );
+            }
+        }
+
+        boolean hasFree() {
+
+            return freeCount > 0;
+        }
+
+        int takeFree() {
+
+            return freeChunks[ --freeCount ];
+        }
+
+        void free( int chunk ) {
+
+            if ( freeCount == freeChunks.length ) {
+                int[] grown = new int[ freeChunks.length * 2 ];
+                System.arraycopy( freeChunks, 0, grown, 0, freeCount );
+                freeChunks = grown;
+            }
+            freeChunks[ freeCount++ ] = chunk;
+        }
+
+        void link( Item item ) {
+
+            item.prev = null;
+            item.next = head;
+            if ( head != null ) {
+                head.prev = item;
+            }
+            head = item;
+            if ( tail == null ) {
+                tail = item;
+            }
+        }
+
+        void unlink( Item item ) {
+
+            if ( item.prev != null ) {
+                item.prev.next = item.next;
+            }
+            else {
+                head = item.next;
+            }
+            if ( item.next != null ) {
+                item.next.prev = item.prev;
+            }
+            else {
+                tail = item.prev;
+            }
+            item.prev = null;
+            item.next = null;
+        }
+
+        void touch( Item item ) {
+
+            if ( head != item ) {
+                unlink( item );
+                link( item );
+            }
+        }
+
+        /**
+         * frees every chunk, the pages stay with the class
+         */
+        void clear() {
+
+            head = null;
+            tail = null;
+            freeCount = 0;
+            for ( int i = pages.size() * chunksPerPage - 1; i >= 0; i-- ) {
+                free( i );
+            }
+        }
+    }
+}
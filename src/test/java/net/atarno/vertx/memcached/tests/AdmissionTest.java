@@ -0,0 +1,82 @@
+package net.atarno.vertx.memcached.tests;
+
+import org.junit.Test;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import static org.vertx.testtools.VertxAssert.assertEquals;
+import static org.vertx.testtools.VertxAssert.assertTrue;
+import static org.vertx.testtools.VertxAssert.testComplete;
+
+public class AdmissionTest extends MemServerTestBase {
+    static final int REQUESTS = 3;
+
+    @Override
+    protected void configure( JsonObject config ) {
+        config.putNumber( "memcached.inflight.max", 1 );
+        config.putString( "memcached.overflow.policy", "reject" );
+    }
+
+    @Test
+    public void testRequestsBeyondTheLimitAreRejected() {
+        // the commands of a batch are admitted in one go, the first keeps operations in flight
+        JsonArray commands = new JsonArray().addObject( slowWrite( "limited" ) );
+        for ( int i = 1; i < REQUESTS; i++ ) {
+            commands.addObject( command( "set", "limited" + i ).putString( "value", "v" ) );
+        }
+        expectOk( new JsonObject().putString( "command", "batch" ).putArray( "commands", commands ), new Handler<JsonObject>() {
+            @Override
+            public void handle( JsonObject response ) {
+                JsonArray results = response.getArray( "results" );
+                assertEquals( "ok", results.<JsonObject>get( 0 ).getString( "status" ) );
+                for ( int i = 1; i < REQUESTS; i++ ) {
+                    assertEquals( "overloaded", results.<JsonObject>get( i ).getString( "message" ) );
+                }
+                expectOk( new JsonObject().putString( "command", "status" ), new Handler<JsonObject>() {
+                    @Override
+                    public void handle( JsonObject status ) {
+                        JsonObject admission = status.getObject( "admission" );
+                        assertEquals( admission.encode(), REQUESTS - 1, admission.getLong( "rejected" ).longValue() );
+                        assertEquals( admission.encode(), 0, admission.getLong( "inflight" ).longValue() );
+                        testComplete();
+                    }
+                } );
+            }
+        } );
+    }
+
+    @Test
+    public void testFlushDoesNotStayInFlight() {
+        JsonArray commands = new JsonArray().addObject( new JsonObject().putString( "command", "flush" ) );
+        expectOk( new JsonObject().putString( "command", "batch" ).putArray( "commands", commands ), new Handler<JsonObject>() {
+            @Override
+            public void handle( JsonObject response ) {
+                // the only in-flight slot is free again
+                expectOk( command( "set", "flushed" ).putString( "value", "v" ), new Handler<JsonObject>() {
+                    @Override
+                    public void handle( JsonObject response ) {
+                        testComplete();
+                    }
+                } );
+            }
+        } );
+    }
+
+    @Test
+    public void testStatusIsNotLimited() {
+        JsonArray commands = new JsonArray()
+                .addObject( slowWrite( "busy" ) )
+                .addObject( new JsonObject().putString( "command", "status" ) );
+        expectOk( new JsonObject().putString( "command", "batch" ).putArray( "commands", commands ), new Handler<JsonObject>() {
+            @Override
+            public void handle( JsonObject response ) {
+                JsonObject status = response.getArray( "results" ).get( 1 );
+                assertEquals( status.encode(), "ok", status.getString( "status" ) );
+                JsonObject admission = status.getObject( "response" ).getObject( "admission" );
+                assertTrue( admission.encode(), admission.getLong( "inflight" ) > 0 );
+                testComplete();
+            }
+        } );
+    }
+}
@@ -0,0 +1,182 @@
+package net.atarno.vertx.memcached.tests;
+
+import net.atarno.vertx.memcached.client.BinaryClient;
+import net.atarno.vertx.memcached.client.BinaryCodec;
+import net.atarno.vertx.memcached.client.BinaryReply;
+import org.junit.Test;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonObject;
+
+import java.nio.charset.Charset;
+
+import static org.vertx.testtools.VertxAssert.assertArrayEquals;
+import static org.vertx.testtools.VertxAssert.assertEquals;
+import static org.vertx.testtools.VertxAssert.assertTrue;
+import static org.vertx.testtools.VertxAssert.testComplete;
+
+public class BinaryProtocolTest extends MemServerTestBase {
+    static final String BINARY_ADDRESS = ADDRESS + ".binary";
+    static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+    @Override
+    protected void configure( JsonObject config ) {
+        config.putString( "binary-address", BINARY_ADDRESS );
+        config.putNumber( "memcached.chunk.size", ChunksTest.CHUNK_SIZE );
+        config.putNumber( "memcached.compression.threshold", Integer.MAX_VALUE );
+    }
+
+    @Test
+    public void testReplyFrameRoundTrip() {
+        byte[] value = "payload".getBytes( UTF8 );
+        BinaryReply reply = BinaryCodec.decodeReply( BinaryCodec.reply( BinaryCodec.EXISTS, 0x12345678, Long.MAX_VALUE, value ) );
+        assertEquals( BinaryCodec.EXISTS, reply.getStatus() );
+        assertEquals( 0x12345678, reply.getFlags() );
+        assertEquals( Long.MAX_VALUE, reply.getCas() );
+        assertArrayEquals( value, reply.getValue() );
+
+        BinaryReply error = BinaryCodec.decodeReply( BinaryCodec.error( "broken" ) );
+        assertEquals( BinaryCodec.ERROR, error.getStatus() );
+        assertEquals( "broken", error.getMessage() );
+        testComplete();
+    }
+
+    @Test
+    public void testValueAndFlagsAreStoredAsIs() {
+        final BinaryClient client = new BinaryClient( vertx.eventBus(), BINARY_ADDRESS );
+        final byte[] value = { 0, 1, ( byte ) 0xFF, 'x' };
+        client.set( "raw", value, 42, 0, new Handler<BinaryReply>() {
+            @Override
+            public void handle( BinaryReply reply ) {
+                assertTrue( reply.getMessage(), reply.isOk() );
+                client.get( "raw", new Handler<BinaryReply>() {
+                    @Override
+                    public void handle( BinaryReply reply ) {
+                        assertTrue( reply.isOk() );
+                        assertEquals( 42, reply.getFlags() );
+                        assertArrayEquals( value, reply.getValue() );
+                        client.get( "unknown", new Handler<BinaryReply>() {
+                            @Override
+                            public void handle( BinaryReply reply ) {
+                                assertTrue( reply.isMiss() );
+                                testComplete();
+                            }
+                        } );
+                    }
+                } );
+            }
+        } );
+    }
+
+    @Test
+    public void testStaleCasIsAConflict() {
+        final BinaryClient client = new BinaryClient( vertx.eventBus(), BINARY_ADDRESS );
+        client.set( "versioned", "v1".getBytes( UTF8 ), 0, 0, new Handler<BinaryReply>() {
+            @Override
+            public void handle( BinaryReply reply ) {
+                client.gets( "versioned", new Handler<BinaryReply>() {
+                    @Override
+                    public void handle( BinaryReply reply ) {
+                        final long stale = reply.getCas();
+                        assertTrue( stale != 0 );
+                        client.set( "versioned", "v2".getBytes( UTF8 ), 0, 0, new Handler<BinaryReply>() {
+                            @Override
+                            public void handle( BinaryReply reply ) {
+                                client.cas( "versioned", "v3".getBytes( UTF8 ), 0, 0, stale, new Handler<BinaryReply>() {
+                                    @Override
+                                    public void handle( BinaryReply reply ) {
+                                        assertEquals( BinaryCodec.EXISTS, reply.getStatus() );
+                                        testComplete();
+                                    }
+                                } );
+                            }
+                        } );
+                    }
+                } );
+            }
+        } );
+    }
+
+    @Test
+    public void testCountersAreLongs() {
+        final BinaryClient client = new BinaryClient( vertx.eventBus(), BINARY_ADDRESS );
+        client.set( "hits", "10".getBytes( UTF8 ), 0, 0, new Handler<BinaryReply>() {
+            @Override
+            public void handle( BinaryReply reply ) {
+                client.incr( "hits", 5, new Handler<BinaryReply>() {
+                    @Override
+                    public void handle( BinaryReply reply ) {
+                        assertTrue( reply.isOk() );
+                        assertEquals( 15, reply.getLong() );
+                        testComplete();
+                    }
+                } );
+            }
+        } );
+    }
+
+    @Test
+    public void testJsonWritesAreReadAsStored() {
+        expectOk( command( "set", "shared" ).putString( "value", "text" ), new Handler<JsonObject>() {
+            @Override
+            public void handle( JsonObject response ) {
+                new BinaryClient( vertx.eventBus(), BINARY_ADDRESS ).get( "shared", new Handler<BinaryReply>() {
+                    @Override
+                    public void handle( BinaryReply reply ) {
+                        assertTrue( reply.isOk() );
+                        assertEquals( "text", new String( reply.getValue(), UTF8 ) );
+                        testComplete();
+                    }
+                } );
+            }
+        } );
+    }
+
+    @Test
+    public void testChunkedJsonWritesAreAssembled() {
+        final String value = ChunksTest.largeValue( 'b', 3 );
+        expectOk( command( "set", "large" ).putString( "value", value ), new Handler<JsonObject>() {
+            @Override
+            public void handle( JsonObject response ) {
+                new BinaryClient( vertx.eventBus(), BINARY_ADDRESS ).get( "large", new Handler<BinaryReply>() {
+                    @Override
+                    public void handle( BinaryReply reply ) {
+                        assertTrue( reply.getMessage(), reply.isOk() );
+                        assertEquals( value, new String( reply.getValue(), UTF8 ) );
+                        testComplete();
+                    }
+                } );
+            }
+        } );
+    }
+
+    @Test
+    public void testEnvelopesAreUnwrapped() {
+        expectOk( command( "set", "soft" ).putString( "value", "text" ).putNumber( "exp", 600 ).putNumber( "soft", 60 ), new Handler<JsonObject>() {
+            @Override
+            public void handle( JsonObject response ) {
+                new BinaryClient( vertx.eventBus(), BINARY_ADDRESS ).get( "soft", new Handler<BinaryReply>() {
+                    @Override
+                    public void handle( BinaryReply reply ) {
+                        assertTrue( reply.getMessage(), reply.isOk() );
+                        assertEquals( "text", new String( reply.getValue(), UTF8 ) );
+                        assertEquals( 0, reply.getFlags() & 0x80000 );
+                        testComplete();
+                    }
+                } );
+            }
+        } );
+    }
+
+    @Test
+    public void testTruncatedFrameIsAnError() {
+        vertx.eventBus().send( BINARY_ADDRESS, new Buffer().appendByte( BinaryCodec.GET ).appendInt( 0 ), new Handler<Message<Buffer>>() {
+            @Override
+            public void handle( Message<Buffer> reply ) {
+                assertEquals( BinaryCodec.ERROR, BinaryCodec.decodeReply( reply.body() ).getStatus() );
+                testComplete();
+            }
+        } );
+    }
+}
@@ -0,0 +1,108 @@
+package net.atarno.vertx.memcached.tests;
+
+import org.junit.Test;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.json.JsonObject;
+
+import static org.vertx.testtools.VertxAssert.assertEquals;
+import static org.vertx.testtools.VertxAssert.assertTrue;
+import static org.vertx.testtools.VertxAssert.testComplete;
+
+public class CasTest extends MemServerTestBase {
+    static final int WRITERS = 10;
+
+    @Test
+    public void testStaleCasIsRejected() {
+        expectOk( command( "set", "guarded" ).putString( "value", "v1" ), new Handler<JsonObject>() {
+            @Override
+            public void handle( JsonObject response ) {
+                expectOk( command( "gets", "guarded" ), new Handler<JsonObject>() {
+                    @Override
+                    public void handle( JsonObject response ) {
+                        final long stale = response.getLong( "cas" );
+                        // another client writes meanwhile
+                        expectOk( command( "set", "guarded" ).putString( "value", "v2" ), new Handler<JsonObject>() {
+                            @Override
+                            public void handle( JsonObject response ) {
+                                send( command( "cas", "guarded" ).putString( "value", "v3" ).putNumber( "cas", stale ), new Handler<JsonObject>() {
+                                    @Override
+                                    public void handle( JsonObject reply ) {
+                                        assertEquals( "Data exists for key.", reply.getString( "message" ) );
+                                        retry();
+                                    }
+                                } );
+                            }
+                        } );
+                    }
+                } );
+            }
+        } );
+    }
+
+    @Test
+    public void testConcurrentUpdatesAreNotLost() {
+        final int[] replies = new int[ 1 ];
+        for ( int i = 0; i < WRITERS; i++ ) {
+            JsonObject update = command( "update", "tally" ).putObject( "incr", new JsonObject().putNumber( "count", 1 ) );
+            expectOk( update, new Handler<JsonObject>() {
+                @Override
+                public void handle( JsonObject response ) {
+                    assertTrue( response.encode(), response.getInteger( "attempts" ) >= 1 );
+                    if ( ++replies[ 0 ] < WRITERS ) {
+                        return;
+                    }
+                    expectOk( command( "get", "tally" ), new Handler<JsonObject>() {
+                        @Override
+                        public void handle( JsonObject response ) {
+                            assertEquals( WRITERS, response.getObject( "value" ).getInteger( "count" ).intValue() );
+                            testComplete();
+                        }
+                    } );
+                }
+            } );
+        }
+    }
+
+    @Test
+    public void testUpdateMergesIntoTheStoredObject() {
+        JsonObject value = new JsonObject().putString( "name", "a" ).putNumber( "visits", 1 ).putString( "gone", "x" );
+        expectOk( command( "set", "profile" ).putObject( "value", value ), new Handler<JsonObject>() {
+            @Override
+            public void handle( JsonObject response ) {
+                JsonObject merge = new JsonObject().putString( "name", "b" ).putValue( "gone", null );
+                JsonObject update = command( "update", "profile" ).putObject( "merge", merge ).putObject( "incr", new JsonObject().putNumber( "visits", 2 ) );
+                expectOk( update, new Handler<JsonObject>() {
+                    @Override
+                    public void handle( JsonObject response ) {
+                        JsonObject written = response.getObject( "value" );
+                        assertEquals( "b", written.getString( "name" ) );
+                        assertEquals( 3, written.getInteger( "visits" ).intValue() );
+                        assertTrue( written.encode(), !written.containsField( "gone" ) );
+                        testComplete();
+                    }
+                } );
+            }
+        } );
+    }
+
+    private void retry() {
+        expectOk( command( "gets", "guarded" ), new Handler<JsonObject>() {
+            @Override
+            public void handle( JsonObject response ) {
+                assertEquals( "v2", response.getString( "value" ) );
+                expectOk( command( "cas", "guarded" ).putString( "value", "v3" ).putNumber( "cas", response.getLong( "cas" ) ), new Handler<JsonObject>() {
+                    @Override
+                    public void handle( JsonObject response ) {
+                        expectOk( command( "get", "guarded" ), new Handler<JsonObject>() {
+                            @Override
+                            public void handle( JsonObject response ) {
+                                assertEquals( "v3", response.getString( "value" ) );
+                                testComplete();
+                            }
+                        } );
+                    }
+                } );
+            }
+        } );
+    }
+}
@@ -0,0 +1,159 @@
+package net.atarno.vertx.memcached.tests;
+
+import org.junit.Test;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import static org.vertx.testtools.VertxAssert.assertEquals;
+import static org.vertx.testtools.VertxAssert.assertTrue;
+import static org.vertx.testtools.VertxAssert.testComplete;
+
+public class ChunksTest extends MemServerTestBase {
+    static final int CHUNK_SIZE = 1000;
+
+    @Override
+    protected void configure( JsonObject config ) {
+        config.putNumber( "memcached.chunk.size", CHUNK_SIZE );
+        // the values must stay larger than a chunk once encoded
+        config.putNumber( "memcached.compression.threshold", Integer.MAX_VALUE );
+    }
+
+    @Test
+    public void testChunkedRoundTrip() {
+        final String value = largeValue( 'a', 4 );
+        expectOk( command( "set", "big" ).putString( "value", value ), new Handler<JsonObject>() {
+            @Override
+            public void handle( JsonObject response ) {
+                expectOk( command( "get", "big" ), new Handler<JsonObject>() {
+                    @Override
+                    public void handle( JsonObject response ) {
+                        assertEquals( value, response.getString( "value" ) );
+                        expectOk( new JsonObject().putString( "command", "status" ), new Handler<JsonObject>() {
+                            @Override
+                            public void handle( JsonObject status ) {
+                                JsonObject chunks = status.getObject( "chunks" );
+                                assertEquals( 1, chunks.getLong( "written" ).longValue() );
+                                assertTrue( chunks.encode(), chunks.getLong( "chunks" ) > 1 );
+                                testComplete();
+                            }
+                        } );
+                    }
+                } );
+            }
+        } );
+    }
+
+    @Test
+    public void testBulkWritesGoThroughTheChunks() {
+        final String value = largeValue( 'b', 4 );
+        JsonArray items = new JsonArray().addObject( new JsonObject().putString( "key", "bulk" ).putString( "value", value ) );
+        expectOk( new JsonObject().putString( "command", "setbulk" ).putArray( "items", items ), new Handler<JsonObject>() {
+            @Override
+            public void handle( JsonObject response ) {
+                assertEquals( 0, response.getArray( "failed" ).size() );
+                expectOk( command( "get", "bulk" ), new Handler<JsonObject>() {
+                    @Override
+                    public void handle( JsonObject response ) {
+                        assertEquals( value, response.getString( "value" ) );
+                        expectOk( new JsonObject().putString( "command", "status" ), new Handler<JsonObject>() {
+                            @Override
+                            public void handle( JsonObject status ) {
+                                assertEquals( 1, status.getObject( "chunks" ).getLong( "written" ).longValue() );
+                                JsonObject delete = new JsonObject().putString( "command", "deletebulk" ).putArray( "keys", new JsonArray().addString( "bulk" ) );
+                                expectOk( delete, new Handler<JsonObject>() {
+                                    @Override
+                                    public void handle( JsonObject response ) {
+                                        assertEquals( 0, response.getArray( "failed" ).size() );
+                                        // the chunks went with the manifest
+                                        send( command( "get", "bulk~chunk0" ), new Handler<JsonObject>() {
+                                            @Override
+                                            public void handle( JsonObject reply ) {
+                                                assertEquals( "Not found", reply.getString( "message" ) );
+                                                testComplete();
+                                            }
+                                        } );
+                                    }
+                                } );
+                            }
+                        } );
+                    }
+                } );
+            }
+        } );
+    }
+
+    @Test
+    public void testStreamedGetBulkReadsTheChunks() {
+        final String value = largeValue( 's', 4 );
+        expectOk( command( "set", "streamed" ).putString( "value", value ), new Handler<JsonObject>() {
+            @Override
+            public void handle( JsonObject response ) {
+                // the chunk and the reply may arrive in any order
+                final int[] arrived = new int[ 1 ];
+                vertx.eventBus().registerHandler( "chunks.stream", new Handler<Message<JsonObject>>() {
+                    @Override
+                    public void handle( Message<JsonObject> chunk ) {
+                        if ( chunk.body().getBoolean( "done", false ) ) {
+                            return;
+                        }
+                        assertEquals( value, chunk.body().getArray( "values" ).get( 0 ) );
+                        if ( ++arrived[ 0 ] == 2 ) {
+                            testComplete();
+                        }
+                    }
+                } );
+                JsonObject getBulk = new JsonObject().putString( "command", "getbulk" )
+                        .putArray( "keys", new JsonArray().addString( "streamed" ) )
+                        .putString( "stream", "chunks.stream" );
+                expectOk( getBulk, new Handler<JsonObject>() {
+                    @Override
+                    public void handle( JsonObject summary ) {
+                        assertEquals( summary.encode(), 1, summary.getInteger( "count" ).intValue() );
+                        assertEquals( summary.encode(), 0, summary.getArray( "failed" ).size() );
+                        if ( ++arrived[ 0 ] == 2 ) {
+                            testComplete();
+                        }
+                    }
+                } );
+            }
+        } );
+    }
+
+    @Test
+    public void testKeyTooLongToBeChunked() {
+        // "~chunk0" makes a 250 bytes key, the eleventh chunk's key is one byte longer
+        StringBuilder key = new StringBuilder();
+        for ( int i = 0; i < 243; i++ ) {
+            key.append( 'k' );
+        }
+        final String longKey = key.toString();
+        send( command( "set", longKey ).putString( "value", largeValue( 'c', 11 ) ), new Handler<JsonObject>() {
+            @Override
+            public void handle( JsonObject reply ) {
+                assertEquals( "error", reply.getString( "status" ) );
+                assertTrue( reply.getString( "message" ), reply.getString( "message" ).contains( "too long" ) );
+                send( command( "get", longKey + "~chunk0" ), new Handler<JsonObject>() {
+                    @Override
+                    public void handle( JsonObject reply ) {
+                        // nothing was written
+                        assertEquals( "Not found", reply.getString( "message" ) );
+                        testComplete();
+                    }
+                } );
+            }
+        } );
+    }
+
+    /**
+     * @return a value that makes the given number of chunks
+     */
+    static String largeValue( char c, int chunks ) {
+        StringBuilder sb = new StringBuilder();
+        for ( int i = 0; i < CHUNK_SIZE * ( chunks - 1 ) + 17; i++ ) {
+            sb.append( ( char ) ( c + i % 20 ) );
+        }
+        return sb.toString();
+    }
+}
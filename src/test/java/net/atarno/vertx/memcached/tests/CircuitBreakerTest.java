@@ -0,0 +1,144 @@
+package net.atarno.vertx.memcached.tests;
+
+import org.junit.Test;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import static org.vertx.testtools.VertxAssert.assertEquals;
+import static org.vertx.testtools.VertxAssert.assertTrue;
+import static org.vertx.testtools.VertxAssert.testComplete;
+
+public class CircuitBreakerTest extends MemServerTestBase {
+    static final int VOLUME = 4;
+    static final long OPEN_MS = 200;
+
+    @Override
+    protected void configure( JsonObject config ) {
+        config.putBoolean( "memcached.breaker.enabled", true );
+        config.putNumber( "memcached.breaker.volume", VOLUME );
+        config.putNumber( "memcached.breaker.failure.rate", 50 );
+        config.putNumber( "memcached.breaker.open.ms", OPEN_MS );
+    }
+
+    @Test
+    public void testFailuresOpenTheBreakerAndAProbeClosesIt() {
+        expectOk( command( "set", "text" ).putString( "value", "not a number" ), new Handler<JsonObject>() {
+            @Override
+            public void handle( JsonObject response ) {
+                fail( 0, new Handler<JsonObject>() {
+                    @Override
+                    public void handle( JsonObject breaker ) {
+                        rejected();
+                    }
+                } );
+            }
+        } );
+    }
+
+    @Test
+    public void testStreamedGetBulkListsTheRejectedKeys() {
+        expectOk( command( "set", "text" ).putString( "value", "not a number" ), new Handler<JsonObject>() {
+            @Override
+            public void handle( JsonObject response ) {
+                fail( 0, new Handler<JsonObject>() {
+                    @Override
+                    public void handle( JsonObject breaker ) {
+                        JsonObject getBulk = new JsonObject().putString( "command", "getbulk" )
+                                .putArray( "keys", new JsonArray().addString( "text" ) )
+                                .putString( "stream", "breaker.stream" );
+                        expectOk( getBulk, new Handler<JsonObject>() {
+                            @Override
+                            public void handle( JsonObject summary ) {
+                                assertEquals( 0, summary.getInteger( "count" ).intValue() );
+                                assertEquals( summary.encode(), "text", summary.getArray( "failed" ).get( 0 ) );
+                                testComplete();
+                            }
+                        } );
+                    }
+                } );
+            }
+        } );
+    }
+
+    @Test
+    public void testMissesDoNotOpenTheBreaker() {
+        final int[] replies = new int[ 1 ];
+        for ( int i = 0; i < VOLUME * 2; i++ ) {
+            send( command( "get", "missing" + i ), new Handler<JsonObject>() {
+                @Override
+                public void handle( JsonObject reply ) {
+                    assertEquals( "Not found", reply.getString( "message" ) );
+                    if ( ++replies[ 0 ] == VOLUME * 2 ) {
+                        assertBreaker( "closed", new Handler<JsonObject>() {
+                            @Override
+                            public void handle( JsonObject breaker ) {
+                                assertEquals( 0, breaker.getLong( "failures" ).longValue() );
+                                testComplete();
+                            }
+                        } );
+                    }
+                }
+            } );
+        }
+    }
+
+    /**
+     * increments a non-numeric value until the breaker opens
+     */
+    private void fail( final int failures, final Handler<JsonObject> opened ) {
+        send( command( "incr", "text" ).putNumber( "by", 1 ), new Handler<JsonObject>() {
+            @Override
+            public void handle( JsonObject reply ) {
+                assertEquals( reply.encode(), "error", reply.getString( "status" ) );
+                if ( failures + 1 < VOLUME ) {
+                    fail( failures + 1, opened );
+                    return;
+                }
+                assertBreaker( "open", opened );
+            }
+        } );
+    }
+
+    private void rejected() {
+        send( command( "get", "text" ), new Handler<JsonObject>() {
+            @Override
+            public void handle( JsonObject reply ) {
+                assertEquals( "server unavailable: circuit breaker open", reply.getString( "message" ) );
+                vertx.setTimer( OPEN_MS + 50, new Handler<Long>() {
+                    @Override
+                    public void handle( Long id ) {
+                        // the probe succeeds
+                        expectOk( command( "get", "text" ), new Handler<JsonObject>() {
+                            @Override
+                            public void handle( JsonObject response ) {
+                                assertEquals( "not a number", response.getString( "value" ) );
+                                assertBreaker( "closed", new Handler<JsonObject>() {
+                                    @Override
+                                    public void handle( JsonObject breaker ) {
+                                        assertEquals( 1, breaker.getLong( "opened" ).longValue() );
+                                        assertTrue( breaker.encode(), breaker.getLong( "rejected" ) >= 1 );
+                                        testComplete();
+                                    }
+                                } );
+                            }
+                        } );
+                    }
+                } );
+            }
+        } );
+    }
+
+    private void assertBreaker( final String state, final Handler<JsonObject> next ) {
+        expectOk( new JsonObject().putString( "command", "status" ), new Handler<JsonObject>() {
+            @Override
+            public void handle( JsonObject status ) {
+                JsonObject breakers = status.getObject( "breakers" );
+                assertEquals( breakers.encode(), 1, breakers.size() );
+                JsonObject breaker = breakers.getObject( breakers.getFieldNames().iterator().next() );
+                assertEquals( breaker.encode(), state, breaker.getString( "state" ) );
+                next.handle( breaker );
+            }
+        } );
+    }
+}
@@ -0,0 +1,89 @@
+package net.atarno.vertx.memcached.tests;
+
+import org.junit.Test;
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.testtools.TestVerticle;
+
+import static org.vertx.testtools.VertxAssert.assertEquals;
+import static org.vertx.testtools.VertxAssert.assertTrue;
+import static org.vertx.testtools.VertxAssert.fail;
+import static org.vertx.testtools.VertxAssert.testComplete;
+
+/**
+ * Smoke test of the client pool against a memcached server on localhost:11211.
+ */
+public class ClientPoolTest extends TestVerticle {
+    static final String ADDRESS = "vertx.memcached.pool";
+
+    @Override
+    public void start() {
+        initialize();
+
+        JsonObject config = new JsonObject();
+        config.putString( "address", ADDRESS );
+        config.putString( "memcached.servers", "localhost:11211" );
+        config.putNumber( "memcached.timeout.ms", 1000 );
+        config.putNumber( "memcached.connections", 2 );
+
+        container.deployVerticle( "net.atarno.vertx.memcached.client.MemClient", config, 1, new Handler<AsyncResult<String>>() {
+            @Override
+            public void handle( AsyncResult<String> result ) {
+                assertTrue( "deployment failed", result.succeeded() );
+                startTests();
+            }
+        } );
+    }
+
+    @Test
+    public void testSetAndGetThroughThePool() {
+        JsonObject set = new JsonObject().putString( "command", "set" ).putString( "key", "pool-smoke" ).putString( "value", "v1" );
+        vertx.eventBus().send( ADDRESS, set, new Handler<Message<JsonObject>>() {
+            @Override
+            public void handle( Message<JsonObject> reply ) {
+                assertEquals( "ok", reply.body().getString( "status" ) );
+
+                JsonObject get = new JsonObject().putString( "command", "get" ).putString( "key", "pool-smoke" );
+                vertx.eventBus().send( ADDRESS, get, new Handler<Message<JsonObject>>() {
+                    @Override
+                    public void handle( Message<JsonObject> reply ) {
+                        assertEquals( "ok", reply.body().getString( "status" ) );
+                        assertEquals( "v1", reply.body().getObject( "response" ).getString( "value" ) );
+                        assertDrained( 20 );
+                    }
+                } );
+            }
+        } );
+    }
+
+    /**
+     * the completion listeners of the pool may run just after the reply, so the counters are polled for a while
+     */
+    private void assertDrained( final int attempts ) {
+        JsonObject status = new JsonObject().putString( "command", "status" );
+        vertx.eventBus().send( ADDRESS, status, new Handler<Message<JsonObject>>() {
+            @Override
+            public void handle( Message<JsonObject> reply ) {
+                JsonArray outstanding = reply.body().getObject( "response" ).getObject( "pool" ).getArray( "outstanding" );
+                for ( Object count : outstanding ) {
+                    if ( ( ( Number ) count ).intValue() != 0 ) {
+                        if ( attempts == 0 ) {
+                            fail( "operations still outstanding: " + outstanding.encode() );
+                        }
+                        vertx.setTimer( 50, new Handler<Long>() {
+                            @Override
+                            public void handle( Long timerId ) {
+                                assertDrained( attempts - 1 );
+                            }
+                        } );
+                        return;
+                    }
+                }
+                testComplete();
+            }
+        } );
+    }
+}
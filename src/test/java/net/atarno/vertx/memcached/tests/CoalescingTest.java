@@ -0,0 +1,77 @@
+package net.atarno.vertx.memcached.tests;
+
+import org.junit.Test;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.json.JsonObject;
+
+import static org.vertx.testtools.VertxAssert.assertEquals;
+import static org.vertx.testtools.VertxAssert.assertTrue;
+import static org.vertx.testtools.VertxAssert.testComplete;
+
+public class CoalescingTest extends MemServerTestBase {
+    static final int READERS = 5;
+
+    @Override
+    protected void configure( JsonObject config ) {
+        config.putBoolean( "memcached.coalesce.gets", true );
+    }
+
+    @Test
+    public void testConcurrentGetsShareOneOperation() {
+        expectOk( command( "set", "hot" ).putString( "value", "v1" ), new Handler<JsonObject>() {
+            @Override
+            public void handle( JsonObject response ) {
+                final int[] replies = new int[ 1 ];
+                for ( int i = 0; i < READERS; i++ ) {
+                    expectOk( command( "get", "hot" ), new Handler<JsonObject>() {
+                        @Override
+                        public void handle( JsonObject response ) {
+                            assertEquals( "v1", response.getString( "value" ) );
+                            if ( ++replies[ 0 ] < READERS ) {
+                                return;
+                            }
+                            expectOk( new JsonObject().putString( "command", "status" ), new Handler<JsonObject>() {
+                                @Override
+                                public void handle( JsonObject status ) {
+                                    JsonObject coalescing = status.getObject( "coalescing" );
+                                    assertEquals( 0, coalescing.getLong( "inflight" ).longValue() );
+                                    assertEquals( READERS, coalescing.getLong( "issued" ) + coalescing.getLong( "coalesced" ) );
+                                    assertTrue( coalescing.encode(), coalescing.getLong( "coalesced" ) > 0 );
+                                    testComplete();
+                                }
+                            } );
+                        }
+                    } );
+                }
+            }
+        } );
+    }
+
+    @Test
+    public void testWriteDetachesTheReadInFlight() {
+        expectOk( command( "set", "moving" ).putString( "value", "old" ), new Handler<JsonObject>() {
+            @Override
+            public void handle( JsonObject response ) {
+                // the first read is in flight when the write is sent, the read after the write must not join it
+                expectOk( command( "get", "moving" ), new Handler<JsonObject>() {
+                    @Override
+                    public void handle( JsonObject response ) {
+                        assertEquals( "old", response.getString( "value" ) );
+                    }
+                } );
+                expectOk( command( "set", "moving" ).putString( "value", "new" ), new Handler<JsonObject>() {
+                    @Override
+                    public void handle( JsonObject response ) {
+                    }
+                } );
+                expectOk( command( "get", "moving" ), new Handler<JsonObject>() {
+                    @Override
+                    public void handle( JsonObject response ) {
+                        assertEquals( "new", response.getString( "value" ) );
+                        testComplete();
+                    }
+                } );
+            }
+        } );
+    }
+}
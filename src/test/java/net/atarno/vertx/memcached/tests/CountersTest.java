@@ -0,0 +1,111 @@
+package net.atarno.vertx.memcached.tests;
+
+import org.junit.Test;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.json.JsonObject;
+
+import static org.vertx.testtools.VertxAssert.assertEquals;
+import static org.vertx.testtools.VertxAssert.testComplete;
+
+public class CountersTest extends MemServerTestBase {
+    static final int FLUSH_MS = 300;
+
+    @Override
+    protected void configure( JsonObject config ) {
+        config.putNumber( "memcached.counters.flush.ms", FLUSH_MS );
+        config.putNumber( "memcached.timeout.ms", 100 );
+        config.putBoolean( "memcached.breaker.enabled", true );
+        config.putNumber( "memcached.breaker.volume", 3 );
+    }
+
+    @Test
+    public void testPendingDeltaIsReadBeforeTheFlush() {
+        aggregate( "incr", "visits", 5, new Runnable() {
+            @Override
+            public void run() {
+                aggregate( "decr", "visits", 2, new Runnable() {
+                    @Override
+                    public void run() {
+                        expectOk( command( "get", "visits" ).putBoolean( "pending", true ), new Handler<JsonObject>() {
+                            @Override
+                            public void handle( JsonObject response ) {
+                                // a flush may have happened in between, the sum stays the same
+                                assertEquals( 3, response.getLong( "value" ).longValue() );
+                                testComplete();
+                            }
+                        } );
+                    }
+                } );
+            }
+        } );
+    }
+
+    @Test
+    public void testAggregationNeitherTripsTheBreakerNorDefersTheFlush() {
+        // two bursts apart by more than the time-out, which sent nothing, must not look like a silent server
+        burst( 5, new Runnable() {
+            @Override
+            public void run() {
+                vertx.setTimer( 150, new Handler<Long>() {
+                    @Override
+                    public void handle( Long timerId ) {
+                        burst( 5, new Runnable() {
+                            @Override
+                            public void run() {
+                                vertx.setTimer( FLUSH_MS * 2, new Handler<Long>() {
+                                    @Override
+                                    public void handle( Long timerId ) {
+                                        assertFlushed();
+                                    }
+                                } );
+                            }
+                        } );
+                    }
+                } );
+            }
+        } );
+    }
+
+    private void assertFlushed() {
+        expectOk( command( "get", "hits" ), new Handler<JsonObject>() {
+            @Override
+            public void handle( JsonObject response ) {
+                Object value = response.getField( "value" );
+                assertEquals( "10", String.valueOf( value ).trim() );
+                expectOk( new JsonObject().putString( "command", "status" ), new Handler<JsonObject>() {
+                    @Override
+                    public void handle( JsonObject status ) {
+                        JsonObject counters = status.getObject( "counters" );
+                        assertEquals( 0, counters.getLong( "keys" ) + counters.getLong( "deferred" ) + counters.getLong( "failures" ) );
+                        JsonObject breaker = status.getObject( "breakers" ).getObject( "localhost:" + PORT );
+                        assertEquals( "closed", breaker.getString( "state" ) );
+                        assertEquals( 0, breaker.getLong( "opened" ).longValue() );
+                        testComplete();
+                    }
+                } );
+            }
+        } );
+    }
+
+    private void burst( final int left, final Runnable next ) {
+        if ( left == 0 ) {
+            next.run();
+            return;
+        }
+        aggregate( "incr", "hits", 1, new Runnable() {
+            @Override
+            public void run() {
+                burst( left - 1, next );
+            }
+        } );
+    }
+
+    private void aggregate( String command, String key, long by, final Runnable next ) {
+        expectOk( command( command, key ).putNumber( "by", by ).putBoolean( "aggregate", true ), new Handler<JsonObject>() {
+            @Override
+            public void handle( JsonObject response ) {
+                next.run();
+            }
+        } );
+    }
+}
@@ -0,0 +1,111 @@
+package net.atarno.vertx.memcached.tests;
+
+import org.junit.Test;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import static org.vertx.testtools.VertxAssert.assertEquals;
+import static org.vertx.testtools.VertxAssert.testComplete;
+
+public class GetBatchingTest extends MemServerTestBase {
+    static final String[] KEYS = { "batch0", "batch1", "batch2" };
+
+    @Override
+    protected void configure( JsonObject config ) {
+        config.putBoolean( "memcached.getbatch.enabled", true );
+        config.putNumber( "memcached.getbatch.window.ms", 50 );
+        config.putNumber( "memcached.getbatch.max.keys", 2 );
+    }
+
+    @Override
+    protected boolean replicated() {
+        return true;
+    }
+
+    @Test
+    public void testGetsAreMergedIntoMultiGets() {
+        JsonArray items = new JsonArray();
+        for ( String key : KEYS ) {
+            items.addObject( new JsonObject().putString( "key", key ).putString( "value", key + "-value" ) );
+        }
+        expectOk( new JsonObject().putString( "command", "setbulk" ).putArray( "items", items ), new Handler<JsonObject>() {
+            @Override
+            public void handle( JsonObject response ) {
+                final int[] replies = new int[ 1 ];
+                for ( final String key : KEYS ) {
+                    expectOk( command( "get", key ), new Handler<JsonObject>() {
+                        @Override
+                        public void handle( JsonObject response ) {
+                            assertEquals( key + "-value", response.getString( "value" ) );
+                            if ( ++replies[ 0 ] == KEYS.length ) {
+                                assertBatches();
+                            }
+                        }
+                    } );
+                }
+            }
+        } );
+    }
+
+    @Test
+    public void testMissesAreRepliedPerKey() {
+        expectOk( command( "set", "present" ).putString( "value", "here" ), new Handler<JsonObject>() {
+            @Override
+            public void handle( JsonObject response ) {
+                send( command( "get", "absent" ), new Handler<JsonObject>() {
+                    @Override
+                    public void handle( JsonObject reply ) {
+                        assertEquals( "Not found", reply.getString( "message" ) );
+                    }
+                } );
+                expectOk( command( "get", "present" ), new Handler<JsonObject>() {
+                    @Override
+                    public void handle( JsonObject response ) {
+                        assertEquals( "here", response.getString( "value" ) );
+                        testComplete();
+                    }
+                } );
+            }
+        } );
+    }
+
+    @Test
+    public void testMissesAreNotReadFromTheReplica() {
+        // a read sent before the client connected would go to the replica, the primary server looking down
+        expectOk( command( "set", "present" ).putString( "value", "v" ), new Handler<JsonObject>() {
+            @Override
+            public void handle( JsonObject response ) {
+                send( command( "get", "absent" ), new Handler<JsonObject>() {
+                    @Override
+                    public void handle( JsonObject reply ) {
+                        assertEquals( "Not found", reply.getString( "message" ) );
+                        expectOk( new JsonObject().putString( "command", "status" ), new Handler<JsonObject>() {
+                            @Override
+                            public void handle( JsonObject status ) {
+                                // memcached.replica.read.on.miss is off
+                                JsonObject replica = status.getObject( "replica" );
+                                assertEquals( replica.encode(), 0, replica.getLong( "fallbacks" ).longValue() );
+                                testComplete();
+                            }
+                        } );
+                    }
+                } );
+            }
+        } );
+    }
+
+    private void assertBatches() {
+        expectOk( new JsonObject().putString( "command", "status" ), new Handler<JsonObject>() {
+            @Override
+            public void handle( JsonObject status ) {
+                JsonObject getBatch = status.getObject( "getbatch" );
+                // the first batch is sent once it holds the maximum number of keys, the last one when the window ends
+                assertEquals( getBatch.encode(), 2, getBatch.getLong( "batches" ).longValue() );
+                assertEquals( getBatch.encode(), KEYS.length, getBatch.getLong( "keys" ).longValue() );
+                assertEquals( getBatch.encode(), 2, getBatch.getLong( "max" ).longValue() );
+                testComplete();
+            }
+        } );
+    }
+}
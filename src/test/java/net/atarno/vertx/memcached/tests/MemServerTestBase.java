@@ -0,0 +1,126 @@
+package net.atarno.vertx.memcached.tests;
+
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.testtools.TestVerticle;
+
+import static org.vertx.testtools.VertxAssert.assertEquals;
+import static org.vertx.testtools.VertxAssert.assertTrue;
+
+/**
+ * Deploys an embedded memcached server and a MemClient in front of it before the tests of a class run.
+ * The client configuration can be extended by overriding {@link #configure(JsonObject)}, a replica server is
+ * deployed as well when {@link #replicated()} is overridden.
+ */
+public abstract class MemServerTestBase extends TestVerticle {
+    static final String ADDRESS = "vertx.memcached.test";
+    static final int PORT = 11311;
+    static final int REPLICA_PORT = 11312;
+
+    @Override
+    public void start() {
+        initialize();
+
+        deployServer( PORT, new Handler<Void>() {
+            @Override
+            public void handle( Void v ) {
+                if ( !replicated() ) {
+                    deployClient();
+                    return;
+                }
+                deployServer( REPLICA_PORT, new Handler<Void>() {
+                    @Override
+                    public void handle( Void v ) {
+                        deployClient();
+                    }
+                } );
+            }
+        } );
+    }
+
+    void deployServer( int port, final Handler<Void> deployed ) {
+        JsonObject serverConfig = new JsonObject().putNumber( "port", port );
+        container.deployVerticle( "net.atarno.vertx.memcached.server.MemServer", serverConfig, 1, new Handler<AsyncResult<String>>() {
+            @Override
+            public void handle( AsyncResult<String> result ) {
+                assertTrue( "server deployment failed", result.succeeded() );
+                deployed.handle( null );
+            }
+        } );
+    }
+
+    private void deployClient() {
+        JsonObject config = new JsonObject();
+        config.putString( "address", ADDRESS );
+        config.putString( "memcached.servers", "localhost:" + PORT );
+        config.putNumber( "memcached.timeout.ms", 1000 );
+        config.putNumber( "memcached.connections", 1 );
+        if ( replicated() ) {
+            config.putString( "memcached.replica.servers", "localhost:" + REPLICA_PORT );
+        }
+        configure( config );
+        container.deployVerticle( "net.atarno.vertx.memcached.client.MemClient", config, instances(), new Handler<AsyncResult<String>>() {
+            @Override
+            public void handle( AsyncResult<String> result ) {
+                assertTrue( "client deployment failed", result.succeeded() );
+                startTests();
+            }
+        } );
+    }
+
+    protected void configure( JsonObject config ) {
+    }
+
+    /**
+     * @return true to deploy a second server on {@link #REPLICA_PORT}, set as the replica of the client
+     */
+    protected boolean replicated() {
+        return false;
+    }
+
+    protected int instances() {
+        return 1;
+    }
+
+    /**
+     * @return a setbulk of many values, below the compression threshold, so that its operations stay in flight
+     * while the server catches up
+     */
+    static JsonObject slowWrite( String prefix ) {
+        String value = new String( new char[ 8000 ] ).replace( '\0', 'x' );
+        JsonArray items = new JsonArray();
+        for ( int i = 0; i < 256; i++ ) {
+            items.addObject( new JsonObject().putString( "key", prefix + i ).putString( "value", value ) );
+        }
+        return new JsonObject().putString( "command", "setbulk" ).putArray( "items", items );
+    }
+
+    static JsonObject command( String command, String key ) {
+        return new JsonObject().putString( "command", command ).putString( "key", key );
+    }
+
+    void send( JsonObject request, final Handler<JsonObject> replyHandler ) {
+        vertx.eventBus().send( ADDRESS, request, new Handler<Message<JsonObject>>() {
+            @Override
+            public void handle( Message<JsonObject> reply ) {
+                replyHandler.handle( reply.body() );
+            }
+        } );
+    }
+
+    /**
+     * sends the request and hands over the response of a successful reply
+     */
+    void expectOk( JsonObject request, final Handler<JsonObject> responseHandler ) {
+        send( request, new Handler<JsonObject>() {
+            @Override
+            public void handle( JsonObject reply ) {
+                assertEquals( reply.encode(), "ok", reply.getString( "status" ) );
+                responseHandler.handle( reply.getObject( "response" ) );
+            }
+        } );
+    }
+}
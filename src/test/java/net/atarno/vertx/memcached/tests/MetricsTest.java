@@ -0,0 +1,51 @@
+package net.atarno.vertx.memcached.tests;
+
+import org.junit.Test;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import static org.vertx.testtools.VertxAssert.assertEquals;
+import static org.vertx.testtools.VertxAssert.testComplete;
+
+public class MetricsTest extends MemServerTestBase {
+
+    @Override
+    protected void configure( JsonObject config ) {
+        config.putBoolean( "memcached.metrics.enabled", true );
+    }
+
+    @Test
+    public void testARequestIsRecordedOnce() {
+        JsonArray items = new JsonArray();
+        JsonArray keys = new JsonArray();
+        for ( int i = 0; i < 3; i++ ) {
+            items.addObject( new JsonObject().putString( "key", "m" + i ).putString( "value", "v" ) );
+            keys.addString( "m" + i );
+        }
+        // one chunk per key, every chunk hops back to the event loop
+        final JsonObject streamed = new JsonObject().putString( "command", "getbulk" ).putArray( "keys", keys )
+                .putString( "stream", ADDRESS + ".stream" ).putNumber( "chunk", 1 );
+        expectOk( new JsonObject().putString( "command", "setbulk" ).putArray( "items", items ), new Handler<JsonObject>() {
+            @Override
+            public void handle( JsonObject response ) {
+                expectOk( streamed, new Handler<JsonObject>() {
+                    @Override
+                    public void handle( JsonObject response ) {
+                        assertEquals( response.encode(), 3, response.getInteger( "chunks" ).intValue() );
+                        expectOk( new JsonObject().putString( "command", "metrics" ), new Handler<JsonObject>() {
+                            @Override
+                            public void handle( JsonObject metrics ) {
+                                JsonObject getBulk = metrics.getObject( "commands" ).getObject( "getbulk" );
+                                assertEquals( getBulk.encode(), 1, getBulk.getLong( "requests" ).longValue() );
+                                assertEquals( getBulk.encode(), 1, getBulk.getObject( "listener" ).getLong( "count" ).longValue() );
+                                assertEquals( getBulk.encode(), 1, getBulk.getObject( "reply" ).getLong( "count" ).longValue() );
+                                testComplete();
+                            }
+                        } );
+                    }
+                } );
+            }
+        } );
+    }
+}
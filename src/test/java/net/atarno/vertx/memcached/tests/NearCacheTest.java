@@ -0,0 +1,103 @@
+package net.atarno.vertx.memcached.tests;
+
+import org.junit.Test;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import static org.vertx.testtools.VertxAssert.assertEquals;
+import static org.vertx.testtools.VertxAssert.testComplete;
+
+public class NearCacheTest extends MemServerTestBase {
+
+    @Override
+    protected void configure( JsonObject config ) {
+        config.putNumber( "memcached.nearcache.max.entries", 100 );
+        config.putNumber( "memcached.nearcache.ttl.ms", 60000 );
+    }
+
+    @Test
+    public void testRepeatedReadsAreServedLocally() {
+        expectOk( command( "set", "local" ).putString( "value", "v1" ), new Handler<JsonObject>() {
+            @Override
+            public void handle( JsonObject response ) {
+                get( "local", "v1", new Runnable() {
+                    @Override
+                    public void run() {
+                        get( "local", "v1", new Runnable() {
+                            @Override
+                            public void run() {
+                                JsonObject getBulk = new JsonObject().putString( "command", "getbulk" ).putArray( "keys", new JsonArray().addString( "local" ) );
+                                expectOk( getBulk, new Handler<JsonObject>() {
+                                    @Override
+                                    public void handle( JsonObject response ) {
+                                        assertEquals( "v1", response.getArray( "values" ).get( 0 ) );
+                                        assertNearCache( 1, 2 );
+                                    }
+                                } );
+                            }
+                        } );
+                    }
+                } );
+            }
+        } );
+    }
+
+    @Test
+    public void testWritesInvalidateTheEntry() {
+        expectOk( command( "set", "written" ).putString( "value", "v1" ), new Handler<JsonObject>() {
+            @Override
+            public void handle( JsonObject response ) {
+                get( "written", "v1", new Runnable() {
+                    @Override
+                    public void run() {
+                        expectOk( command( "set", "written" ).putString( "value", "v2" ), new Handler<JsonObject>() {
+                            @Override
+                            public void handle( JsonObject response ) {
+                                get( "written", "v2", new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        expectOk( command( "delete", "written" ), new Handler<JsonObject>() {
+                                            @Override
+                                            public void handle( JsonObject response ) {
+                                                send( command( "get", "written" ), new Handler<JsonObject>() {
+                                                    @Override
+                                                    public void handle( JsonObject reply ) {
+                                                        assertEquals( "Not found", reply.getString( "message" ) );
+                                                        assertNearCache( 3, 0 );
+                                                    }
+                                                } );
+                                            }
+                                        } );
+                                    }
+                                } );
+                            }
+                        } );
+                    }
+                } );
+            }
+        } );
+    }
+
+    private void get( String key, final String expected, final Runnable next ) {
+        expectOk( command( "get", key ), new Handler<JsonObject>() {
+            @Override
+            public void handle( JsonObject response ) {
+                assertEquals( expected, response.getString( "value" ) );
+                next.run();
+            }
+        } );
+    }
+
+    private void assertNearCache( final long misses, final long hits ) {
+        expectOk( new JsonObject().putString( "command", "status" ), new Handler<JsonObject>() {
+            @Override
+            public void handle( JsonObject status ) {
+                JsonObject nearCache = status.getObject( "nearcache" );
+                assertEquals( nearCache.encode(), hits, nearCache.getLong( "hits" ).longValue() );
+                assertEquals( nearCache.encode(), misses, nearCache.getLong( "misses" ).longValue() );
+                testComplete();
+            }
+        } );
+    }
+}
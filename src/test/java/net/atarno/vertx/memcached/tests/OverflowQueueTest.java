@@ -0,0 +1,50 @@
+package net.atarno.vertx.memcached.tests;
+
+import org.junit.Test;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import static org.vertx.testtools.VertxAssert.assertEquals;
+import static org.vertx.testtools.VertxAssert.testComplete;
+
+public class OverflowQueueTest extends MemServerTestBase {
+
+    @Override
+    protected void configure( JsonObject config ) {
+        config.putNumber( "memcached.inflight.max", 1 );
+        config.putString( "memcached.overflow.policy", "shed" );
+        config.putNumber( "memcached.overflow.queue.max", 1 );
+    }
+
+    @Test
+    public void testLowPriorityRequestIsShed() {
+        // the commands of a batch are admitted in one go: the first keeps operations in flight, the second is queued,
+        // the third finds the queue full and the fourth, more important, takes the place of the queued one
+        JsonArray commands = new JsonArray()
+                .addObject( slowWrite( "first" ) )
+                .addObject( command( "set", "low1" ).putString( "value", "v" ) )
+                .addObject( command( "set", "low2" ).putString( "value", "v" ) )
+                .addObject( command( "set", "high" ).putString( "value", "v" ).putNumber( "priority", 5 ) );
+        expectOk( new JsonObject().putString( "command", "batch" ).putArray( "commands", commands ), new Handler<JsonObject>() {
+            @Override
+            public void handle( JsonObject response ) {
+                JsonArray results = response.getArray( "results" );
+                assertEquals( "ok", results.<JsonObject>get( 0 ).getString( "status" ) );
+                assertEquals( "overloaded", results.<JsonObject>get( 1 ).getString( "message" ) );
+                assertEquals( "overloaded", results.<JsonObject>get( 2 ).getString( "message" ) );
+                assertEquals( "ok", results.<JsonObject>get( 3 ).getString( "status" ) );
+                expectOk( new JsonObject().putString( "command", "status" ), new Handler<JsonObject>() {
+                    @Override
+                    public void handle( JsonObject status ) {
+                        JsonObject admission = status.getObject( "admission" );
+                        assertEquals( admission.encode(), 1, admission.getLong( "shed" ).longValue() );
+                        assertEquals( admission.encode(), 1, admission.getLong( "rejected" ).longValue() );
+                        assertEquals( admission.encode(), 0, admission.getLong( "queued" ).longValue() );
+                        testComplete();
+                    }
+                } );
+            }
+        } );
+    }
+}
@@ -0,0 +1,87 @@
+package net.atarno.vertx.memcached.tests;
+
+import net.atarno.vertx.memcached.client.ClientPool;
+import net.atarno.vertx.memcached.client.PoolBalancers;
+import net.spy.memcached.AddrUtil;
+import net.spy.memcached.BinaryConnectionFactory;
+import net.spy.memcached.MemcachedClient;
+import org.junit.Test;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import java.io.IOException;
+
+import static org.vertx.testtools.VertxAssert.assertEquals;
+import static org.vertx.testtools.VertxAssert.fail;
+import static org.vertx.testtools.VertxAssert.testComplete;
+
+public class ReconfigureTest extends MemServerTestBase {
+    static final int SILENT_PORT = 11319;
+
+    @Test
+    public void testSwapWhileOperationsAreInFlight() {
+        // the same server under another name, so that a new pool is built
+        JsonObject reconfigure = new JsonObject().putString( "command", "reconfigure" ).putString( "servers", "127.0.0.1:" + PORT );
+        JsonArray commands = new JsonArray().addObject( slowWrite( "swap" ) ).addObject( reconfigure );
+        expectOk( new JsonObject().putString( "command", "batch" ).putArray( "commands", commands ), new Handler<JsonObject>() {
+            @Override
+            public void handle( JsonObject response ) {
+                JsonArray results = response.getArray( "results" );
+                JsonObject write = results.get( 0 );
+                assertEquals( write.encode(), "ok", write.getString( "status" ) );
+                assertEquals( write.encode(), 0, write.getObject( "response" ).getArray( "failed" ).size() );
+                assertEquals( results.encode(), "ok", results.<JsonObject>get( 1 ).getString( "status" ) );
+                expectOk( command( "get", "swap0" ), new Handler<JsonObject>() {
+                    @Override
+                    public void handle( JsonObject response ) {
+                        assertEquals( 8000, response.getString( "value" ).length() );
+                        assertDrained( 40 );
+                    }
+                } );
+            }
+        } );
+    }
+
+    @Test
+    public void testOperationsOfASwappedClientCountOnItsPool() throws IOException {
+        // no server answers the old client, so that its operation stays in flight
+        MemcachedClient oldClient = new MemcachedClient( new BinaryConnectionFactory(), AddrUtil.getAddresses( "localhost:" + SILENT_PORT ) );
+        MemcachedClient newClient = new MemcachedClient( new BinaryConnectionFactory(), AddrUtil.getAddresses( "localhost:" + PORT ) );
+        ClientPool old = new ClientPool( new MemcachedClient[] { oldClient }, PoolBalancers.ROUND_ROBIN );
+        ClientPool current = new ClientPool( new MemcachedClient[] { newClient }, PoolBalancers.ROUND_ROBIN );
+        // submitted through the current pool with the client a request selected before the swap
+        current.track( oldClient, oldClient.set( "straggler", 0, "v" ) );
+        assertEquals( 1, old.totalOutstanding() );
+        assertEquals( 0, current.totalOutstanding() );
+        old.shutdown();
+        current.shutdown();
+        testComplete();
+    }
+
+    /**
+     * the replaced pool is shut down in the background once its operations completed, so the status is polled
+     */
+    private void assertDrained( final int attempts ) {
+        expectOk( new JsonObject().putString( "command", "status" ), new Handler<JsonObject>() {
+            @Override
+            public void handle( JsonObject status ) {
+                JsonObject topology = status.getObject( "topology" );
+                assertEquals( topology.encode(), 1, topology.getLong( "reconfigurations" ).longValue() );
+                if ( topology.getLong( "draining" ) == 0 ) {
+                    testComplete();
+                    return;
+                }
+                if ( attempts == 0 ) {
+                    fail( "the replaced pool is still draining: " + topology.encode() );
+                }
+                vertx.setTimer( 50, new Handler<Long>() {
+                    @Override
+                    public void handle( Long id ) {
+                        assertDrained( attempts - 1 );
+                    }
+                } );
+            }
+        } );
+    }
+}
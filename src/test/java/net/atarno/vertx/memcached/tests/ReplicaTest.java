@@ -0,0 +1,127 @@
+package net.atarno.vertx.memcached.tests;
+
+import org.junit.Test;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.json.JsonObject;
+
+import static org.vertx.testtools.VertxAssert.assertEquals;
+import static org.vertx.testtools.VertxAssert.assertTrue;
+import static org.vertx.testtools.VertxAssert.fail;
+import static org.vertx.testtools.VertxAssert.testComplete;
+
+public class ReplicaTest extends MemServerTestBase {
+    static final int EMPTY_PORT = 11313;
+
+    @Override
+    protected boolean replicated() {
+        return true;
+    }
+
+    @Override
+    protected void configure( JsonObject config ) {
+        config.putNumber( "memcached.chunk.size", ChunksTest.CHUNK_SIZE );
+        config.putNumber( "memcached.compression.threshold", Integer.MAX_VALUE );
+        config.putBoolean( "memcached.replica.read.on.miss", true );
+    }
+
+    /**
+     * points the client at an empty primary server, so that the reads fall back to the replica
+     */
+    private void failOver( final Handler<JsonObject> then ) {
+        deployServer( EMPTY_PORT, new Handler<Void>() {
+            @Override
+            public void handle( Void v ) {
+                JsonObject reconfigure = new JsonObject().putString( "command", "reconfigure" )
+                        .putString( "servers", "localhost:" + EMPTY_PORT )
+                        .putString( "replicas", "localhost:" + REPLICA_PORT );
+                expectOk( reconfigure, then );
+            }
+        } );
+    }
+
+    @Test
+    public void testLargeValuesAreChunkedOnTheReplica() {
+        final String value = ChunksTest.largeValue( 'r', 4 );
+        expectOk( command( "set", "big" ).putString( "value", value ), new Handler<JsonObject>() {
+            @Override
+            public void handle( JsonObject response ) {
+                failOver( new Handler<JsonObject>() {
+                    @Override
+                    public void handle( JsonObject topology ) {
+                        expectOk( command( "get", "big" ), new Handler<JsonObject>() {
+                            @Override
+                            public void handle( JsonObject response ) {
+                                assertEquals( value, response.getString( "value" ) );
+                                expectOk( command( "get", "big~chunk0" ), new Handler<JsonObject>() {
+                                    @Override
+                                    public void handle( JsonObject response ) {
+                                        expectOk( new JsonObject().putString( "command", "status" ), new Handler<JsonObject>() {
+                                            @Override
+                                            public void handle( JsonObject status ) {
+                                                JsonObject replica = status.getObject( "replica" );
+                                                assertEquals( replica.encode(), 0, replica.getLong( "writefailures" ).longValue() );
+                                                assertTrue( replica.encode(), replica.getLong( "fallbacks" ) >= 2 );
+                                                testComplete();
+                                            }
+                                        } );
+                                    }
+                                } );
+                            }
+                        } );
+                    }
+                } );
+            }
+        } );
+    }
+
+    @Test
+    public void testReplicaDeleteRemovesTheChunks() {
+        expectOk( command( "set", "gone" ).putString( "value", ChunksTest.largeValue( 'd', 4 ) ), new Handler<JsonObject>() {
+            @Override
+            public void handle( JsonObject response ) {
+                expectOk( command( "delete", "gone" ), new Handler<JsonObject>() {
+                    @Override
+                    public void handle( JsonObject response ) {
+                        failOver( new Handler<JsonObject>() {
+                            @Override
+                            public void handle( JsonObject topology ) {
+                                assertDeleted( 40 );
+                            }
+                        } );
+                    }
+                } );
+            }
+        } );
+    }
+
+    /**
+     * the replica is written in the background, after the reply, so its chunk is polled
+     */
+    private void assertDeleted( final int attempts ) {
+        send( command( "get", "gone~chunk0" ), new Handler<JsonObject>() {
+            @Override
+            public void handle( JsonObject reply ) {
+                if ( "Not found".equals( reply.getString( "message" ) ) ) {
+                    // the manifest was not written after the delete either
+                    send( command( "get", "gone" ), new Handler<JsonObject>() {
+                        @Override
+                        public void handle( JsonObject reply ) {
+                            assertEquals( "Not found", reply.getString( "message" ) );
+                            testComplete();
+                        }
+                    } );
+                    return;
+                }
+                if ( attempts == 0 ) {
+                    fail( "the chunks are still on the replica: " + reply.encode() );
+                }
+                vertx.setTimer( 50, new Handler<Long>() {
+                    @Override
+                    public void handle( Long id ) {
+                        assertDeleted( attempts - 1 );
+                    }
+                } );
+            }
+        } );
+    }
+}
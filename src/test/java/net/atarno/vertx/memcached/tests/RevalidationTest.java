@@ -0,0 +1,96 @@
+package net.atarno.vertx.memcached.tests;
+
+import org.junit.Test;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import static org.vertx.testtools.VertxAssert.assertEquals;
+import static org.vertx.testtools.VertxAssert.assertFalse;
+import static org.vertx.testtools.VertxAssert.assertTrue;
+import static org.vertx.testtools.VertxAssert.testComplete;
+
+public class RevalidationTest extends MemServerTestBase {
+    static final JsonObject REPORT = new JsonObject().putNumber( "total", 1234 );
+
+    @Test
+    public void testPlainReadsGetTheValueAlone() {
+        setSoft( "report", 300, new Runnable() {
+            @Override
+            public void run() {
+                expectOk( command( "get", "report" ), new Handler<JsonObject>() {
+                    @Override
+                    public void handle( JsonObject response ) {
+                        assertEquals( REPORT, response.getObject( "value" ) );
+                        JsonObject getBulk = new JsonObject().putString( "command", "getbulk" ).putArray( "keys", new JsonArray().addString( "report" ) );
+                        expectOk( getBulk, new Handler<JsonObject>() {
+                            @Override
+                            public void handle( JsonObject response ) {
+                                assertEquals( REPORT, response.getArray( "values" ).get( 0 ) );
+                                testComplete();
+                            }
+                        } );
+                    }
+                } );
+            }
+        } );
+    }
+
+    @Test
+    public void testFreshValue() {
+        setSoft( "fresh", 300, new Runnable() {
+            @Override
+            public void run() {
+                expectOk( command( "get", "fresh" ).putBoolean( "swr", true ).putNumber( "beta", 0 ), new Handler<JsonObject>() {
+                    @Override
+                    public void handle( JsonObject response ) {
+                        assertEquals( REPORT, response.getObject( "value" ) );
+                        assertFalse( response.getBoolean( "stale" ) );
+                        assertFalse( response.getBoolean( "refresh" ) );
+                        testComplete();
+                    }
+                } );
+            }
+        } );
+    }
+
+    @Test
+    public void testSingleRefreshOfAStaleValue() {
+        setSoft( "stale", 1, new Runnable() {
+            @Override
+            public void run() {
+                vertx.setTimer( 1100, new Handler<Long>() {
+                    @Override
+                    public void handle( Long timerId ) {
+                        expectOk( command( "get", "stale" ).putBoolean( "swr", true ), new Handler<JsonObject>() {
+                            @Override
+                            public void handle( JsonObject response ) {
+                                assertEquals( REPORT, response.getObject( "value" ) );
+                                assertTrue( response.getBoolean( "stale" ) );
+                                assertTrue( "the first reader refreshes", response.getBoolean( "refresh" ) );
+                                expectOk( command( "get", "stale" ).putBoolean( "swr", true ), new Handler<JsonObject>() {
+                                    @Override
+                                    public void handle( JsonObject response ) {
+                                        assertTrue( response.getBoolean( "stale" ) );
+                                        assertFalse( "the lease is taken", response.getBoolean( "refresh" ) );
+                                        testComplete();
+                                    }
+                                } );
+                            }
+                        } );
+                    }
+                } );
+            }
+        } );
+    }
+
+    private void setSoft( String key, int soft, final Runnable next ) {
+        JsonObject set = command( "set", key ).putObject( "value", REPORT ).putNumber( "exp", 600 ).putNumber( "soft", soft );
+        expectOk( set, new Handler<JsonObject>() {
+            @Override
+            public void handle( JsonObject response ) {
+                next.run();
+            }
+        } );
+    }
+}
@@ -0,0 +1,106 @@
+package net.atarno.vertx.memcached.tests;
+
+import org.junit.Test;
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonObject;
+
+import static org.vertx.testtools.VertxAssert.assertEquals;
+import static org.vertx.testtools.VertxAssert.assertTrue;
+import static org.vertx.testtools.VertxAssert.testComplete;
+
+public class ShardsTest extends MemServerTestBase {
+    static final int SHARDS = 2;
+    static final int READS = 4;
+    static final String KEY = "routed";
+    static final int SHARD = ( KEY.hashCode() & Integer.MAX_VALUE ) % SHARDS;
+
+    @Override
+    protected void configure( JsonObject config ) {
+        config.putNumber( "memcached.shards", SHARDS );
+        config.putNumber( "memcached.nearcache.max.entries", 100 );
+    }
+
+    @Override
+    protected int instances() {
+        return SHARDS;
+    }
+
+    @Test
+    public void testReadsOfAKeyShareTheNearCacheOfItsShard() {
+        expectOk( command( "set", KEY ).putString( "value", "v" ), new Handler<JsonObject>() {
+            @Override
+            public void handle( JsonObject response ) {
+                read( 0 );
+            }
+        } );
+    }
+
+    @Test
+    public void testDeploymentBeyondTheShardsFails() {
+        JsonObject config = new JsonObject()
+                .putString( "address", ADDRESS )
+                .putString( "memcached.servers", "localhost:" + PORT )
+                .putNumber( "memcached.shards", SHARDS );
+        container.deployVerticle( "net.atarno.vertx.memcached.client.MemClient", config, 1, new Handler<AsyncResult<String>>() {
+            @Override
+            public void handle( AsyncResult<String> result ) {
+                assertTrue( result.failed() );
+                testComplete();
+            }
+        } );
+    }
+
+    /**
+     * reads the key one request after the other, they are spread over both instances and all of them end up on
+     * the shard of the key
+     */
+    private void read( final int reads ) {
+        expectOk( command( "get", KEY ), new Handler<JsonObject>() {
+            @Override
+            public void handle( JsonObject response ) {
+                assertEquals( "v", response.getString( "value" ) );
+                if ( reads + 1 < READS ) {
+                    read( reads + 1 );
+                    return;
+                }
+                status( SHARD, new Handler<JsonObject>() {
+                    @Override
+                    public void handle( final JsonObject owner ) {
+                        assertEquals( SHARD, owner.getObject( "shards" ).getInteger( "shard" ).intValue() );
+                        JsonObject nearCache = owner.getObject( "nearcache" );
+                        assertEquals( nearCache.encode(), READS - 1, nearCache.getLong( "hits" ).longValue() );
+                        status( 1 - SHARD, new Handler<JsonObject>() {
+                            @Override
+                            public void handle( JsonObject other ) {
+                                assertEquals( 0, other.getObject( "nearcache" ).getLong( "misses" ).longValue() );
+                                long routed = 0;
+                                for ( JsonObject status : new JsonObject[]{ owner, other } ) {
+                                    JsonObject shards = status.getObject( "shards" );
+                                    routed += shards.getLong( "local" ) + shards.getLong( "forwarded" );
+                                }
+                                assertEquals( READS + 1, routed );
+                                assertTrue( other.getObject( "shards" ).getLong( "forwarded" ) > 0 );
+                                testComplete();
+                            }
+                        } );
+                    }
+                } );
+            }
+        } );
+    }
+
+    /**
+     * status is served where it arrives, so sending it to a shard address reads the instance that claimed it
+     */
+    private void status( int shard, final Handler<JsonObject> statusHandler ) {
+        vertx.eventBus().send( ADDRESS + "." + shard, new JsonObject().putString( "command", "status" ), new Handler<Message<JsonObject>>() {
+            @Override
+            public void handle( Message<JsonObject> reply ) {
+                assertEquals( "ok", reply.body().getString( "status" ) );
+                statusHandler.handle( reply.body().getObject( "response" ) );
+            }
+        } );
+    }
+}
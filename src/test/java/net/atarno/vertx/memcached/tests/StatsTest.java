@@ -0,0 +1,37 @@
+package net.atarno.vertx.memcached.tests;
+
+import org.junit.Test;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import static org.vertx.testtools.VertxAssert.assertEquals;
+import static org.vertx.testtools.VertxAssert.assertNotNull;
+import static org.vertx.testtools.VertxAssert.testComplete;
+
+public class StatsTest extends MemServerTestBase {
+
+    @Override
+    protected void configure( JsonObject config ) {
+        // the deployment only succeeds if the stats of the server can be collected
+        config.putBoolean( "validate-on-connect", true );
+    }
+
+    @Test
+    public void testGetStatsReturnsPerServerStats() {
+        expectOk( new JsonObject().putString( "command", "getstats" ), new Handler<JsonObject>() {
+            @Override
+            public void handle( JsonObject response ) {
+                JsonArray servers = response.getArray( "servers" );
+                assertEquals( 1, servers.size() );
+                JsonObject server = servers.get( 0 );
+                assertEquals( "localhost:" + PORT, server.getString( "address" ) );
+                assertNotNull( server.getString( "version" ) );
+                assertNotNull( server.getString( "curr_items" ) );
+                assertEquals( 0, response.getArray( "failed" ).size() );
+                assertEquals( 0, response.getArray( "timedout" ).size() );
+                testComplete();
+            }
+        } );
+    }
+}
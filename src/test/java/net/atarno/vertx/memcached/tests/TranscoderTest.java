@@ -0,0 +1,86 @@
+package net.atarno.vertx.memcached.tests;
+
+import org.junit.Test;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import static org.vertx.testtools.VertxAssert.assertEquals;
+import static org.vertx.testtools.VertxAssert.testComplete;
+
+public class TranscoderTest extends MemServerTestBase {
+
+    @Test
+    public void testJsonObjectReadByDefaultTranscoder() {
+        JsonObject value = new JsonObject().putString( "name", "x" ).putNumber( "n", 42 ).putBoolean( "b", true );
+        roundTrip( "json", null, value, new Runnable() {
+            @Override
+            public void run() {
+                testComplete();
+            }
+        } );
+    }
+
+    @Test
+    public void testCompressedJsonArrayReadByDefaultTranscoder() {
+        JsonArray value = new JsonArray();
+        for ( int i = 0; i < 5000; i++ ) {
+            value.addString( "item-" + i );
+        }
+        roundTrip( "json", "serializing", value, new Runnable() {
+            @Override
+            public void run() {
+                testComplete();
+            }
+        } );
+    }
+
+    @Test
+    public void testScalarsAcrossTranscoders() {
+        roundTrip( "json", null, "text", new Runnable() {
+            @Override
+            public void run() {
+                roundTrip( "json", null, 7L, new Runnable() {
+                    @Override
+                    public void run() {
+                        roundTrip( null, "json", "written by the default transcoder", new Runnable() {
+                            @Override
+                            public void run() {
+                                testComplete();
+                            }
+                        } );
+                    }
+                } );
+            }
+        } );
+    }
+
+    /**
+     * writes the value with one transcoder and reads it with another, a null transcoder stands for the default one
+     */
+    private void roundTrip( String writer, final String reader, final Object value, final Runnable next ) {
+        final String key = "tc-" + writer + "-" + reader;
+        JsonObject set = command( "set", key ).putValue( "value", value );
+        if ( writer != null ) {
+            set.putString( "transcoder", writer );
+        }
+        expectOk( set, new Handler<JsonObject>() {
+            @Override
+            public void handle( JsonObject response ) {
+                JsonObject get = command( "get", key );
+                if ( reader != null ) {
+                    get.putString( "transcoder", reader );
+                }
+                expectOk( get, new Handler<JsonObject>() {
+                    @Override
+                    public void handle( JsonObject response ) {
+                        // compared in their json form, numbers may come back with another boxed type
+                        Object read = response.getField( "value" );
+                        assertEquals( String.valueOf( value ), String.valueOf( read ) );
+                        next.run();
+                    }
+                } );
+            }
+        } );
+    }
+}